@@ -36,10 +36,13 @@ import master.flame.danmaku.danmaku.model.android.DrawingCachePoolManager;
 import master.flame.danmaku.danmaku.model.objectpool.Pool;
 import master.flame.danmaku.danmaku.model.objectpool.Pools;
 import master.flame.danmaku.danmaku.parser.DanmakuFactory;
+import master.flame.danmaku.danmaku.renderer.IRenderer.Area;
 import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
 import master.flame.danmaku.danmaku.util.DanmakuUtils;
 import tv.cjump.jni.NativeBitmapFactory;
 
+import java.util.LinkedList;
+
 public class CacheManagingDrawTask extends DrawTask {
 
     private static final int MAX_CACHE_SCREEN_SIZE = 3;
@@ -68,22 +71,65 @@ public class CacheManagingDrawTask extends DrawTask {
         mCacheTimer.update(timer.currMillisecond);
     }
 
+    @Override
+    protected void onDanmakusAdded() {
+        if (mCacheManager != null) {
+            mCacheManager.requestBuild();
+        }
+    }
+
     @Override
     public void addDanmaku(BaseDanmaku danmaku) {
         if (mCacheManager == null)
             return;
-        mCacheManager.addDanmaku(danmaku);
+        if (!mCacheManager.addDanmaku(danmaku)) {
+            // 缓存线程还没启动,由DrawTask排队或直接加入,缓存之后随窗口建立
+            super.addDanmaku(danmaku);
+        }
     }
 
     @Override
     public RenderingState draw(AbsDisplayer<?> displayer) {
+        IDanmakus danmakus = danmakuList;
+        if (danmakus == null) {
+            // 还在后台解析
+            return null;
+        }
         RenderingState result = null;
-        synchronized (danmakuList) {
+        synchronized (danmakus) {
             result = super.draw(displayer);
         }
         return result;
     }
 
+    @Override
+    public RenderingState layout(AbsDisplayer<?> displayer, Area dirtyArea) {
+        IDanmakus danmakus = danmakuList;
+        if (danmakus == null) {
+            // 还在后台解析
+            return null;
+        }
+        RenderingState result = null;
+        synchronized (danmakus) {
+            result = super.layout(displayer, dirtyArea);
+        }
+        return result;
+    }
+
+    @Override
+    public RenderingState drawLayout(AbsDisplayer<?> displayer) {
+        IDanmakus danmakus = danmakuList;
+        if (danmakus == null) {
+            // 还在后台解析
+            return null;
+        }
+        RenderingState result = null;
+        synchronized (danmakus) {
+            result = super.drawLayout(displayer);
+        }
+        return result;
+    }
+
     @Override
     public void reset() {
         // mCacheTimer.update(mTimer.currMillisecond);
@@ -124,7 +170,16 @@ public class CacheManagingDrawTask extends DrawTask {
     public void prepare() {
         assert (mParser != null);
         loadDanmakus(mParser);
-        mCacheManager.begin();
+        CacheManager cacheManager = mCacheManager;
+        if (cacheManager == null) {
+            // 解析期间已经quit
+            return;
+        }
+        cacheManager.begin();
+        // 不等第一屏缓存建好就开始播放,没有缓存的弹幕先直接绘制
+        if (mTaskListener != null) {
+            mTaskListener.ready();
+        }
     }
 
     public class CacheManager {
@@ -162,10 +217,16 @@ public class CacheManagingDrawTask extends DrawTask {
             mHandler.obtainMessage(CacheHandler.SEEK, mills).sendToTarget();
         }
 
-        public void addDanmaku(BaseDanmaku danmaku) {
-            if (mHandler != null) {
-                mHandler.obtainMessage(CacheHandler.ADD_DANMAKKU, danmaku).sendToTarget();
+        /**
+         * @return 是否已交给缓存线程
+         */
+        public boolean addDanmaku(BaseDanmaku danmaku) {
+            CacheHandler handler = mHandler;
+            if (handler == null) {
+                return false;
             }
+            handler.obtainMessage(CacheHandler.ADD_DANMAKKU, danmaku).sendToTarget();
+            return true;
         }
 
         public void begin() {
@@ -334,7 +395,8 @@ public class CacheManagingDrawTask extends DrawTask {
                         && danmaku.underlineColor == refDanmaku.underlineColor
                         && danmaku.borderColor == refDanmaku.borderColor
                         && danmaku.textColor == refDanmaku.textColor
-                        && danmaku.text.equals(refDanmaku.text)) {
+                        && (danmaku.text == refDanmaku.text || danmaku.text != null
+                                && danmaku.text.equals(refDanmaku.text))) {
                     return danmaku;
                 }
                 if (strictMode) {
@@ -414,31 +476,26 @@ public class CacheManagingDrawTask extends DrawTask {
                         break;
                     case BUILD_CACHES:
                         removeMessages(BUILD_CACHES);
-                        boolean repositioned = ((mTaskListener != null && mReadyState == false) || mSeekedFlag);
+                        boolean repositioned = (mReadyState == false || mSeekedFlag);
                         prepareCaches(repositioned);
                         if (repositioned)
                             mSeekedFlag = false;
-                        if (mTaskListener != null && mReadyState == false) {
-                            mTaskListener.ready();
-                            mReadyState = true;
-                        }
+                        mReadyState = true;
 //                        Log.i(TAG,"BUILD_CACHES:"+mCacheTimer.currMillisecond+":"+mTimer.currMillisecond);
                         break;
                     case ADD_DANMAKKU:
-                        synchronized (danmakuList) {
-                            BaseDanmaku item = (BaseDanmaku) msg.obj;
-                            if(item.isTimeOut()) {
-                                break;
-                            }
-                            if(!item.hasDrawingCache()) {
-                                buildCache(item);
-                            }
-                            if (item.isLive) {
-                                mCacheTimer.update(mTimer.currMillisecond
-                                        + DanmakuFactory.MAX_DANMAKU_DURATION * mScreenSize);
-                            }
-                            CacheManagingDrawTask.super.addDanmaku(item);
+                        BaseDanmaku item = (BaseDanmaku) msg.obj;
+                        if(item.isTimeOut()) {
+                            break;
+                        }
+                        if(!item.hasDrawingCache()) {
+                            buildCache(item);
                         }
+                        if (item.isLive) {
+                            mCacheTimer.update(mTimer.currMillisecond
+                                    + DanmakuFactory.MAX_DANMAKU_DURATION * mScreenSize);
+                        }
+                        CacheManagingDrawTask.super.addDanmaku(item);
                         break;
                     case CLEAR_TIMEOUT_CACHES:
                         clearTimeOutCaches();
@@ -528,6 +585,28 @@ public class CacheManagingDrawTask extends DrawTask {
                 mCachePool.release(cache);
             }
 
+            /**
+             * subnew返回的是danmakuList的视图,增量解析时会被解析线程修改,这里复制一份再遍历
+             */
+            private IDanmakus snapshot(long begin, long end) {
+                final LinkedList<BaseDanmaku> items = new LinkedList<BaseDanmaku>();
+                synchronized (danmakuList) {
+                    IDanmakus sub = danmakuList.subnew(begin, end);
+                    if (sub == null) {
+                        return null;
+                    }
+                    sub.forEach(new IDanmakus.Consumer() {
+
+                        @Override
+                        public int accept(BaseDanmaku danmaku) {
+                            items.add(danmaku);
+                            return ACTION_CONTINUE;
+                        }
+                    });
+                }
+                return new Danmakus(items);
+            }
+
             private long prepareCaches(boolean repositioned) {
                 long curr = mCacheTimer.currMillisecond;
                 long end = curr + DanmakuFactory.MAX_DANMAKU_DURATION * mScreenSize;
@@ -535,7 +614,7 @@ public class CacheManagingDrawTask extends DrawTask {
                     return 0;
                 }
                 long startTime =  System.currentTimeMillis();
-                IDanmakus danmakus = danmakuList.subnew(curr, end);
+                IDanmakus danmakus = snapshot(curr, end);
                 if (danmakus == null || danmakus.isEmpty()) {
                     mCacheTimer.update(end);
                     return 0;
@@ -627,8 +706,10 @@ public class CacheManagingDrawTask extends DrawTask {
             private boolean buildCache(BaseDanmaku item) {
                 
                 // measure
-                if (!item.isMeasured()) {
-                    item.measure(mDisp);
+                if (!item.isMeasured() || item.needRemeasure()) {
+                    synchronized (danmakuList) {
+                        item.measure(mDisp);
+                    }
                 }
 
                 DrawingCache cache = null;
@@ -668,16 +749,15 @@ public class CacheManagingDrawTask extends DrawTask {
                     }
 
                     cache = mCachePool.acquire();
-                    synchronized (danmakuList) {
-                        cache = DanmakuUtils.buildDanmakuDrawingCache(item, mDisp, cache);
-                        item.cache = cache;
-                        boolean pushed = mCacheManager.push(item, sizeOf(item));
-                        if (!pushed) {
-                            releaseDanmakuCache(item, cache);
+                    // 光栅化不持有danmakuList的锁,绘制线程不会被阻塞
+                    cache = DanmakuUtils.buildDanmakuDrawingCache(item, mDisp, cache);
+                    item.cache = cache;
+                    boolean pushed = mCacheManager.push(item, sizeOf(item));
+                    if (!pushed) {
+                        releaseDanmakuCache(item, cache);
 //Log.e("cache", "break at push failed:" + mMaxSize);
-                        }
-                        return pushed;
                     }
+                    return pushed;
 
                 } catch (OutOfMemoryError e) {
 //Log.e("cache", "break at error: oom");
@@ -755,6 +835,16 @@ public class CacheManagingDrawTask extends DrawTask {
 
     }
     
+    @Override
+    public void onPaintStyleChanged() {
+        super.onPaintStyleChanged();
+        // 屏幕内的缓存沿用旧样式直到超时,屏幕外的按新样式重建
+        if (mCacheManager != null) {
+            mCacheManager.requestClearUnused();
+            mCacheManager.requestBuild();
+        }
+    }
+
     @Override
     public boolean onDanmakuConfigChanged(DanmakuGlobalConfig config, DanmakuConfigTag tag,
             Object... values) {
@@ -781,9 +871,10 @@ public class CacheManagingDrawTask extends DrawTask {
             return true;
         }
         if (tag.equals(DanmakuConfigTag.SCALE_TEXTSIZE)) {
+            // 屏幕内的缓存缩放绘制直到超时,屏幕外的按新字号重建
             mDisp.resetSlopPixel(DanmakuGlobalConfig.DEFAULT.scaleTextSize);
         }
-        if (tag.equals(DanmakuConfigTag.TRANSPARENCY) || tag.equals(DanmakuConfigTag.SCALE_TEXTSIZE)) {
+        if (tag.equals(DanmakuConfigTag.TRANSPARENCY)) {
             if (mCacheManager != null) {
                 mCacheManager.requestClearAll();
                 mCacheManager.requestBuild();
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.controller;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * 基于Choreographer的帧驱动,帧时间戳来自vsync.
+ * Choreographer与线程绑定,因此所有注册都在构造时传入的Looper上进行
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class ChoreographerFrameDriver implements IFrameDriver, Choreographer.FrameCallback {
+
+    /**
+     * vsync时间有抖动,间隔差这么多以内仍然认为到了下一帧
+     */
+    private static final long FRAME_SLOP_NANOS = 4000000L;
+
+    private final Handler mHandler;
+
+    private Choreographer mChoreographer;
+
+    private volatile FrameCallback mCallback;
+
+    private long mIntervalNanos = 16000000L;
+
+    private long mLastFrameNanos;
+
+    private boolean mRegistered;
+
+    private final Object mFrameLock = new Object();
+
+    private long mLatestFrameNanos;
+
+    private int mWaiters;
+
+    private volatile boolean mReleased;
+
+    private final Runnable mRegisterRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            register();
+        }
+    };
+
+    public ChoreographerFrameDriver(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public void setFrameInterval(long intervalMillis) {
+        mIntervalNanos = Math.max(1, intervalMillis) * 1000000L;
+    }
+
+    @Override
+    public void postFrameCallback(FrameCallback callback) {
+        mCallback = callback;
+        mReleased = false;
+        register();
+    }
+
+    @Override
+    public void removeFrameCallback(FrameCallback callback) {
+        if (mCallback == callback) {
+            mCallback = null;
+        }
+    }
+
+    @Override
+    public long awaitFrame() throws InterruptedException {
+        synchronized (mFrameLock) {
+            mReleased = false;
+            long lastFrameNanos = mLatestFrameNanos;
+            mWaiters++;
+            try {
+                mHandler.post(mRegisterRunnable);
+                while (mLatestFrameNanos == lastFrameNanos) {
+                    mFrameLock.wait();
+                }
+            } finally {
+                mWaiters--;
+            }
+            return mLatestFrameNanos;
+        }
+    }
+
+    private void register() {
+        if (mRegistered || mReleased) {
+            return;
+        }
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        mRegistered = true;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mRegistered = false;
+        if (frameTimeNanos - mLastFrameNanos < mIntervalNanos - FRAME_SLOP_NANOS) {
+            // 未到设定的帧间隔,等下一个vsync
+            if (mCallback != null || hasWaiters()) {
+                register();
+            }
+            return;
+        }
+        mLastFrameNanos = frameTimeNanos;
+        synchronized (mFrameLock) {
+            mLatestFrameNanos = frameTimeNanos;
+            mFrameLock.notifyAll();
+        }
+        FrameCallback callback = mCallback;
+        mCallback = null;
+        if (callback != null) {
+            callback.doFrame(frameTimeNanos);
+        }
+    }
+
+    private boolean hasWaiters() {
+        synchronized (mFrameLock) {
+            return mWaiters > 0;
+        }
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        mCallback = null;
+        mHandler.removeCallbacks(mRegisterRunnable);
+        if (mChoreographer != null) {
+            mChoreographer.removeFrameCallback(this);
+        }
+        mRegistered = false;
+    }
+
+}
@@ -3,17 +3,17 @@ package master.flame.danmaku.controller;
 
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.DanmakuTimer;
-import master.flame.danmaku.danmaku.model.IDanmakuIterator;
 import master.flame.danmaku.danmaku.model.IDanmakus;
 import master.flame.danmaku.danmaku.model.android.Danmakus;
+import master.flame.danmaku.danmaku.parser.DanmakuFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
 
 public class DanmakuFilters {
@@ -31,6 +31,11 @@ public class DanmakuFilters {
 
         public void clear();
 
+        /**
+         * 弹幕即将放回对象池,去掉对它的所有引用
+         */
+        public void remove(BaseDanmaku danmaku);
+
     }
 
     public static abstract class BaseDanmakuFilter<T> implements IDanmakuFilter<T> {
@@ -40,6 +45,11 @@ public class DanmakuFilters {
 
         }
 
+        @Override
+        public void remove(BaseDanmaku danmaku) {
+
+        }
+
     }
 
     /**
@@ -147,6 +157,14 @@ public class DanmakuFilters {
         public void clear() {
             reset();
         }
+
+        @Override
+        public synchronized void remove(BaseDanmaku danmaku) {
+            danmakus.removeItem(danmaku);
+            if (mLastSkipped == danmaku) {
+                mLastSkipped = null;
+            }
+        }
     }
 
     /**
@@ -199,6 +217,62 @@ public class DanmakuFilters {
             reset();
         }
 
+        @Override
+        public synchronized void remove(BaseDanmaku danmaku) {
+            danmakus.removeItem(danmaku);
+        }
+
+    }
+
+    /**
+     * 绘制压力下按质量等级稀疏弹幕,由{@link QualityController}设置等级
+     * 
+     * @author ch
+     */
+    public static class QualityDanmakuFilter extends BaseDanmakuFilter<Integer> {
+
+        /**
+         * 同屏滚动弹幕总数上限为(屏幕高度/行高)乘以这个系数.
+         * 是全屏的总数,不是每行各自的上限,弹幕落在哪一行由DanmakusRetainer决定
+         */
+        private static final int MAX_SCROLL_DANMAKUS_FACTOR = 2;
+
+        private volatile int mLevel = QualityController.LEVEL_FULL;
+
+        @Override
+        public boolean filter(BaseDanmaku danmaku, int orderInScreen, int totalsizeInScreen,
+                DanmakuTimer timer, boolean fromCachingTask) {
+            int level = mLevel;
+            if (level < QualityController.LEVEL_THIN_LOW_PRIORITY || danmaku.priority > 0
+                    || danmaku.isShown()) {
+                return false;
+            }
+            // 低优先级弹幕隔一条丢一条,按index决定保证缓存线程和绘制线程结果一致
+            if ((danmaku.index & 1) != 0) {
+                return true;
+            }
+            if (level >= QualityController.LEVEL_CAP_SCROLL_DENSITY
+                    && danmaku.getType() == BaseDanmaku.TYPE_SCROLL_RL) {
+                float lineHeight = danmaku.paintHeight > 0 ? danmaku.paintHeight
+                        : danmaku.textSize;
+                if (lineHeight > 0 && DanmakuFactory.CURRENT_DISP_HEIGHT > 0) {
+                    int lanes = Math.max(1, (int) (DanmakuFactory.CURRENT_DISP_HEIGHT / lineHeight));
+                    return orderInScreen >= lanes * MAX_SCROLL_DANMAKUS_FACTOR;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void setData(Integer data) {
+            mLevel = data == null ? QualityController.LEVEL_FULL : data;
+        }
+
+        @Override
+        public void reset() {
+
+        }
+
     }
 
     /**
@@ -335,74 +409,74 @@ public class DanmakuFilters {
 
     }
 
+    /**
+     * 合并重复弹幕:同屏内文本相同的弹幕只显示第一条,并累计合并数量
+     * 
+     * @author ch
+     */
     public static class DuplicateMergingFilter extends BaseDanmakuFilter<Void> {
 
-        protected final IDanmakus blockedDanmakus = new Danmakus(Danmakus.ST_BY_LIST);
-        protected final LinkedHashMap<String, BaseDanmaku> currentDanmakus = new LinkedHashMap<String, BaseDanmaku>();
-        private final IDanmakus passedDanmakus = new Danmakus(Danmakus.ST_BY_LIST);
-
-        private final void removeTimeoutDanmakus(final IDanmakus danmakus, long limitTime) {
-            IDanmakuIterator it = danmakus.iterator();
-            long startTime = System.currentTimeMillis();
-            while (it.hasNext()) {
-                try {
-                    BaseDanmaku item = it.next();
-                    if (item.isTimeOut()) {
-                        it.remove();
-                    } else {
-                        break;
-                    }
-                } catch (Exception e) {
-                    break;
-                }
-                if (System.currentTimeMillis() - startTime > limitTime) {
-                    break;
-                }
-            }
-        }
+        protected final Set<BaseDanmaku> blockedDanmakus = new HashSet<BaseDanmaku>();
 
-        private void removeTimeoutDanmakus(LinkedHashMap<String, BaseDanmaku> danmakus,
-                int limitTime) {
-            Iterator<Entry<String, BaseDanmaku>> it = danmakus.entrySet().iterator();
-            long startTime = System.currentTimeMillis();
-            while (it.hasNext()) {
-                try {
-                    Entry<String, BaseDanmaku> entry = it.next();
-                    BaseDanmaku item = entry.getValue();
-                    if (item.isTimeOut()) {
-                        it.remove();
-                    } else {
-                        break;
-                    }
-                } catch (Exception e) {
-                    break;
+        protected final Map<String, BaseDanmaku> currentDanmakus = new HashMap<String, BaseDanmaku>();
+
+        /**
+         * 每个文本当前显示的那条弹幕,合并数量累计在它身上
+         */
+        protected final Map<String, BaseDanmaku> mergedDanmakus = new HashMap<String, BaseDanmaku>();
+
+        private final Set<BaseDanmaku> passedDanmakus = new HashSet<BaseDanmaku>();
+
+        private final ExpiryWheel mExpiryWheel = new ExpiryWheel();
+
+        private final ExpiryWheel.Callback mExpiryCallback = new ExpiryWheel.Callback() {
+
+            @Override
+            public void onExpired(BaseDanmaku item) {
+                passedDanmakus.remove(item);
+                blockedDanmakus.remove(item);
+                if (currentDanmakus.get(item.text) == item) {
+                    currentDanmakus.remove(item.text);
                 }
-                if (System.currentTimeMillis() - startTime > limitTime) {
-                    break;
+                if (mergedDanmakus.get(item.text) == item) {
+                    mergedDanmakus.remove(item.text);
                 }
             }
-        }
+        };
 
         @Override
         public synchronized boolean filter(BaseDanmaku danmaku, int index, int totalsizeInScreen,
                 DanmakuTimer timer, boolean fromCachingTask) {
-            removeTimeoutDanmakus(blockedDanmakus, 2);
-            removeTimeoutDanmakus(passedDanmakus, 2);
-            removeTimeoutDanmakus(currentDanmakus, 3);
-            if (blockedDanmakus.contains(danmaku) && !danmaku.isOutside()) {
+            DanmakuTimer danmakuTimer = danmaku.getTimer();
+            if (danmakuTimer != null) {
+                mExpiryWheel.advance(danmakuTimer.currMillisecond, mExpiryCallback);
+            }
+            boolean blocked = blockedDanmakus.contains(danmaku);
+            if (blocked && !danmaku.isOutside()) {
                 return true;
             }
             if (passedDanmakus.contains(danmaku)) {
                 return false;
             }
+            if (!blocked) {
+                mExpiryWheel.schedule(danmaku);
+            }
             if (currentDanmakus.containsKey(danmaku.text)) {
                 currentDanmakus.put(danmaku.text, danmaku);
-                blockedDanmakus.removeItem(danmaku);
-                blockedDanmakus.addItem(danmaku);
+                if (!blocked) {
+                    blockedDanmakus.add(danmaku);
+                    BaseDanmaku merged = mergedDanmakus.get(danmaku.text);
+                    if (merged != null) {
+                        merged.mergedCount++;
+                    }
+                }
                 return true;
             } else {
+                blockedDanmakus.remove(danmaku);
                 currentDanmakus.put(danmaku.text, danmaku);
-                passedDanmakus.addItem(danmaku);
+                mergedDanmakus.put(danmaku.text, danmaku);
+                danmaku.mergedCount = 1;
+                passedDanmakus.add(danmaku);
                 return false;
             }
 
@@ -418,6 +492,8 @@ public class DanmakuFilters {
             passedDanmakus.clear();
             blockedDanmakus.clear();
             currentDanmakus.clear();
+            mergedDanmakus.clear();
+            mExpiryWheel.clear();
         }
 
         @Override
@@ -425,6 +501,410 @@ public class DanmakuFilters {
             reset();
         }
 
+        @Override
+        public synchronized void remove(BaseDanmaku danmaku) {
+            mExpiryWheel.remove(danmaku);
+            mExpiryCallback.onExpired(danmaku);
+        }
+
+    }
+
+    /**
+     * 近似重复弹幕过滤:文本归一化后计算SimHash指纹,在滑动时间窗口内与已显示弹幕的指纹比较,
+     * 汉明距离不超过阈值即视为刷屏.指纹按4段16位分别索引,距离<=3时至少有一段完全相同,
+     * 每段的桶里以链表串起所有候选并逐个比较完整指纹,所以环形缓冲区里的指纹不会漏掉;
+     * 只记录最近{@value #RING_SIZE}条放行的弹幕,窗口内超出这个数量时更早的指纹会被覆盖
+     * 
+     * @author ch
+     */
+    public static class NearDuplicateFilter extends BaseDanmakuFilter<Long> {
+
+        public static final long DEFAULT_WINDOW_MILLIS = 6000;
+
+        private static final int MAX_HAMMING_DISTANCE = 3;
+
+        private static final int BANDS = 4;
+
+        private static final int BAND_BITS = 16;
+
+        private static final int INDEX_BITS = 12;
+
+        private static final int RING_SIZE = 1024;
+
+        private long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+
+        private final long[] mRingFingerprints = new long[RING_SIZE];
+
+        private final long[] mRingTimes = new long[RING_SIZE];
+
+        /**
+         * 已插入的指纹总数,第seq条存放在seq % RING_SIZE
+         */
+        private int mRingCount;
+
+        /**
+         * 每段的桶,存放桶内最新一条的seq+1,0表示空
+         */
+        private final int[][] mBandIndex = new int[BANDS][1 << INDEX_BITS];
+
+        /**
+         * 每段同一个桶内上一条的seq+1,按插入顺序从新到旧串成链表
+         */
+        private final int[][] mBandNext = new int[BANDS][RING_SIZE];
+
+        private final Set<BaseDanmaku> mPassedDanmakus = new HashSet<BaseDanmaku>();
+
+        private final Set<BaseDanmaku> mBlockedDanmakus = new HashSet<BaseDanmaku>();
+
+        private final ExpiryWheel mExpiryWheel = new ExpiryWheel();
+
+        private final ExpiryWheel.Callback mExpiryCallback = new ExpiryWheel.Callback() {
+
+            @Override
+            public void onExpired(BaseDanmaku item) {
+                mPassedDanmakus.remove(item);
+                mBlockedDanmakus.remove(item);
+            }
+        };
+
+        private char[] mNormalizeBuffer = new char[64];
+
+        private final int[] mVotes = new int[64];
+
+        private static final int FINGERPRINT_CACHE_SIZE = 64;
+
+        /**
+         * 按引用缓存最近算过的指纹,文字经过驻留后重复的弹幕通常是同一个String实例
+         */
+        private final String[] mFingerprintTexts = new String[FINGERPRINT_CACHE_SIZE];
+
+        private final long[] mFingerprints = new long[FINGERPRINT_CACHE_SIZE];
+
+        @Override
+        public synchronized boolean filter(BaseDanmaku danmaku, int index, int totalsizeInScreen,
+                DanmakuTimer timer, boolean fromCachingTask) {
+            if (danmaku == null || danmaku.text == null) {
+                return false;
+            }
+            DanmakuTimer danmakuTimer = danmaku.getTimer();
+            if (danmakuTimer != null) {
+                mExpiryWheel.advance(danmakuTimer.currMillisecond, mExpiryCallback);
+            }
+            if (mBlockedDanmakus.contains(danmaku)) {
+                return true;
+            }
+            if (mPassedDanmakus.contains(danmaku)) {
+                return false;
+            }
+            mExpiryWheel.schedule(danmaku);
+            long fingerprint = cachedFingerprint(danmaku.text);
+            if (findNearDuplicate(fingerprint, danmaku.time)) {
+                mBlockedDanmakus.add(danmaku);
+                return true;
+            }
+            insert(fingerprint, danmaku.time);
+            mPassedDanmakus.add(danmaku);
+            return false;
+        }
+
+        private boolean findNearDuplicate(long fingerprint, long time) {
+            int oldest = mRingCount - RING_SIZE;
+            for (int band = 0; band < BANDS; band++) {
+                int seq = mBandIndex[band][bandKey(fingerprint, band)] - 1;
+                // seq早于oldest的槽位已被覆盖,链表到此为止
+                while (seq >= 0 && seq >= oldest) {
+                    int slot = seq % RING_SIZE;
+                    if (Math.abs(time - mRingTimes[slot]) <= mWindowMillis
+                            && Long.bitCount(fingerprint ^ mRingFingerprints[slot])
+                                    <= MAX_HAMMING_DISTANCE) {
+                        return true;
+                    }
+                    seq = mBandNext[band][slot] - 1;
+                }
+            }
+            return false;
+        }
+
+        private void insert(long fingerprint, long time) {
+            if (mRingCount == Integer.MAX_VALUE) {
+                reset();
+            }
+            int seq = mRingCount++;
+            int slot = seq % RING_SIZE;
+            mRingFingerprints[slot] = fingerprint;
+            mRingTimes[slot] = time;
+            for (int band = 0; band < BANDS; band++) {
+                int[] index = mBandIndex[band];
+                int key = bandKey(fingerprint, band);
+                mBandNext[band][slot] = index[key];
+                index[key] = seq + 1;
+            }
+        }
+
+        private static int bandKey(long fingerprint, int band) {
+            int value = (int) (fingerprint >>> (band * BAND_BITS)) & 0xFFFF;
+            return (value ^ (value >>> INDEX_BITS)) & ((1 << INDEX_BITS) - 1);
+        }
+
+        private long cachedFingerprint(String text) {
+            int slot = System.identityHashCode(text) & (FINGERPRINT_CACHE_SIZE - 1);
+            if (mFingerprintTexts[slot] == text) {
+                return mFingerprints[slot];
+            }
+            long fingerprint = fingerprint(text);
+            mFingerprintTexts[slot] = text;
+            mFingerprints[slot] = fingerprint;
+            return fingerprint;
+        }
+
+        private long fingerprint(String text) {
+            int length = normalize(text, false);
+            if (length == 0) {
+                length = normalize(text, true);
+            }
+            char[] chars = mNormalizeBuffer;
+            if (length <= 2) {
+                // 过短的文本直接取哈希,相同即重复
+                long h = 0;
+                for (int i = 0; i < length; i++) {
+                    h = h * 31 + chars[i];
+                }
+                return mix(h);
+            }
+            int[] votes = mVotes;
+            for (int i = 0; i < votes.length; i++) {
+                votes[i] = 0;
+            }
+            for (int i = 0; i < length; i++) {
+                vote(votes, mix(chars[i]));
+                if (i + 1 < length) {
+                    vote(votes, mix(((long) chars[i] << 16 | chars[i + 1]) + 0x10000L));
+                }
+            }
+            long fingerprint = 0;
+            for (int i = 0; i < votes.length; i++) {
+                if (votes[i] > 0) {
+                    fingerprint |= 1L << i;
+                }
+            }
+            return fingerprint;
+        }
+
+        private static void vote(int[] votes, long hash) {
+            for (int i = 0; i < votes.length; i++) {
+                votes[i] += ((hash >>> i) & 1L) != 0 ? 1 : -1;
+            }
+        }
+
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        /**
+         * 全角转半角,英文转小写,去掉空白(和标点),合并连续重复字符
+         * 
+         * @return 归一化后的长度,结果在mNormalizeBuffer中
+         */
+        private int normalize(String text, boolean keepPunctuation) {
+            int textLength = text.length();
+            if (mNormalizeBuffer.length < textLength) {
+                mNormalizeBuffer = new char[textLength];
+            }
+            char[] chars = mNormalizeBuffer;
+            int length = 0;
+            char last = 0;
+            for (int i = 0; i < textLength; i++) {
+                char c = text.charAt(i);
+                if (c >= '\uFF01' && c <= '\uFF5E') {
+                    c = (char) (c - 0xFEE0);
+                } else if (c == '\u3000') {
+                    c = ' ';
+                }
+                if (c >= 'A' && c <= 'Z') {
+                    c = (char) (c + ('a' - 'A'));
+                }
+                if (Character.isWhitespace(c)) {
+                    continue;
+                }
+                if (!keepPunctuation && isPunctuation(c)) {
+                    continue;
+                }
+                if (c == last) {
+                    continue;
+                }
+                chars[length++] = c;
+                last = c;
+            }
+            return length;
+        }
+
+        private static boolean isPunctuation(char c) {
+            switch (Character.getType(c)) {
+                case Character.CONNECTOR_PUNCTUATION:
+                case Character.DASH_PUNCTUATION:
+                case Character.START_PUNCTUATION:
+                case Character.END_PUNCTUATION:
+                case Character.INITIAL_QUOTE_PUNCTUATION:
+                case Character.FINAL_QUOTE_PUNCTUATION:
+                case Character.OTHER_PUNCTUATION:
+                case Character.MATH_SYMBOL:
+                case Character.MODIFIER_SYMBOL:
+                    return true;
+            }
+            return c == '~' || c == '\u301C';
+        }
+
+        /**
+         * @param data 滑动窗口大小(毫秒),null使用默认值
+         */
+        @Override
+        public synchronized void setData(Long data) {
+            mWindowMillis = (data == null || data <= 0) ? DEFAULT_WINDOW_MILLIS : data;
+        }
+
+        @Override
+        public synchronized void reset() {
+            mPassedDanmakus.clear();
+            mBlockedDanmakus.clear();
+            mExpiryWheel.clear();
+            for (int[] table : mBandIndex) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = 0;
+                }
+            }
+            for (int[] table : mBandNext) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = 0;
+                }
+            }
+            mRingCount = 0;
+        }
+
+        @Override
+        public void clear() {
+            reset();
+        }
+
+        @Override
+        public synchronized void remove(BaseDanmaku danmaku) {
+            mExpiryWheel.remove(danmaku);
+            mExpiryCallback.onExpired(danmaku);
+        }
+
+    }
+
+    /**
+     * 按超时时间分桶的时间轮,每次只处理已经走过的槽,避免逐个遍历全部弹幕
+     * 
+     * @author ch
+     */
+    static class ExpiryWheel {
+
+        interface Callback {
+            public void onExpired(BaseDanmaku item);
+        }
+
+        private static final int SLOT_MILLIS = 250;
+
+        private static final int SLOT_COUNT = 64;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ArrayList<BaseDanmaku>[] mSlots = new ArrayList[SLOT_COUNT];
+
+        private final ArrayList<BaseDanmaku> mRescheduled = new ArrayList<BaseDanmaku>();
+
+        private long mCurrentTick = -1;
+
+        private int mSize;
+
+        public void schedule(BaseDanmaku item) {
+            long tick = (item.time + item.getDuration()) / SLOT_MILLIS;
+            if (mCurrentTick >= 0) {
+                // 超出时间轮范围的先放在最远的槽,到期时重新调度
+                tick = Math.max(mCurrentTick + 1, Math.min(tick, mCurrentTick + SLOT_COUNT - 1));
+            }
+            int index = (int) (tick % SLOT_COUNT);
+            ArrayList<BaseDanmaku> slot = mSlots[index];
+            if (slot == null) {
+                slot = mSlots[index] = new ArrayList<BaseDanmaku>();
+            }
+            slot.add(item);
+            mSize++;
+        }
+
+        public void advance(long currMillis, Callback callback) {
+            long tick = currMillis / SLOT_MILLIS;
+            if (mCurrentTick < 0 || tick < mCurrentTick) {
+                mCurrentTick = tick;
+                return;
+            }
+            if (mSize == 0) {
+                mCurrentTick = tick;
+                return;
+            }
+            long steps = Math.min(tick - mCurrentTick, SLOT_COUNT);
+            for (long i = 0; i < steps; i++) {
+                ArrayList<BaseDanmaku> slot = mSlots[(int) ((mCurrentTick + i) % SLOT_COUNT)];
+                if (slot == null || slot.isEmpty()) {
+                    continue;
+                }
+                for (int j = 0; j < slot.size(); j++) {
+                    BaseDanmaku item = slot.get(j);
+                    if (item.isPooled()) {
+                        // 已回收的对象字段都已清空,直接丢弃
+                        continue;
+                    }
+                    if (item.isTimeOut(currMillis)) {
+                        callback.onExpired(item);
+                    } else {
+                        mRescheduled.add(item);
+                    }
+                }
+                mSize -= slot.size();
+                slot.clear();
+            }
+            mCurrentTick = tick;
+            for (int i = 0; i < mRescheduled.size(); i++) {
+                schedule(mRescheduled.get(i));
+            }
+            mRescheduled.clear();
+        }
+
+        /**
+         * 按引用删除,调度时可能被挪到最远的槽,所以逐个槽查找
+         */
+        public void remove(BaseDanmaku item) {
+            if (mSize == 0) {
+                return;
+            }
+            for (ArrayList<BaseDanmaku> slot : mSlots) {
+                if (slot == null) {
+                    continue;
+                }
+                for (int i = slot.size() - 1; i >= 0; i--) {
+                    if (slot.get(i) == item) {
+                        slot.remove(i);
+                        mSize--;
+                    }
+                }
+            }
+        }
+
+        public void clear() {
+            for (ArrayList<BaseDanmaku> slot : mSlots) {
+                if (slot != null) {
+                    slot.clear();
+                }
+            }
+            mSize = 0;
+            mCurrentTick = -1;
+        }
+
     }
 
     public final static String TAG_TYPE_DANMAKU_FILTER = "1010_Filter";
@@ -443,6 +923,10 @@ public class DanmakuFilters {
 
     public static final String TAG_DUPLICATE_FILTER = "1017_Filter";
 
+    public static final String TAG_NEAR_DUPLICATE_FILTER = "1018_Filter";
+
+    public static final String TAG_QUALITY_FILTER = "1019_Filter";
+
     private static DanmakuFilters instance = null;
 
     public final Exception filterException = new Exception("not suuport this filter tag");
@@ -493,6 +977,10 @@ public class DanmakuFilters {
                 filter = new GuestFilter();
             } else if (TAG_DUPLICATE_FILTER.equals(tag)) {
                 filter = new DuplicateMergingFilter();
+            } else if (TAG_NEAR_DUPLICATE_FILTER.equals(tag)) {
+                filter = new NearDuplicateFilter();
+            } else if (TAG_QUALITY_FILTER.equals(tag)) {
+                filter = new QualityDanmakuFilter();
             }
             // add more filter
         }
@@ -529,6 +1017,16 @@ public class DanmakuFilters {
         }
     }
 
+    /**
+     * 弹幕放回对象池之前调用,各过滤器不再引用它
+     */
+    public void remove(BaseDanmaku danmaku) {
+        for (IDanmakuFilter<?> f : mFilterArray) {
+            if (f != null)
+                f.remove(danmaku);
+        }
+    }
+
     public void release() {
         clear();
         filters.clear();
@@ -18,6 +18,8 @@ package master.flame.danmaku.controller;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -32,11 +34,10 @@ import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
 import master.flame.danmaku.danmaku.model.android.DanmakuGlobalConfig;
 import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
 import master.flame.danmaku.danmaku.parser.DanmakuFactory;
+import master.flame.danmaku.danmaku.renderer.IRenderer.Area;
 import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
 import master.flame.danmaku.danmaku.util.AndroidUtils;
 
-import java.util.LinkedList;
-
 public class DrawHandler extends Handler {
 
     public interface Callback {
@@ -45,6 +46,19 @@ public class DrawHandler extends Handler {
         public void updateTimer(DanmakuTimer timer);
     }
 
+    /**
+     * 需要加载进度时实现这个接口代替{@link Callback}.弹幕在后台解析,
+     * 解析出第一批后就回调prepared(),之后每并入一批回调一次,均在DrawHandler线程
+     */
+    public interface LoadingCallback extends Callback {
+
+        /**
+         * @param count 本批数量
+         * @param total 已加载的总数
+         */
+        public void onDanmakusLoaded(int count, int total);
+    }
+
     public static final int START = 1;
 
     public static final int UPDATE = 2;
@@ -67,13 +81,15 @@ public class DrawHandler extends Handler {
     
     private static final int NOTIFY_RENDERING = 11;
 
+    private static final int NOTIFY_LOADED = 12;
+
     private static final long INDEFINITE_TIME = 10000000;
 
     private long pausedPostion = 0;
 
     private boolean quitFlag = true;
 
-    private long mTimeBase;
+    private final ITimeSource mTimeSource = new SyncedTimeSource();
 
     private boolean mReady;
 
@@ -93,30 +109,39 @@ public class DrawHandler extends Handler {
 
     private final RenderingState mRenderingState = new RenderingState();
 
+    private final Area mDirtyArea = new Area();
+
     private int mSkipFrames;
 
-    private static final int MAX_RECORD_SIZE = 500;
+    private Thread mThread;
 
-    private LinkedList<Long> mDrawTimes = new LinkedList<Long>();
+    private Thread mPrepareThread;
 
-    private Thread mThread;
+    private int mLoadedCount;
 
     private final boolean mUpdateInNewThread;
 
-    private long mCordonTime = 30;
-
     private long mFrameUpdateRate = 16;
 
     private long mThresholdTime;
 
-    private long mLastDeltaTime;
-
     private boolean mInSeekingAction;
 
-    private long mRemainingTime;
-
     private boolean mInSyncAction;
 
+    private final QualityController mQualityController = new QualityController();
+
+    private IFrameDriver mFrameDriver;
+
+    private final IFrameDriver.FrameCallback mFrameCallback = new IFrameDriver.FrameCallback() {
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            removeMessages(UPDATE);
+            updateInCurrentThread(frameTimeNanos);
+        }
+    };
+
     public DrawHandler(Looper looper, IDanmakuView view, boolean danmakuVisibile) {
         super(looper);
         mUpdateInNewThread = (Runtime.getRuntime().availableProcessors() > 3);
@@ -127,12 +152,40 @@ public class DrawHandler extends Handler {
         }
         mDanmakusVisible = danmakuVisibile;
         bindView(view);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mFrameDriver = new ChoreographerFrameDriver(looper);
+        } else {
+            mFrameDriver = new SleepingFrameDriver(looper);
+        }
+    }
+
+    /**
+     * 替换帧驱动,例如在测试中使用假时钟
+     * 
+     * @param driver
+     */
+    public void setFrameDriver(IFrameDriver driver) {
+        if (driver == null || driver == mFrameDriver) {
+            return;
+        }
+        mFrameDriver.release();
+        mFrameDriver = driver;
+        mFrameDriver.setFrameInterval(mFrameUpdateRate);
     }
 
     private void bindView(IDanmakuView view) {
         this.mDanmakuView = view;
     }
 
+    /**
+     * 指定绘制用的displayer,需在prepare之前调用,默认使用{@link AndroidDisplayer}
+     * 
+     * @param disp
+     */
+    public void setDisplayer(AbsDisplayer<Canvas> disp) {
+        mDisp = disp;
+    }
+
     public void setParser(BaseDanmakuParser parser) {
         mParser = parser;
     }
@@ -178,7 +231,7 @@ public class DrawHandler extends Handler {
             case RESUME:
                 quitFlag = false;
                 if (mReady) {
-                    mTimeBase = System.currentTimeMillis() - pausedPostion;
+                    mTimeSource.start(pausedPostion);
                     timer.update(pausedPostion);
                     removeMessages(RESUME);
                     sendEmptyMessage(UPDATE);
@@ -191,10 +244,10 @@ public class DrawHandler extends Handler {
                 break;
             case SEEK_POS:
                 quitUpdateThread();
+                mFrameDriver.removeFrameCallback(mFrameCallback);
                 Long position = (Long) msg.obj;
-                long deltaMs = position - timer.currMillisecond;
-                mTimeBase -= deltaMs;
-                timer.update(System.currentTimeMillis() - mTimeBase);
+                mTimeSource.seek(position);
+                timer.update(mTimeSource.getTime());
                 if (drawTask != null)
                     drawTask.seek(timer.currMillisecond);
                 pausedPostion = timer.currMillisecond;
@@ -205,14 +258,14 @@ public class DrawHandler extends Handler {
                 if (mUpdateInNewThread) {
                     updateInNewThread();
                 } else {
-                    updateInCurrentThread();
+                    mFrameDriver.postFrameCallback(mFrameCallback);
                 }
                 break;
             case NOTIFY_DISP_SIZE_CHANGED:
                 DanmakuFactory.notifyDispSizeChanged(mDisp);
                 Boolean updateFlag = (Boolean) msg.obj;
                 if(updateFlag != null && updateFlag){
-                    GlobalFlagValues.updateMeasureFlag();
+                    GlobalFlagValues.updateMeasureFlagIncrementally();
                 }
                 break;
             case SHOW_DANMAKUS:
@@ -252,8 +305,10 @@ public class DrawHandler extends Handler {
             case PAUSE:
             case QUIT:
                 removeCallbacksAndMessages(null);
+                mFrameDriver.removeFrameCallback(mFrameCallback);
                 quitFlag = true;
                 syncTimerIfNeeded();
+                mTimeSource.pause();
                 mSkipFrames = 0;
                 if (mThread != null) {
                     notifyRendering();
@@ -261,6 +316,12 @@ public class DrawHandler extends Handler {
                 }
                 pausedPostion = timer.currMillisecond;
                 if (what == QUIT){
+                    if (mPrepareThread != null) {
+                        mPrepareThread.interrupt();
+                        mPrepareThread = null;
+                    }
+                    mQualityController.reset();
+                    mFrameDriver.release();
                     if (this.drawTask != null){
                         this.drawTask.quit();
                     }
@@ -274,6 +335,13 @@ public class DrawHandler extends Handler {
             case NOTIFY_RENDERING:
                 notifyRendering();
                 break;
+            case NOTIFY_LOADED:
+                mLoadedCount += msg.arg1;
+                if (mCallback instanceof LoadingCallback) {
+                    ((LoadingCallback) mCallback).onDanmakusLoaded(msg.arg1, mLoadedCount);
+                }
+                notifyRendering();
+                break;
         }
     }
 
@@ -284,18 +352,13 @@ public class DrawHandler extends Handler {
         }
     }
 
-    private void updateInCurrentThread() {
+    private void updateInCurrentThread(long frameTimeNanos) {
         if (quitFlag) {
             return;
         }
-        long startMS = System.currentTimeMillis();
-        long d = syncTimer(startMS);
-        if (d < 0) {
-            removeMessages(UPDATE);
-            sendEmptyMessageDelayed(UPDATE, 60 - d);
-            return;
-        }
-        d = mDanmakuView.drawDanmakus();
+        syncTimer(frameTimeNanos);
+        long d = mDanmakuView.drawDanmakus();
+        updateRenderingQuality(d);
         removeMessages(UPDATE);
         if (!mDanmakusVisible) {
             waitRendering(INDEFINITE_TIME);
@@ -307,12 +370,8 @@ public class DrawHandler extends Handler {
                 return;
             }
         }
-
-        if (d < mFrameUpdateRate) {
-            sendEmptyMessageDelayed(UPDATE, mFrameUpdateRate - d);
-            return;
-        }
-        sendEmptyMessage(UPDATE);
+        // 下一帧由帧驱动决定(vsync或按间隔睡眠)
+        mFrameDriver.postFrameCallback(mFrameCallback);
     }
 
     private void updateInNewThread() {
@@ -323,21 +382,15 @@ public class DrawHandler extends Handler {
             @Override
             public void run() {
                 try {
-                    long lastTime = System.currentTimeMillis();
                     long dTime = 0;
                     while (!isInterrupted() && !quitFlag) {
-                        long startMS = System.currentTimeMillis();
-                        dTime = System.currentTimeMillis() - lastTime;
-                        if (dTime < mFrameUpdateRate) {
-                            continue;
+                        long frameTimeNanos = mFrameDriver.awaitFrame();
+                        if (quitFlag) {
+                            break;
                         }
-                        lastTime = startMS;
-                        long d = syncTimer(startMS);
-                        if (d < 0) {
-                            Thread.sleep(60 - d);
-                            continue;
-                        }
-                        d = mDanmakuView.drawDanmakus();
+                        syncTimer(frameTimeNanos);
+                        long d = mDanmakuView.drawDanmakus();
+                        updateRenderingQuality(d);
                         if (!mDanmakusVisible) {
                             waitRendering(INDEFINITE_TIME);
                         } else if (mRenderingState.nothingRendered) {
@@ -356,32 +409,13 @@ public class DrawHandler extends Handler {
         mThread.start();
     }
 
-    private final long syncTimer(long startMS) {
+    private final long syncTimer(long frameTimeNanos) {
         if (mInSeekingAction || mInSyncAction) {
             return 0;
         }
         mInSyncAction = true;
-        long d = 0;
-        long time = startMS - mTimeBase;
-        if (!mDanmakusVisible || mRenderingState.nothingRendered || mRenderingState.inWaitingState) {
-            timer.update(time);
-            mRemainingTime = 0;
-        } else {
-            long gapTime = time - timer.currMillisecond;
-            long averageTime = Math.max(mFrameUpdateRate, getAverageRenderingTime());
-            d = averageTime + gapTime / mFrameUpdateRate;
-            d = Math.max(mFrameUpdateRate, d);
-            d = Math.min(mCordonTime, d);
-            
-            long a = d - mLastDeltaTime;
-            if ((Math.abs(a) < 4)&& d > mFrameUpdateRate && mLastDeltaTime > mFrameUpdateRate) {
-                d = mLastDeltaTime;
-            }
-            mLastDeltaTime = d;
-            mRemainingTime = gapTime;
-            timer.add(d);
-//            Log.e("DrawHandler", "d:" + d  + "a:" + a + "RemaingTime:" + mRemainingTime + ",gapTime:" + gapTime);
-        }
+        // 时间源已做平滑和漂移修正,这里直接采样帧时刻对应的播放位置
+        long d = timer.update(mTimeSource.getTime(frameTimeNanos));
         if (mCallback != null) {
             mCallback.updateTimer(timer);
         }
@@ -389,46 +423,70 @@ public class DrawHandler extends Handler {
         return d;
     }
     
+    private void updateRenderingQuality(long frameTime) {
+        int level = mQualityController.getLevel();
+        mQualityController.setEnabled(DanmakuGlobalConfig.DEFAULT.isAdaptiveQualityEnabled());
+        if (mDanmakusVisible && !mRenderingState.nothingRendered) {
+            mQualityController.onFrameRendered(frameTime);
+        }
+        if (drawTask != null && mQualityController.isPaintStyleChanged(level)) {
+            drawTask.onPaintStyleChanged();
+        }
+    }
+
     private void syncTimerIfNeeded() {
         if (mRenderingState.inWaitingState) {
-            syncTimer(System.currentTimeMillis());
+            syncTimer(System.nanoTime());
         }
     }
     
+    /**
+     * 不再清屏测速:帧间隔交给帧驱动(vsync),绘制慢的设备由{@link QualityController}降级
+     */
     private void initRenderingConfigs() {
-        DanmakuTimer timer = new DanmakuTimer();
-        timer.update(System.nanoTime());
         DrawHelper.useDrawColorToClearCanvas(true);
-        int frameCount = 30;
-        for (int i = 0; i < frameCount; i++) {
-            mDanmakuView.clear();
-        }
-        long consumingTime = timer.update(System.nanoTime());
-        long averageFrameConsumingTime = consumingTime / frameCount / 1000000;
-        mCordonTime = Math.max(33, (long) (averageFrameConsumingTime * 2.5f));
-        mFrameUpdateRate = Math.max(16, averageFrameConsumingTime / 15 * 15);
-        mLastDeltaTime = mFrameUpdateRate;
         mThresholdTime = mFrameUpdateRate + 3;
-//        Log.i("DrawHandler", "initRenderingConfigs test-fps:" + averageFrameConsumingTime + "ms,mCordonTime:"
-//                + mCordonTime + ",mFrameRefreshingRate:" + mFrameUpdateRate);
+        mQualityController.setFrameBudget(mFrameUpdateRate);
+        mFrameDriver.setFrameInterval(mFrameUpdateRate);
     }
 
     private void prepare(final Runnable runnable) {
         if (drawTask == null) {
-            drawTask = createDrawTask(mDanmakuView.isDanmakuDrawingCacheEnabled(), timer,
-                    mDanmakuView.getContext(), mDanmakuView.getWidth(), mDanmakuView.getHeight(),
-                    new IDrawTask.TaskListener() {
+            mLoadedCount = 0;
+            final IDrawTask task = createDrawTask(mDanmakuView.isDanmakuDrawingCacheEnabled(),
+                    timer, mDanmakuView.getContext(), mDanmakuView.getWidth(),
+                    mDanmakuView.getHeight(), new IDrawTask.TaskListener() {
                         @Override
                         public void ready() {
-                            initRenderingConfigs();
-                            runnable.run();
+                            post(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    initRenderingConfigs();
+                                    runnable.run();
+                                }
+                            });
                         }
 
                         @Override
                         public void onDanmakuAdd(BaseDanmaku danmaku) {
                             obtainMessage(NOTIFY_RENDERING).sendToTarget();
                         }
+
+                        @Override
+                        public void onDanmakusLoaded(int count) {
+                            obtainMessage(NOTIFY_LOADED, count, 0).sendToTarget();
+                        }
                     });
+            drawTask = task;
+            // 解析放到后台线程,不阻塞绘制线程
+            mPrepareThread = new Thread("DFM prepare") {
+                @Override
+                public void run() {
+                    task.prepare();
+                }
+            };
+            mPrepareThread.start();
         } else {
             runnable.run();
         }
@@ -440,7 +498,9 @@ public class DrawHandler extends Handler {
 
     private IDrawTask createDrawTask(boolean useDrwaingCache, DanmakuTimer timer, Context context,
             int width, int height, IDrawTask.TaskListener taskListener) {
-        mDisp = new AndroidDisplayer();
+        if (mDisp == null) {
+            mDisp = new AndroidDisplayer();
+        }
         mDisp.setSize(width, height);
         DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
         mDisp.setDensities(displayMetrics.density, displayMetrics.densityDpi,
@@ -452,13 +512,13 @@ public class DrawHandler extends Handler {
                 taskListener, 1024 * 1024 * AndroidUtils.getMemoryClass(context) / 3)
                 : new DrawTask(timer, context, mDisp, taskListener);
         task.setParser(mParser);
-        task.prepare();
         return task;
     }
 
     public void seekTo(Long ms) {
         mInSeekingAction = true;
         removeMessages(DrawHandler.UPDATE);
+        mFrameDriver.removeFrameCallback(mFrameCallback);
         removeMessages(DrawHandler.RESUME);
         removeMessages(DrawHandler.SEEK_POS);
         obtainMessage(DrawHandler.SEEK_POS, ms).sendToTarget();
@@ -511,7 +571,41 @@ public class DrawHandler extends Handler {
             return mRenderingState;
         mDisp.setExtraData(canvas);
         mRenderingState.set(drawTask.draw(mDisp));
-        recordRenderingTime();
+        return mRenderingState;
+    }
+
+    /**
+     * 脏区域模式第一步: 布局当前帧,计算出需要重绘的区域
+     * 
+     * @param dirty 输出,需要重绘的区域(已限制在显示范围内)
+     * @return 画面没有变化时返回false,此时可以跳过本帧的提交
+     */
+    public boolean layout(Rect dirty) {
+        if (drawTask == null) {
+            return false;
+        }
+        RenderingState state = drawTask.layout(mDisp, mDirtyArea);
+        if (state == null) {
+            return false;
+        }
+        mRenderingState.set(state);
+        float[] rect = mDirtyArea.mRefreshRect;
+        dirty.set((int) rect[0], (int) rect[1], (int) Math.ceil(rect[2]), (int) Math.ceil(rect[3]));
+        if (dirty.isEmpty() || !dirty.intersect(0, 0, mDisp.getWidth(), mDisp.getHeight())) {
+            dirty.setEmpty();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 脏区域模式第二步: 在lockCanvas(dirty)得到的画布上重绘
+     */
+    public RenderingState drawDirty(Canvas canvas) {
+        if (drawTask == null)
+            return mRenderingState;
+        mDisp.setExtraData(canvas);
+        mRenderingState.set(drawTask.drawLayout(mDisp));
         return mRenderingState;
     }
     
@@ -524,14 +618,10 @@ public class DrawHandler extends Handler {
         }
         mSkipFrames = 0;
         if (mUpdateInNewThread) {
-            synchronized (this) {
-                mDrawTimes.clear();
-            }
             synchronized (drawTask) {
                 drawTask.notifyAll();
             }
         } else {
-            mDrawTimes.clear();
             removeMessages(UPDATE);
             sendEmptyMessage(UPDATE);
         }
@@ -555,6 +645,7 @@ public class DrawHandler extends Handler {
                 e.printStackTrace();
             }
         } else {
+            mFrameDriver.removeFrameCallback(mFrameCallback);
             if (dTime == INDEFINITE_TIME) {
                 removeMessages(NOTIFY_RENDERING);
                 removeMessages(UPDATE);
@@ -566,24 +657,6 @@ public class DrawHandler extends Handler {
         }
     }
 
-    private synchronized long getAverageRenderingTime() {
-        int frames = mDrawTimes.size();
-        if(frames <= 0)
-            return 0;
-        long dtime = mDrawTimes.getLast() - mDrawTimes.getFirst();
-        return dtime / frames;
-    }
-
-    private synchronized void recordRenderingTime() {
-        long lastTime = System.currentTimeMillis();
-        mDrawTimes.addLast(lastTime);
-        int frames = mDrawTimes.size();
-        if (frames > MAX_RECORD_SIZE) {
-            mDrawTimes.removeFirst();
-            frames = MAX_RECORD_SIZE;
-        }
-    }
-    
     public IDisplayer getDisplayer(){
         return mDisp;
     }
@@ -612,9 +685,21 @@ public class DrawHandler extends Handler {
 
     public long getCurrentTime() {
         if (quitFlag || !mRenderingState.inWaitingState) {
-            return timer.currMillisecond - mRemainingTime;
+            return timer.currMillisecond;
+        }
+        return mTimeSource.getTime();
+    }
+
+    /**
+     * 同步宿主播放器的播放位置,用于修正弹幕时间与视频之间的漂移
+     * 
+     * @param position 毫秒
+     */
+    public void syncPlayerPosition(long position) {
+        if (quitFlag || mInSeekingAction) {
+            return;
         }
-        return System.currentTimeMillis() - mTimeBase;
+        mTimeSource.syncPosition(position);
     }
 
 }
@@ -43,15 +43,28 @@ public class DrawHelper {
     }
 
     public static void drawFPS(Canvas canvas, String text) {
+        ensureFpsPaint();
+        int top = canvas.getHeight() - 50;
+        
+        clearCanvas(canvas, 10, top - 50, (int) (PAINT_FPS.measureText(text) + 20), canvas.getHeight());
+        canvas.drawText(text, 10, top, PAINT_FPS);
+    }
+
+    public static void drawFPS(Canvas canvas, char[] text, int length) {
+        ensureFpsPaint();
+        int top = canvas.getHeight() - 50;
+
+        clearCanvas(canvas, 10, top - 50, (int) (PAINT_FPS.measureText(text, 0, length) + 20),
+                canvas.getHeight());
+        canvas.drawText(text, 0, length, 10, top, PAINT_FPS);
+    }
+
+    private static void ensureFpsPaint() {
         if (PAINT_FPS == null) {
             PAINT_FPS = new Paint();
             PAINT_FPS.setColor(Color.RED);
             PAINT_FPS.setTextSize(30);
         }
-        int top = canvas.getHeight() - 50;
-        
-        clearCanvas(canvas, 10, top - 50, (int) (PAINT_FPS.measureText(text) + 20), canvas.getHeight());
-        canvas.drawText(text, 10, top, PAINT_FPS);
     }
 
     public static void clearCanvas(Canvas canvas) {
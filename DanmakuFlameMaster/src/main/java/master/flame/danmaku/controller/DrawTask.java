@@ -18,6 +18,7 @@ package master.flame.danmaku.controller;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 
 import master.flame.danmaku.danmaku.model.AbsDisplayer;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
@@ -32,15 +33,21 @@ import master.flame.danmaku.danmaku.model.android.DanmakuGlobalConfig.ConfigChan
 import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
 import master.flame.danmaku.danmaku.parser.DanmakuFactory;
 import master.flame.danmaku.danmaku.renderer.IRenderer;
+import master.flame.danmaku.danmaku.renderer.IRenderer.Area;
 import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
 import master.flame.danmaku.danmaku.renderer.android.DanmakuRenderer;
+import master.flame.danmaku.danmaku.renderer.android.DanmakusRetainer;
 import master.flame.danmaku.danmaku.util.AndroidCounter;
+import master.flame.danmaku.danmaku.util.StringInterner;
+
+import java.util.Iterator;
+import java.util.LinkedList;
 
 public class DrawTask implements IDrawTask, ConfigChangedCallback {
     
     protected AbsDisplayer<?> mDisp;
 
-    protected IDanmakus danmakuList;
+    protected volatile IDanmakus danmakuList;
 
     protected BaseDanmakuParser mParser;
 
@@ -68,6 +75,26 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
 
     private long mLastEndMills;
 
+    private final Rect mClipBounds = new Rect();
+
+    private final Area mClipArea = new Area();
+
+    private RemeasureService mRemeasureService;
+
+    private int mMeasureFlag;
+
+    private volatile boolean mDanmakuListChanged;
+
+    /**
+     * 已从danmakuList移除的直播弹幕,等渲染和过滤器不再引用、缓存也已释放后放回对象池
+     */
+    private final LinkedList<BaseDanmaku> mRecycleQueue = new LinkedList<BaseDanmaku>();
+
+    /**
+     * 后台解析期间加入的弹幕,danmakuList就绪后再加入
+     */
+    private final LinkedList<BaseDanmaku> mPendingDanmakus = new LinkedList<BaseDanmaku>();
+
     public DrawTask(DanmakuTimer timer, Context context, AbsDisplayer<?> disp,
             TaskListener taskListener) {
         mTaskListener = taskListener;
@@ -92,14 +119,22 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
 
     @Override
     public void addDanmaku(BaseDanmaku item) {
-        if (danmakuList == null)
-            return;
+        if (danmakuList == null) {
+            synchronized (mPendingDanmakus) {
+                if (danmakuList == null) {
+                    mPendingDanmakus.add(item);
+                    return;
+                }
+            }
+        }
         boolean added = false;
         synchronized (danmakuList) {
             if(item.isLive) {
                 removeUnusedLiveDanmakusIn(10);
             }
             item.index = danmakuList.size();
+            item.text = StringInterner.DEFAULT.intern(item.text);
+            item.userHash = StringInterner.DEFAULT.intern(item.userHash);
             if (mLastBeginMills <= item.time && item.time <= mLastEndMills) {
                 synchronized (danmakus) {
                     added = danmakus.addItem(item);
@@ -125,13 +160,18 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
 
     @Override
     public void removeAllLiveDanmakus() {
-        if (danmakus == null || danmakus.isEmpty())
+        if (danmakuList == null || danmakus == null || danmakus.isEmpty())
             return;
-        synchronized (danmakus) {
-            IDanmakuIterator it = danmakus.iterator();
-            while (it.hasNext()) {
-                if (it.next().isLive) {
-                    it.remove();
+        synchronized (danmakuList) {
+            synchronized (danmakus) {
+                IDanmakuIterator it = danmakus.iterator();
+                while (it.hasNext()) {
+                    BaseDanmaku danmaku = it.next();
+                    if (danmaku.isLive) {
+                        it.remove();
+                        // 当前窗口是danmakuList的拷贝,原集合也要删掉
+                        danmakuList.removeItem(danmaku);
+                    }
                 }
             }
         }
@@ -148,11 +188,36 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
                 boolean isTimeout = danmaku.isTimeOut();
                 if (isTimeout && danmaku.isLive) {
                     it.remove();
+                    danmakus.removeItem(danmaku);
+                    mRecycleQueue.add(danmaku);
                 }
                 if (!isTimeout || System.currentTimeMillis() - startTime > msec) {
                     break;
                 }
             }
+            recycleRemovedDanmakus();
+        }
+    }
+
+    /**
+     * 超时后再过一个弹幕时长才回收,此时渲染器的上一帧记录已不再引用它;
+     * 过滤器的时间轮只在有弹幕经过过滤时前进,不能指望它已清掉,回收前显式删除.
+     * 缓存仍未释放的留到下次
+     */
+    private void recycleRemovedDanmakus() {
+        long time = mTimer.currMillisecond - DanmakuFactory.MAX_DANMAKU_DURATION;
+        Iterator<BaseDanmaku> it = mRecycleQueue.iterator();
+        while (it.hasNext()) {
+            BaseDanmaku danmaku = it.next();
+            if (!danmaku.isTimeOut(time)) {
+                break;
+            }
+            if (danmaku.cache == null) {
+                it.remove();
+                DanmakusRetainer.remove(danmaku);
+                DanmakuFilters.getDefault().remove(danmaku);
+                DanmakuFactory.recycleDanmaku(danmaku);
+            }
         }
     }
 
@@ -161,6 +226,29 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
         return drawDanmakus(displayer,mTimer);
     }
 
+    @Override
+    public RenderingState layout(AbsDisplayer<?> displayer, Area dirtyArea) {
+        return layoutDanmakus(displayer, mTimer, dirtyArea);
+    }
+
+    @Override
+    public RenderingState drawLayout(AbsDisplayer<?> displayer) {
+        if (danmakuList == null) {
+            return null;
+        }
+        Canvas canvas = (Canvas) displayer.getExtraData();
+        // lockCanvas(dirty)可能会扩大脏区域,以画布实际的裁剪区域为准
+        if (!canvas.getClipBounds(mClipBounds)) {
+            return mRenderingState;
+        }
+        DrawHelper.clearCanvas(canvas);
+        mClipArea.set(mClipBounds.left, mClipBounds.top, mClipBounds.right, mClipBounds.bottom);
+        synchronized (danmakuList) {
+            mRenderer.drawArea(mDisp, mClipArea);
+        }
+        return mRenderingState;
+    }
+
     @Override
     public void reset() {
         if (danmakus != null)
@@ -184,6 +272,10 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
 
     @Override
     public void quit() {
+        if (mRemeasureService != null) {
+            mRemeasureService.quit();
+            mRemeasureService = null;
+        }
         if (mRenderer != null)
             mRenderer.release();
         DanmakuGlobalConfig.DEFAULT.unregisterConfigChangedCallback(this);
@@ -199,8 +291,44 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
     }
 
     protected void loadDanmakus(BaseDanmakuParser parser) {
-        danmakuList = parser.setDisplayer(mDisp).setTimer(mTimer).getDanmakus();
+        parser.setParseListener(new BaseDanmakuParser.ParseListener() {
+
+            @Override
+            public void onDanmakusParsed(int count) {
+                mDanmakuListChanged = true;
+                onDanmakusAdded();
+                if (mTaskListener != null) {
+                    mTaskListener.onDanmakusLoaded(count);
+                }
+            }
+        });
+        IDanmakus list = parser.setDisplayer(mDisp).setTimer(mTimer).getDanmakus();
+        synchronized (mPendingDanmakus) {
+            danmakuList = list;
+        }
+        mDanmakuListChanged = false;
         GlobalFlagValues.resetAll();
+        mMeasureFlag = GlobalFlagValues.MEASURE_RESET_FLAG;
+        addPendingDanmakus();
+    }
+
+    private void addPendingDanmakus() {
+        while (true) {
+            BaseDanmaku item;
+            synchronized (mPendingDanmakus) {
+                item = mPendingDanmakus.poll();
+            }
+            if (item == null) {
+                return;
+            }
+            addDanmaku(item);
+        }
+    }
+
+    /**
+     * 增量解析的parser有新一批弹幕加入danmakuList,在解析线程回调
+     */
+    protected void onDanmakusAdded() {
     }
 
     public void setParser(BaseDanmakuParser parser) {
@@ -212,40 +340,101 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
         if (danmakuList != null) {
             Canvas canvas = (Canvas) disp.getExtraData();
             DrawHelper.clearCanvas(canvas);
-            long beginMills = timer.currMillisecond - DanmakuFactory.MAX_DANMAKU_DURATION - 100;
-            long endMills = timer.currMillisecond + DanmakuFactory.MAX_DANMAKU_DURATION;
-            if(mLastBeginMills > beginMills || timer.currMillisecond > mLastEndMills) {
-                IDanmakus subDanmakus = danmakuList.sub(beginMills, endMills);
-                if(subDanmakus != null) {
-                    danmakus = subDanmakus;
-                } else {
-                    danmakus.clear();
-                }
-                mLastBeginMills = beginMills;
-                mLastEndMills = endMills;
+            synchronized (danmakuList) {
+                return renderDanmakus(timer, null);
+            }
+        }
+        return null;
+    }
+
+    protected RenderingState layoutDanmakus(AbsDisplayer<?> disp, DanmakuTimer timer,
+            Area dirtyArea) {
+        if (danmakuList == null) {
+            return null;
+        }
+        RenderingState renderingState;
+        synchronized (danmakuList) {
+            renderingState = renderDanmakus(timer, dirtyArea);
+        }
+        if (clearFlag > 0) {
+            clearFlag--;
+            dirtyArea.setEdge(disp.getWidth(), disp.getHeight());
+            dirtyArea.resizeToMax();
+        }
+        return renderingState;
+    }
+
+    private RenderingState renderDanmakus(DanmakuTimer timer, Area dirtyArea) {
+        if (mMeasureFlag != GlobalFlagValues.MEASURE_RESET_FLAG) {
+            mMeasureFlag = GlobalFlagValues.MEASURE_RESET_FLAG;
+            requestRemeasure(timer.currMillisecond);
+        }
+        if (mDanmakuListChanged) {
+            // 新解析出的弹幕不一定按时间排在已有弹幕之后,当前窗口需要重新截取
+            mDanmakuListChanged = false;
+            mLastBeginMills = mLastEndMills = 0;
+        }
+        long beginMills = timer.currMillisecond - DanmakuFactory.MAX_DANMAKU_DURATION - 100;
+        long endMills = timer.currMillisecond + DanmakuFactory.MAX_DANMAKU_DURATION;
+        if(mLastBeginMills > beginMills || timer.currMillisecond > mLastEndMills) {
+            IDanmakus subDanmakus = danmakuList.sub(beginMills, endMills);
+            if(subDanmakus != null) {
+                danmakus = subDanmakus;
             } else {
-                beginMills = mLastBeginMills;
-                endMills = mLastEndMills;
+                danmakus.clear();
             }
-            if (danmakus != null && !danmakus.isEmpty()) {
-                RenderingState renderingState = mRenderingState = mRenderer.draw(mDisp, danmakus, mStartRenderTime);
-                if (renderingState.nothingRendered) {
-                    if (renderingState.beginTime == RenderingState.UNKNOWN_TIME) {
-                        renderingState.beginTime = beginMills;
-                    }
-                    if (renderingState.endTime == RenderingState.UNKNOWN_TIME) {
-                        renderingState.endTime = endMills;
-                    }
+            mLastBeginMills = beginMills;
+            mLastEndMills = endMills;
+        } else {
+            beginMills = mLastBeginMills;
+            endMills = mLastEndMills;
+        }
+        if (danmakus != null && !danmakus.isEmpty()) {
+            RenderingState renderingState = mRenderingState = dirtyArea == null ? mRenderer.draw(
+                    mDisp, danmakus, mStartRenderTime) : mRenderer.layout(mDisp, danmakus,
+                    mStartRenderTime, dirtyArea);
+            if (renderingState.nothingRendered) {
+                if (renderingState.beginTime == RenderingState.UNKNOWN_TIME) {
+                    renderingState.beginTime = beginMills;
                 }
-                return renderingState;
-            } else {
-                mRenderingState.nothingRendered = true;
-                mRenderingState.beginTime = beginMills;
-                mRenderingState.endTime = endMills;
-                return mRenderingState;
+                if (renderingState.endTime == RenderingState.UNKNOWN_TIME) {
+                    renderingState.endTime = endMills;
+                }
+            }
+            return renderingState;
+        } else {
+            if (dirtyArea != null) {
+                // 仍需布局一次,以便擦除上一帧留下的弹幕
+                mRenderingState = mRenderer.layout(mDisp, danmakus, mStartRenderTime, dirtyArea);
             }
+            mRenderingState.nothingRendered = true;
+            mRenderingState.beginTime = beginMills;
+            mRenderingState.endTime = endMills;
+            return mRenderingState;
         }
-        return null;
+    }
+
+    private void requestRemeasure(long playTime) {
+        if (mRemeasureService != null && !mRemeasureService.isServing(danmakuList)) {
+            // loadDanmakus换了弹幕集合
+            mRemeasureService.quit();
+            mRemeasureService = null;
+        }
+        if (mRemeasureService == null) {
+            mRemeasureService = new RemeasureService(danmakuList, mDisp,
+                    new RemeasureService.Listener() {
+
+                        @Override
+                        public void onRemeasured(int count) {
+                            // 尺寸变了,图层要重建,局部刷新要整屏重绘一次
+                            mRenderer.invalidateLayers();
+                            if (clearFlag <= 0) {
+                                clearFlag = 1;
+                            }
+                        }
+                    });
+        }
+        mRemeasureService.requestRemeasure(playTime);
     }
 
     public void requestClear() {
@@ -253,10 +442,22 @@ public class DrawTask implements IDrawTask, ConfigChangedCallback {
         mLastBeginMills = mLastEndMills = 0;
     }
 
+    @Override
+    public void onPaintStyleChanged() {
+        // 描边宽度计入measure结果,交给RemeasureService逐批重新measure
+        GlobalFlagValues.updateMeasureFlagIncrementally();
+    }
+
     @Override
     public boolean onDanmakuConfigChanged(DanmakuGlobalConfig config, DanmakuConfigTag tag,
             Object... values) {
-        if (tag == null || tag.equals(DanmakuConfigTag.MAXIMUM_NUMS_IN_SCREEN)) {
+        if (mRenderer != null) {
+            // 可见性和样式的变化都要重建固定弹幕图层
+            mRenderer.invalidateLayers();
+        }
+        if (tag == null || tag.equals(DanmakuConfigTag.MAXIMUM_NUMS_IN_SCREEN)
+                || tag.equals(DanmakuConfigTag.ADAPTIVE_QUALITY_ENABLED)
+                || tag.equals(DanmakuConfigTag.LAYERED_RENDERING_ENABLED)) {
             return true;
         }
         if (tag.equals(DanmakuConfigTag.DUPLICATE_MERGING_ENABLED)) {
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.controller;
+
+import android.graphics.Canvas;
+
+import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
+import master.flame.danmaku.danmaku.util.LongRingBuffer;
+
+/**
+ * 统计并绘制fps,文字写进复用的char数组,
+ * 代替每帧String.format("fps %.2f,time:%d s,cache:%d,miss:%d")
+ */
+public class FpsCounter {
+
+    private static final int MAX_RECORD_SIZE = 50;
+
+    private static final int ONE_SECOND = 1000;
+
+    private final LongRingBuffer mDrawTimes = new LongRingBuffer(MAX_RECORD_SIZE);
+
+    private final char[] mText = new char[96];
+
+    private int mLength;
+
+    public float fps() {
+        long lastTime = System.currentTimeMillis();
+        mDrawTimes.addLast(lastTime);
+        float dtime = lastTime - mDrawTimes.getFirst();
+        return dtime > 0 ? mDrawTimes.size() * ONE_SECOND / dtime : 0.0f;
+    }
+
+    public void clear() {
+        mDrawTimes.clear();
+    }
+
+    public void draw(Canvas canvas, long currentTime, RenderingState rs) {
+        DrawHelper.drawFPS(canvas, mText, format(currentTime, rs));
+    }
+
+    /**
+     * 文字写入mText,与绘制分开便于脱离Canvas检查
+     * @return 文字长度
+     */
+    int format(long currentTime, RenderingState rs) {
+        mLength = 0;
+        append("fps ");
+        appendFixed2(fps());
+        append(",time:");
+        append(currentTime / 1000);
+        append(" s,cache:");
+        append(rs.cacheHitCount);
+        append(",miss:");
+        append(rs.cacheMissCount);
+        return mLength;
+    }
+
+    private void append(String s) {
+        int length = Math.min(s.length(), mText.length - mLength);
+        s.getChars(0, length, mText, mLength);
+        mLength += length;
+    }
+
+    private void append(long value) {
+        if (value < 0) {
+            appendChar('-');
+            value = -value;
+        }
+        int start = mLength;
+        do {
+            appendChar((char) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        // 低位先写入,翻转
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            char c = mText[i];
+            mText[i] = mText[j];
+            mText[j] = c;
+        }
+    }
+
+    private void appendFixed2(float value) {
+        long hundredths = Math.round(value * 100);
+        append(hundredths / 100);
+        appendChar('.');
+        long fraction = Math.abs(hundredths % 100);
+        appendChar((char) ('0' + fraction / 10));
+        appendChar((char) ('0' + fraction % 10));
+    }
+
+    private void appendChar(char c) {
+        if (mLength < mText.length) {
+            mText[mLength++] = c;
+        }
+    }
+
+}
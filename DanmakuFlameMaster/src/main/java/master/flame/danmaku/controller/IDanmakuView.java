@@ -30,6 +30,12 @@ public interface IDanmakuView {
 
     public void enableDanmakuDrawingCache(boolean enable);
 
+    /**
+     * 只清除并重绘发生变化的区域,画面静止时不提交缓冲区.显示FPS时不生效
+     * @param enable
+     */
+    public void enableDirtyRegionRendering(boolean enable);
+
     public boolean isDanmakuDrawingCacheEnabled();
 
     public void showFPS(boolean show);
@@ -70,6 +76,12 @@ public interface IDanmakuView {
 
     public void seekTo(Long ms);
 
+    /**
+     * 播放过程中定期(例如每秒)上报视频的播放位置,弹幕时间会平滑地向其靠拢
+     * @param ms 视频当前的播放位置
+     */
+    public void syncPlayerPosition(long ms);
+
     public void start();
 
     public void start(long postion);
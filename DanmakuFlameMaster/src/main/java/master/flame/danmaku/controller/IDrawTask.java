@@ -19,6 +19,7 @@ package master.flame.danmaku.controller;
 import master.flame.danmaku.danmaku.model.AbsDisplayer;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
+import master.flame.danmaku.danmaku.renderer.IRenderer.Area;
 import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
 
 public interface IDrawTask {
@@ -31,6 +32,16 @@ public interface IDrawTask {
 
     public RenderingState draw(AbsDisplayer<?> displayer);
 
+    /**
+     * 脏区域模式: 布局当前帧并计算需要重绘的区域
+     */
+    public RenderingState layout(AbsDisplayer<?> displayer, Area dirtyArea);
+
+    /**
+     * 脏区域模式: 清除并重绘画布裁剪区域内最近一次layout的结果
+     */
+    public RenderingState drawLayout(AbsDisplayer<?> displayer);
+
     public void reset();
 
     public void seek(long mills);
@@ -39,16 +50,32 @@ public interface IDrawTask {
 
     public void quit();
 
+    /**
+     * 解析弹幕,耗时操作,不要在绘制线程调用.解析出可以播放的弹幕后回调{@link TaskListener#ready()}
+     */
     public void prepare();
     
     public void requestClear();
 
+    /**
+     * 绘制样式变化(如降级关闭了描边或抗锯齿).已有的缓存继续使用直到超时,
+     * 之后建的缓存使用新样式
+     */
+    public void onPaintStyleChanged();
+
     public void setParser(BaseDanmakuParser parser);
 
     public interface TaskListener {
         public void ready();
         
         public void onDanmakuAdd(BaseDanmaku danmaku);
+
+        /**
+         * parser有一批弹幕并入,在解析线程回调
+         * 
+         * @param count 本批数量
+         */
+        public void onDanmakusLoaded(int count);
     }
 
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.controller;
+
+/**
+ * 帧驱动:决定何时绘制下一帧以及这一帧的时间戳.
+ * 默认实现基于Choreographer(vsync),低版本使用睡眠等待;测试时可替换为假时钟
+ */
+public interface IFrameDriver {
+
+    public interface FrameCallback {
+        /**
+         * @param frameTimeNanos 帧时间戳,与System.nanoTime()同一基准
+         */
+        public void doFrame(long frameTimeNanos);
+    }
+
+    /**
+     * 设置两帧之间的最小间隔(毫秒)
+     */
+    public void setFrameInterval(long intervalMillis);
+
+    /**
+     * 在绘制线程的Looper上,下一帧到来时回调一次
+     */
+    public void postFrameCallback(FrameCallback callback);
+
+    public void removeFrameCallback(FrameCallback callback);
+
+    /**
+     * 在独立的更新线程中阻塞等待下一帧
+     * 
+     * @return 帧时间戳,与System.nanoTime()同一基准
+     */
+    public long awaitFrame() throws InterruptedException;
+
+    public void release();
+
+}
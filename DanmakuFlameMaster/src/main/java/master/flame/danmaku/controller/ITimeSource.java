@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.controller;
+
+/**
+ * 弹幕播放时间源,基于单调时钟(System.nanoTime),不受系统时间修改影响.
+ * 宿主播放器可以通过{@link #syncPosition(long)}不断上报视频的播放位置,时间源据此修正漂移
+ */
+public interface ITimeSource {
+
+    /**
+     * 从指定位置开始计时
+     * 
+     * @param position 毫秒
+     */
+    public void start(long position);
+
+    /**
+     * 停止计时,时间停留在当前位置
+     */
+    public void pause();
+
+    /**
+     * 跳转到指定位置,保持当前的运行/暂停状态
+     * 
+     * @param position 毫秒
+     */
+    public void seek(long position);
+
+    /**
+     * 上报宿主播放器的当前播放位置,可在任意线程调用
+     * 
+     * @param position 毫秒
+     */
+    public void syncPosition(long position);
+
+    /**
+     * @param frameTimeNanos 帧时间戳(System.nanoTime基准)
+     * @return 该时刻对应的播放位置(毫秒)
+     */
+    public long getTime(long frameTimeNanos);
+
+    /**
+     * @return 当前的播放位置(毫秒)
+     */
+    public long getTime();
+
+}
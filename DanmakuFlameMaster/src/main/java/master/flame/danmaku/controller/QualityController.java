@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.controller;
+
+import master.flame.danmaku.controller.DanmakuFilters.IDanmakuFilter;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+
+/**
+ * 根据最近的绘制耗时逐级降低/恢复绘制质量:
+ * 关闭描边阴影 -> 关闭抗锯齿 -> 稀疏低优先级弹幕 -> 限制同屏滚动弹幕总数.
+ * 降级快,恢复慢(滞后),避免在临界点来回切换
+ */
+public class QualityController {
+
+    public static final int LEVEL_FULL = 0;
+
+    public static final int LEVEL_NO_STROKE_SHADOW = 1;
+
+    public static final int LEVEL_NO_ANTI_ALIAS = 2;
+
+    public static final int LEVEL_THIN_LOW_PRIORITY = 3;
+
+    public static final int LEVEL_CAP_SCROLL_DENSITY = 4;
+
+    /**
+     * 超过预算的比例时降级
+     */
+    private static final float DEGRADE_RATIO = 1.25f;
+
+    /**
+     * 低于预算的比例时恢复
+     */
+    private static final float RESTORE_RATIO = 0.7f;
+
+    /**
+     * 两次降级之间至少间隔的帧数
+     */
+    private static final int DEGRADE_HOLD_FRAMES = 30;
+
+    /**
+     * 两次恢复之间至少间隔的帧数
+     */
+    private static final int RESTORE_HOLD_FRAMES = 180;
+
+    private static final float SMOOTHING = 0.1f;
+
+    private long mFrameBudget = 16;
+
+    private float mAverageFrameTime = -1;
+
+    private int mFramesSinceChange;
+
+    private int mLevel = LEVEL_FULL;
+
+    private boolean mEnabled;
+
+    public void setFrameBudget(long budget) {
+        mFrameBudget = Math.max(1, budget);
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (mEnabled == enabled) {
+            return;
+        }
+        mEnabled = enabled;
+        reset();
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * 与oldLevel相比描边阴影或抗锯齿是否有变化,有变化时要重新measure,新建的缓存使用新样式
+     */
+    public boolean isPaintStyleChanged(int oldLevel) {
+        return Math.min(oldLevel, LEVEL_NO_ANTI_ALIAS) != Math.min(mLevel, LEVEL_NO_ANTI_ALIAS);
+    }
+
+    /**
+     * 每绘制一帧调用一次
+     *
+     * @param frameTime 本帧绘制耗时(毫秒)
+     */
+    public void onFrameRendered(long frameTime) {
+        if (!mEnabled || frameTime < 0) {
+            return;
+        }
+        if (mAverageFrameTime < 0) {
+            mAverageFrameTime = frameTime;
+        } else {
+            mAverageFrameTime += (frameTime - mAverageFrameTime) * SMOOTHING;
+        }
+        mFramesSinceChange++;
+        if (mAverageFrameTime > mFrameBudget * DEGRADE_RATIO) {
+            if (mLevel < LEVEL_CAP_SCROLL_DENSITY && mFramesSinceChange >= DEGRADE_HOLD_FRAMES) {
+                applyLevel(mLevel + 1);
+            }
+        } else if (mAverageFrameTime < mFrameBudget * RESTORE_RATIO) {
+            if (mLevel > LEVEL_FULL && mFramesSinceChange >= RESTORE_HOLD_FRAMES) {
+                applyLevel(mLevel - 1);
+            }
+        }
+    }
+
+    public void reset() {
+        mAverageFrameTime = -1;
+        applyLevel(LEVEL_FULL);
+    }
+
+    private void applyLevel(int level) {
+        mFramesSinceChange = 0;
+        if (mLevel == level) {
+            return;
+        }
+        mLevel = level;
+        AndroidDisplayer.setQualityDegraded(level >= LEVEL_NO_STROKE_SHADOW,
+                level >= LEVEL_NO_ANTI_ALIAS);
+        if (level >= LEVEL_THIN_LOW_PRIORITY) {
+            @SuppressWarnings("unchecked")
+            IDanmakuFilter<Integer> filter = (IDanmakuFilter<Integer>) DanmakuFilters
+                    .getDefault().get(DanmakuFilters.TAG_QUALITY_FILTER);
+            filter.setData(level);
+        } else {
+            DanmakuFilters.getDefault().unregisterFilter(DanmakuFilters.TAG_QUALITY_FILTER);
+        }
+    }
+
+}
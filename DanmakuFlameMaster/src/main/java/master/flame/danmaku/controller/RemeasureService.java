@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.controller;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import master.flame.danmaku.danmaku.model.AbsDisplayer;
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.parser.DanmakuFactory;
+
+/**
+ * 字号缩放,滚动速度,画面尺寸等变化后,在后台线程逐批重新measure弹幕.
+ * 从当前播放位置向两侧按时间段展开,离播放位置越近越先measure;
+ * 在此之前弹幕继续使用旧的measure结果,绘制线程不用在一帧内measure所有弹幕.
+ * 只处理播放位置附近{@link #MAX_STEPS}段,更远的弹幕进入屏幕时由绘制线程measure
+ */
+public class RemeasureService {
+
+    public interface Listener {
+
+        /**
+         * 一批弹幕已重新measure,在后台线程回调
+         */
+        public void onRemeasured(int count);
+
+    }
+
+    private static final int REMEASURE = 0x1;
+
+    private static final int MEASURE_BATCH = 0x2;
+
+    private static final int QUIT = 0x3;
+
+    /**
+     * 每批最多measure的数量,每批持有一次锁
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * 向每侧展开的最多段数,每段一个弹幕时长
+     */
+    private static final int MAX_STEPS = 4;
+
+    private final IDanmakus mDanmakus;
+
+    private final AbsDisplayer<?> mDisp;
+
+    private final Listener mListener;
+
+    private HandlerThread mThread;
+
+    private RemeasureHandler mHandler;
+
+    /**
+     * 当前这一段里需要重新measure的弹幕,按时间排序
+     */
+    private BaseDanmaku[] mItems = new BaseDanmaku[BATCH_SIZE];
+
+    private int mItemCount;
+
+    /**
+     * 向前(时间更早)的游标
+     */
+    private int mLower;
+
+    /**
+     * 向后(时间更晚)的游标
+     */
+    private int mUpper;
+
+    private long mPlayTime;
+
+    /**
+     * 已展开的时间范围[mLowerTime, mUpperTime)
+     */
+    private long mLowerTime;
+
+    private long mUpperTime;
+
+    private int mSteps;
+
+    public RemeasureService(IDanmakus danmakus, AbsDisplayer<?> disp, Listener listener) {
+        mDanmakus = danmakus;
+        mDisp = disp;
+        mListener = listener;
+    }
+
+    /**
+     * 重新measure所有measure结果已过期的弹幕,会取消上一次未完成的请求
+     * 
+     * @param playTime 当前播放时间,由此向两侧展开
+     */
+    public void requestRemeasure(long playTime) {
+        if (mThread == null) {
+            mThread = new HandlerThread("DFM Remeasure Thread");
+            mThread.start();
+            mHandler = new RemeasureHandler(mThread);
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.obtainMessage(REMEASURE, playTime).sendToTarget();
+    }
+
+    public boolean isServing(IDanmakus danmakus) {
+        return mDanmakus == danmakus;
+    }
+
+    public void quit() {
+        if (mHandler != null) {
+            mHandler.removeCallbacksAndMessages(null);
+            mHandler.sendEmptyMessage(QUIT);
+            mHandler = null;
+        }
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mThread = null;
+        }
+    }
+
+    /**
+     * 不用集合共用的迭代器,绘制线程可能同时在遍历
+     */
+    private final IDanmakus.Consumer mCollector = new IDanmakus.Consumer() {
+
+        @Override
+        public int accept(BaseDanmaku danmaku) {
+            if (danmaku.needRemeasure()) {
+                if (mItemCount >= mItems.length) {
+                    BaseDanmaku[] items = new BaseDanmaku[mItemCount * 2];
+                    System.arraycopy(mItems, 0, items, 0, mItemCount);
+                    mItems = items;
+                }
+                mItems[mItemCount++] = danmaku;
+            }
+            return ACTION_CONTINUE;
+        }
+    };
+
+    private void start(long playTime) {
+        clearItems();
+        mPlayTime = playTime;
+        mLowerTime = mUpperTime = playTime;
+        mSteps = 0;
+    }
+
+    /**
+     * 向两侧各展开一段,只在这一小段内持锁遍历
+     *
+     * @return 已到达展开上限时返回false
+     */
+    private boolean expand() {
+        if (mSteps >= MAX_STEPS) {
+            return false;
+        }
+        mSteps++;
+        long step = DanmakuFactory.MAX_DANMAKU_DURATION;
+        clearItems();
+        collect(mLowerTime - step, mLowerTime);
+        int lowerCount = mItemCount;
+        collect(mUpperTime, mUpperTime + step);
+        mLowerTime -= step;
+        mUpperTime += step;
+        mLower = lowerCount - 1;
+        mUpper = lowerCount;
+        return true;
+    }
+
+    private void collect(long startTime, long endTime) {
+        synchronized (mDanmakus) {
+            IDanmakus danmakus = mDanmakus.subnew(startTime, endTime);
+            if (danmakus != null) {
+                danmakus.forEach(mCollector);
+            }
+        }
+    }
+
+    /**
+     * @return 是否还有未measure的弹幕
+     */
+    private boolean measureBatch() {
+        while (mLower < 0 && mUpper >= mItemCount) {
+            if (!expand()) {
+                return false;
+            }
+        }
+        int measured = 0;
+        synchronized (mDanmakus) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                BaseDanmaku item = next();
+                if (item == null) {
+                    break;
+                }
+                // 可能已经被绘制线程或缓存线程measure过
+                if (item.needRemeasure()) {
+                    item.measure(mDisp);
+                    measured++;
+                }
+            }
+        }
+        if (measured > 0 && mListener != null) {
+            mListener.onRemeasured(measured);
+        }
+        return true;
+    }
+
+    private BaseDanmaku next() {
+        BaseDanmaku item;
+        boolean hasLower = mLower >= 0;
+        boolean hasUpper = mUpper < mItemCount;
+        if (hasLower && (!hasUpper
+                || mPlayTime - mItems[mLower].time < mItems[mUpper].time - mPlayTime)) {
+            item = mItems[mLower];
+            mItems[mLower--] = null;
+        } else if (hasUpper) {
+            item = mItems[mUpper];
+            mItems[mUpper++] = null;
+        } else {
+            item = null;
+        }
+        return item;
+    }
+
+    private void clearItems() {
+        for (int i = 0; i < mItemCount; i++) {
+            mItems[i] = null;
+        }
+        mItemCount = 0;
+        mLower = -1;
+        mUpper = 0;
+    }
+
+    private class RemeasureHandler extends Handler {
+
+        private int mMeasureFlag;
+
+        public RemeasureHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case REMEASURE:
+                    mMeasureFlag = GlobalFlagValues.MEASURE_RESET_FLAG;
+                    start((Long) msg.obj);
+                    sendEmptyMessage(MEASURE_BATCH);
+                    break;
+                case MEASURE_BATCH:
+                    if (mMeasureFlag != GlobalFlagValues.MEASURE_RESET_FLAG) {
+                        // 配置又变了,等待新的请求
+                        clearItems();
+                        break;
+                    }
+                    if (measureBatch()) {
+                        sendEmptyMessage(MEASURE_BATCH);
+                    } else {
+                        clearItems();
+                    }
+                    break;
+                case QUIT:
+                    clearItems();
+                    getLooper().quit();
+                    break;
+            }
+        }
+    }
+
+}
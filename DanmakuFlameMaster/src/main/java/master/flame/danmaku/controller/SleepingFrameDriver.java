@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.controller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 没有Choreographer时的帧驱动:按固定间隔睡眠/延时,不做忙等
+ */
+public class SleepingFrameDriver implements IFrameDriver {
+
+    private final Handler mHandler;
+
+    private volatile FrameCallback mCallback;
+
+    private long mIntervalMillis = 16;
+
+    private long mLastFrameMillis;
+
+    private final Runnable mFrameRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            FrameCallback callback = mCallback;
+            mCallback = null;
+            if (callback != null) {
+                mLastFrameMillis = SystemClock.uptimeMillis();
+                callback.doFrame(System.nanoTime());
+            }
+        }
+    };
+
+    public SleepingFrameDriver(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public void setFrameInterval(long intervalMillis) {
+        mIntervalMillis = Math.max(1, intervalMillis);
+    }
+
+    @Override
+    public void postFrameCallback(FrameCallback callback) {
+        mCallback = callback;
+        mHandler.removeCallbacks(mFrameRunnable);
+        long now = SystemClock.uptimeMillis();
+        mHandler.postAtTime(mFrameRunnable, Math.max(now, mLastFrameMillis + mIntervalMillis));
+    }
+
+    @Override
+    public void removeFrameCallback(FrameCallback callback) {
+        if (mCallback == callback) {
+            mCallback = null;
+            mHandler.removeCallbacks(mFrameRunnable);
+        }
+    }
+
+    @Override
+    public long awaitFrame() throws InterruptedException {
+        long sleepTime = mLastFrameMillis + mIntervalMillis - SystemClock.uptimeMillis();
+        if (sleepTime > 0) {
+            Thread.sleep(sleepTime);
+        }
+        mLastFrameMillis = SystemClock.uptimeMillis();
+        return System.nanoTime();
+    }
+
+    @Override
+    public void release() {
+        mCallback = null;
+        mHandler.removeCallbacks(mFrameRunnable);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.controller;
+
+/**
+ * 以单调时钟推进的时间源.收到播放器位置后,用二阶锁相环同时修正相位和速率:
+ * 相位误差每次只吸收一小部分,速率误差积分到播放速率上,
+ * 因此弹幕滚动速度保持平稳,不会出现逐帧的跳动;
+ * 误差过大(拖动、卡顿恢复)时直接对齐
+ */
+public class SyncedTimeSource implements ITimeSource {
+
+    /**
+     * 超过该误差(毫秒)时直接对齐而不是平滑修正
+     */
+    private static final long SNAP_THRESHOLD = 500;
+
+    /**
+     * 每次上报吸收的相位误差比例
+     */
+    private static final double PHASE_GAIN = 0.1;
+
+    /**
+     * 速率修正的积分增益
+     */
+    private static final double FREQUENCY_GAIN = 0.02;
+
+    /**
+     * 播放速率允许偏离1.0的最大值
+     */
+    private static final double MAX_RATE_DEVIATION = 0.05;
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private double mAnchorPosition;
+
+    private long mAnchorNanos;
+
+    private double mRate = 1;
+
+    private long mLastSyncNanos = -1;
+
+    private double mLastOutput;
+
+    private boolean mRunning;
+
+    @Override
+    public synchronized void start(long position) {
+        anchor(position, System.nanoTime());
+        mRunning = true;
+    }
+
+    @Override
+    public synchronized void pause() {
+        if (!mRunning) {
+            return;
+        }
+        long now = System.nanoTime();
+        mAnchorPosition = Math.max(predict(now), mLastOutput);
+        mAnchorNanos = now;
+        mLastOutput = mAnchorPosition;
+        mLastSyncNanos = -1;
+        mRunning = false;
+    }
+
+    @Override
+    public synchronized void seek(long position) {
+        anchor(position, System.nanoTime());
+    }
+
+    @Override
+    public synchronized void syncPosition(long position) {
+        long now = System.nanoTime();
+        if (!mRunning) {
+            anchor(position, now);
+            return;
+        }
+        double predicted = predict(now);
+        double error = position - predicted;
+        if (mLastSyncNanos < 0 || Math.abs(error) > SNAP_THRESHOLD) {
+            anchor(position, now);
+            mLastSyncNanos = now;
+            return;
+        }
+        double interval = (now - mLastSyncNanos) / NANOS_PER_MILLI;
+        if (interval > 0) {
+            mRate += FREQUENCY_GAIN * error / interval;
+            mRate = Math.max(1 - MAX_RATE_DEVIATION, Math.min(1 + MAX_RATE_DEVIATION, mRate));
+        }
+        mAnchorPosition = predicted + PHASE_GAIN * error;
+        mAnchorNanos = now;
+        mLastSyncNanos = now;
+    }
+
+    @Override
+    public synchronized long getTime(long frameTimeNanos) {
+        if (!mRunning) {
+            return (long) mAnchorPosition;
+        }
+        double time = predict(frameTimeNanos);
+        // 修正只会让时间走得慢一些,不会倒退
+        if (time < mLastOutput) {
+            time = mLastOutput;
+        }
+        mLastOutput = time;
+        return (long) time;
+    }
+
+    @Override
+    public long getTime() {
+        return getTime(System.nanoTime());
+    }
+
+    private double predict(long nanos) {
+        return mAnchorPosition + mRate * (nanos - mAnchorNanos) / NANOS_PER_MILLI;
+    }
+
+    private void anchor(long position, long nanos) {
+        mAnchorPosition = position;
+        mAnchorNanos = nanos;
+        mLastOutput = position;
+        mRate = 1;
+        mLastSyncNanos = -1;
+    }
+
+}
@@ -16,7 +16,9 @@
 
 package master.flame.danmaku.danmaku.model;
 
-public abstract class BaseDanmaku {
+import master.flame.danmaku.danmaku.model.objectpool.Poolable;
+
+public abstract class BaseDanmaku implements Poolable<BaseDanmaku> {
 
     public final static String DANMAKU_BR_CHAR = "/n";
 
@@ -156,6 +158,11 @@ public abstract class BaseDanmaku {
      */
     public boolean isGuest;
 
+    /**
+     * 合并的重复弹幕数量(包括自身),开启合并重复弹幕时有效
+     */
+    public int mergedCount;
+
     /**
      * 计时
      */
@@ -166,6 +173,10 @@ public abstract class BaseDanmaku {
      */
     protected int alpha = AlphaValue.MAX;
 
+    private BaseDanmaku mNextPoolable;
+
+    private boolean mPooled;
+
     public long getDuration() {
         return duration.value;
     }
@@ -178,9 +189,19 @@ public abstract class BaseDanmaku {
         return displayer.draw(this);
     }
 
+    /**
+     * @return 是否有可用的measure结果(可能已过期,见{@link #needRemeasure()})
+     */
     public boolean isMeasured() {
         return paintWidth >= 0 && paintHeight >= 0
-                && measureResetFlag == GlobalFlagValues.MEASURE_RESET_FLAG;
+                && measureResetFlag >= GlobalFlagValues.MEASURE_STALE_FLAG;
+    }
+
+    /**
+     * @return measure结果可用但已过期,等待重新measure
+     */
+    public boolean needRemeasure() {
+        return isMeasured() && measureResetFlag != GlobalFlagValues.MEASURE_RESET_FLAG;
     }
 
     public void measure(IDisplayer displayer) {
@@ -257,5 +278,59 @@ public abstract class BaseDanmaku {
     public int getAlpha() {
         return alpha;
     }
+
+    /**
+     * 放回对象池前恢复为新建时的状态,子类需要重置自己的字段.
+     * 调用前须保证已没有任何集合或缓存引用此对象
+     */
+    public void reset() {
+        time = 0;
+        text = null;
+        lines = null;
+        textColor = 0;
+        rotationZ = 0;
+        rotationY = 0;
+        textShadowColor = 0;
+        underlineColor = 0;
+        textSize = -1;
+        borderColor = 0;
+        padding = 0;
+        priority = 0;
+        paintWidth = -1;
+        paintHeight = -1;
+        duration = null;
+        index = 0;
+        visibility = INVISIBLE;
+        visibleResetFlag = 0;
+        measureResetFlag = 0;
+        cache = null;
+        isLive = false;
+        userId = 0;
+        userHash = null;
+        isGuest = false;
+        mergedCount = 0;
+        mTimer = null;
+        alpha = AlphaValue.MAX;
+    }
+
+    @Override
+    public void setNextPoolable(BaseDanmaku element) {
+        mNextPoolable = element;
+    }
+
+    @Override
+    public BaseDanmaku getNextPoolable() {
+        return mNextPoolable;
+    }
+
+    @Override
+    public boolean isPooled() {
+        return mPooled;
+    }
+
+    @Override
+    public void setPooled(boolean isPooled) {
+        mPooled = isPooled;
+    }
     
 }
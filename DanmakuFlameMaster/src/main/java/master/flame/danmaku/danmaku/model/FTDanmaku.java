@@ -25,7 +25,7 @@ public class FTDanmaku extends BaseDanmaku {
 
     protected float y = -1;
 
-    private float[] RECT = null;
+    private final float[] RECT = new float[4];
 
     private float mLastLeft;
 
@@ -73,9 +73,6 @@ public class FTDanmaku extends BaseDanmaku {
         if (!isMeasured())
             return null;
         float left = getLeft(displayer);
-        if (RECT == null) {
-            RECT = new float[4];
-        }
         RECT[0] = left;
         RECT[1] = y;
         RECT[2] = left + paintWidth;
@@ -107,4 +104,14 @@ public class FTDanmaku extends BaseDanmaku {
     public int getType() {
         return TYPE_FIX_TOP;
     }
+
+    @Override
+    public void reset() {
+        super.reset();
+        x = 0;
+        y = -1;
+        mLastLeft = 0;
+        mLastPaintWidth = 0;
+        mLastDispWidth = 0;
+    }
 }
@@ -3,19 +3,35 @@ package master.flame.danmaku.danmaku.model;
 public class GlobalFlagValues {
 
     public static int MEASURE_RESET_FLAG = 0;
+    /**
+     * measure结果不早于此版本的仍可暂时使用,由后台逐步重新measure
+     */
+    public static int MEASURE_STALE_FLAG = 0;
     public static int VISIBLE_RESET_FLAG = 0;
     
     public static void resetAll(){
         VISIBLE_RESET_FLAG = 0;
         MEASURE_RESET_FLAG = 0;
+        MEASURE_STALE_FLAG = 0;
     }
     
     public static void updateVisibleFlag(){
         VISIBLE_RESET_FLAG++;
     }
     
+    /**
+     * 所有measure结果立即失效
+     */
     public static void updateMeasureFlag(){
         MEASURE_RESET_FLAG++;
+        MEASURE_STALE_FLAG = MEASURE_RESET_FLAG;
+    }
+    
+    /**
+     * measure结果过期但仍可使用,直到被重新measure
+     */
+    public static void updateMeasureFlagIncrementally(){
+        MEASURE_RESET_FLAG++;
     }
     
 }
@@ -18,6 +18,27 @@ package master.flame.danmaku.danmaku.model;
 
 public interface IDanmakus {
 
+    /**
+     * {@link IDanmakus#forEach(Consumer)}对每条弹幕的回调
+     */
+    public interface Consumer {
+
+        public static final int ACTION_CONTINUE = 0;
+
+        public static final int ACTION_BREAK = 1;
+
+        /**
+         * 从集合中移除当前弹幕后继续,会修改集合,不能与其他线程的遍历同时进行
+         */
+        public static final int ACTION_REMOVE = 2;
+
+        /**
+         * @return ACTION_CONTINUE/ACTION_BREAK/ACTION_REMOVE
+         */
+        public int accept(BaseDanmaku danmaku);
+
+    }
+
     public boolean addItem(BaseDanmaku item);
 
     public boolean removeItem(BaseDanmaku item);
@@ -34,7 +55,16 @@ public interface IDanmakus {
     
     public BaseDanmaku last();
     
+    /**
+     * 返回集合共用的迭代器,同一时刻只能有一个线程使用,多线程遍历请用{@link #forEach(Consumer)}
+     */
     public IDanmakuIterator iterator();
+
+    /**
+     * 按集合顺序遍历.每次调用使用自己的游标,不加锁,
+     * 渲染线程和缓存线程可以同时遍历;与addItem/removeItem之间仍以集合本身加锁
+     */
+    public void forEach(Consumer consumer);
     
     public boolean contains(BaseDanmaku item);
 
@@ -47,9 +47,6 @@ public class L2RDanmaku extends R2LDanmaku {
         if (!isMeasured())
             return null;
         float left = getAccurateLeft(displayer, time);
-        if (RECT == null) {
-            RECT = new float[4];
-        }
         RECT[0] = left;
         RECT[1] = y;
         RECT[2] = left + paintWidth;
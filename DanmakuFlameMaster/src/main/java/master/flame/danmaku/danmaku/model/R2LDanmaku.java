@@ -30,7 +30,10 @@ public class R2LDanmaku extends BaseDanmaku {
 
     protected int mDistance;
 
-    protected float[] RECT = null;
+    /**
+     * 碰撞检测用,随对象一起创建和复用,绘制时不再分配
+     */
+    protected final float[] RECT = new float[4];
 
     protected float mStepX;
 
@@ -73,9 +76,6 @@ public class R2LDanmaku extends BaseDanmaku {
         if (!isMeasured())
             return null;
         float left = getAccurateLeft(displayer, time);
-        if (RECT == null) {
-            RECT = new float[4];
-        }
         RECT[0] = left;
         RECT[1] = y;
         RECT[2] = left + paintWidth;
@@ -107,7 +107,30 @@ public class R2LDanmaku extends BaseDanmaku {
     public int getType() {
         return TYPE_SCROLL_RL;
     }
+
+    /**
+     * 按指定速度(像素/毫秒)滚动,重新measure后恢复为按自身宽度计算的速度
+     * 
+     * @param stepX
+     */
+    public void setStepX(float stepX) {
+        mStepX = stepX;
+    }
+
+    public float getStepX() {
+        return mStepX;
+    }
     
+    @Override
+    public void reset() {
+        super.reset();
+        x = 0;
+        y = -1;
+        mDistance = 0;
+        mStepX = 0;
+        mLastTime = 0;
+    }
+
     @Override
     public void measure(IDisplayer displayer) {
         super.measure(displayer);
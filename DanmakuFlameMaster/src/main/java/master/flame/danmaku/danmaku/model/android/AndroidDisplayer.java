@@ -20,7 +20,7 @@ import android.graphics.Camera;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Paint.Style;
+import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.text.TextPaint;
 
@@ -30,9 +30,6 @@ import master.flame.danmaku.danmaku.model.AbsDisplayer;
 import master.flame.danmaku.danmaku.parser.DanmakuFactory;
 import master.flame.danmaku.danmaku.renderer.IRenderer;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Created by MoiTempete.
  */
@@ -41,11 +38,15 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
     private Camera camera = new Camera();
 
     private Matrix matrix = new Matrix();
+
+    private final RectF mCacheDstRect = new RectF();
     
-    private final static Map<Float,Float> sTextHeightCache = new HashMap<Float,Float>();
-    
-    private static float sLastScaleTextSize;
-    private final static Map<Float,Float> sCachedScaleSize = new HashMap<Float, Float>(10);
+    /**
+     * 文字宽度和行高缓存,同一视频里大量弹幕文字重复
+     */
+    private final static TextMetricsCache sTextMetricsCache = new TextMetricsCache(4096);
+
+    private final static GlyphWidthTable sGlyphWidthTable = new GlyphWidthTable();
 
     @SuppressWarnings("unused")
     private int HIT_CACHE_COUNT = 0;
@@ -53,13 +54,19 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
     @SuppressWarnings("unused")
     private int NO_CACHE_COUNT = 0;
 
-    public static TextPaint PAINT, PAINT_DUPLICATE;
+    /**
+     * 样式模板,提供字体,粗体和描边宽度,绘制用的Paint见{@link DanmakuStyle}
+     */
+    public static TextPaint PAINT;
 
     private static Paint ALPHA_PAINT;
 
-    private static Paint UNDERLINE_PAINT;
-    
-    private static Paint BORDER_PAINT;
+    /**
+     * 合并数量标签缓存,避免每帧拼接字符串
+     */
+    private static final String[] MERGED_COUNT_LABELS = new String[100];
+
+    private static final String MERGED_COUNT_OVERFLOW_LABEL = "\u00D799+";
     
     /**
      * 下划线高度
@@ -86,49 +93,65 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
      * 开启阴影，可动态改变
      */
     public static boolean CONFIG_HAS_SHADOW = false;
-    private static boolean HAS_SHADOW = CONFIG_HAS_SHADOW;
 
     /**
      * 开启描边，可动态改变
      */
     public static boolean CONFIG_HAS_STROKE = true;
-    private static boolean HAS_STROKE = CONFIG_HAS_STROKE;
 
     /**
      * 开启抗锯齿，可动态改变
      */
     public static boolean CONFIG_ANTI_ALIAS = true;
-    private static boolean ANTI_ALIAS = CONFIG_ANTI_ALIAS;
+
+    /**
+     * 绘制压力过大时临时关闭描边/阴影和抗锯齿,不改变CONFIG_*设置
+     */
+    private static volatile boolean DEGRADE_STROKE_SHADOW = false;
+    private static volatile boolean DEGRADE_ANTI_ALIAS = false;
 
     static {
         PAINT = new TextPaint();
         PAINT.setStrokeWidth(STROKE_WIDTH);
-        PAINT_DUPLICATE = new TextPaint(PAINT);
         ALPHA_PAINT = new Paint();
-        UNDERLINE_PAINT = new Paint();
-        UNDERLINE_PAINT.setStrokeWidth(UNDERLINE_HEIGHT);
-        UNDERLINE_PAINT.setStyle(Style.STROKE);
-        BORDER_PAINT = new Paint();
-        BORDER_PAINT.setStyle(Style.STROKE);
-        BORDER_PAINT.setStrokeWidth(BORDER_WIDTH);
     }
     
     public static void setTypeFace(Typeface font){
         if(PAINT!=null)
             PAINT.setTypeface(font);
+        DanmakuStyle.invalidateAll();
+        sTextMetricsCache.clear();
+        sGlyphWidthTable.clear();
     }
     
     public static void setShadowRadius(float s){
         SHADOW_RADIUS = s;
+        DanmakuStyle.invalidateAll();
     }
     
     public static void setPaintStorkeWidth(float s){
         PAINT.setStrokeWidth(s);
         STROKE_WIDTH = s;
+        DanmakuStyle.invalidateAll();
     }
     
     public static void setFakeBoldText(boolean fakeBoldText){
         PAINT.setFakeBoldText(fakeBoldText);
+        DanmakuStyle.invalidateAll();
+        sTextMetricsCache.clear();
+        sGlyphWidthTable.clear();
+    }
+
+    /**
+     * 与PAINT字体一致的字符宽度表,可供其他displayer共用
+     */
+    public static GlyphWidthTable getGlyphWidthTable() {
+        return sGlyphWidthTable;
+    }
+
+    public static void setQualityDegraded(boolean noStrokeShadow, boolean noAntiAlias) {
+        DEGRADE_STROKE_SHADOW = noStrokeShadow;
+        DEGRADE_ANTI_ALIAS = noAntiAlias;
     }
 
     public Canvas canvas;
@@ -207,20 +230,31 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
             if (danmaku.hasDrawingCache()) {
                 DrawingCacheHolder holder = ((DrawingCache) danmaku.cache).get();
                 if (holder != null && holder.bitmap != null && !holder.bitmap.isRecycled()) {
-                    canvas.drawBitmap(holder.bitmap, left, top, alphaPaint);                    
+                    if (holder.contentWidth > 0 && holder.contentHeight > 0
+                            && (holder.contentWidth != danmaku.paintWidth
+                            || holder.contentHeight != danmaku.paintHeight)) {
+                        // 重新measure后缓存尚未重建,缩放旧缓存
+                        float scaleX = danmaku.paintWidth / holder.contentWidth;
+                        float scaleY = danmaku.paintHeight / holder.contentHeight;
+                        mCacheDstRect.set(left, top, left + holder.bitmap.getWidth() * scaleX,
+                                top + holder.bitmap.getHeight() * scaleY);
+                        canvas.drawBitmap(holder.bitmap, null, mCacheDstRect, alphaPaint);
+                    } else {
+                        canvas.drawBitmap(holder.bitmap, left, top, alphaPaint);
+                    }
                     cacheDrawn = true;
                 }
             }
             if (!cacheDrawn) {
-                if (alphaPaint != null) {
-                    PAINT.setAlpha(alphaPaint.getAlpha());
-                } else {
-                    resetPaintAlpha(PAINT);
-                }
                 drawDanmaku(danmaku, canvas, left, top, true);
                 result = IRenderer.TEXT_RENDERING;
             }
 
+            if (danmaku.mergedCount > 1 && danmaku.getType() != BaseDanmaku.TYPE_SPECIAL
+                    && DanmakuGlobalConfig.DEFAULT.isDuplicateMergingEnabled()) {
+                drawMergedCount(danmaku, canvas, left, top);
+            }
+
             if (needRestore) {
                 restoreCanvas(canvas);
             }
@@ -231,10 +265,26 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
         return IRenderer.NOTHING_RENDERING;
     }
 
-    private void resetPaintAlpha(Paint paint) {
-        if (paint.getAlpha() != AlphaValue.MAX) {
-            paint.setAlpha(AlphaValue.MAX);
+    /**
+     * 在弹幕右侧绘制"×N",不进入缓存,合并数量变化时无需重建缓存
+     */
+    private static void drawMergedCount(BaseDanmaku danmaku, Canvas canvas, float left, float top) {
+        int count = danmaku.mergedCount;
+        String label;
+        if (count < MERGED_COUNT_LABELS.length) {
+            label = MERGED_COUNT_LABELS[count];
+            if (label == null) {
+                label = MERGED_COUNT_LABELS[count] = "\u00D7" + count;
+            }
+        } else {
+            label = MERGED_COUNT_OVERFLOW_LABEL;
         }
+        DanmakuGlobalConfig config = DanmakuGlobalConfig.DEFAULT;
+        int alpha = config.isTranslucent ? config.transparency : AlphaValue.MAX;
+        TextPaint paint = DanmakuStyle.obtain(PAINT, danmaku.textSize * 0.6f, danmaku.textColor,
+                0, alpha, DanmakuStyle.FLAG_ANTI_ALIAS, SHADOW_RADIUS).fillPaint;
+        canvas.drawText(label, left + danmaku.paintWidth, top + danmaku.paintHeight
+                - danmaku.padding - paint.descent(), paint);
     }
 
     private void restoreCanvas(Canvas canvas) {
@@ -265,40 +315,23 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
             top += BORDER_WIDTH;
         }
         
-        HAS_STROKE = CONFIG_HAS_STROKE;
-        HAS_SHADOW = CONFIG_HAS_SHADOW;
-        ANTI_ALIAS = !quick && CONFIG_ANTI_ALIAS;
-        TextPaint paint = getPaint(danmaku, quick);
+        DanmakuStyle style = getStyle(danmaku, quick);
+        float baseline = top - style.ascent;
         if (danmaku.lines != null) {
             String[] lines = danmaku.lines;
             if (lines.length == 1) {
-                if (hasStroke(danmaku)) {
-                    applyPaintConfig(danmaku, paint, true);
-                    canvas.drawText(lines[0], left, top - paint.ascent(), paint);
-                }
-                applyPaintConfig(danmaku, paint, false);
-                canvas.drawText(lines[0], left, top - paint.ascent(), paint);
+                drawText(style, canvas, lines[0], left, baseline);
             } else {
                 float textHeight = (danmaku.paintHeight - 2 * danmaku.padding) / lines.length;
                 for (int t = 0; t < lines.length; t++) {
                     if (lines[t] == null || lines[t].length() == 0) {
                         continue;
                     }
-                    if (hasStroke(danmaku)) {
-                        applyPaintConfig(danmaku, paint, true);
-                        canvas.drawText(lines[t], left, t * textHeight + top - paint.ascent(), paint);
-                    }
-                    applyPaintConfig(danmaku, paint, false);
-                    canvas.drawText(lines[t], left, t * textHeight + top - paint.ascent(), paint);
+                    drawText(style, canvas, lines[t], left, t * textHeight + baseline);
                 }
             }
         } else {
-            if (hasStroke(danmaku)) {                
-                applyPaintConfig(danmaku, paint, true);
-                canvas.drawText(danmaku.text, left, top - paint.ascent(), paint);
-            }
-            applyPaintConfig(danmaku, paint, false);
-            canvas.drawText(danmaku.text, left, top - paint.ascent(), paint);
+            drawText(style, canvas, danmaku.text, left, baseline);
         }
 
         // draw underline
@@ -317,108 +350,81 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
 
     }
     
-    private static boolean hasStroke(BaseDanmaku danmaku) {
-        return HAS_STROKE && STROKE_WIDTH > 0 && danmaku.textShadowColor != 0;
+    private static void drawText(DanmakuStyle style, Canvas canvas, String text, float left,
+            float baseline) {
+        if (style.strokePaint != null) {
+            canvas.drawText(text, left, baseline, style.strokePaint);
+        }
+        canvas.drawText(text, left, baseline, style.fillPaint);
+    }
+
+    private static boolean hasStroke() {
+        return CONFIG_HAS_STROKE && !DEGRADE_STROKE_SHADOW && STROKE_WIDTH > 0;
+    }
+
+    private static boolean hasShadow() {
+        return CONFIG_HAS_SHADOW && !DEGRADE_STROKE_SHADOW && SHADOW_RADIUS > 0;
     }
 
     public static Paint getBorderPaint(BaseDanmaku danmaku) {
-        BORDER_PAINT.setColor(danmaku.borderColor);
-        return BORDER_PAINT;
+        return DanmakuStyle.getBorderPaint(danmaku.borderColor, BORDER_WIDTH);
     }
 
     public static Paint getUnderlinePaint(BaseDanmaku danmaku){
-        UNDERLINE_PAINT.setColor(danmaku.underlineColor);
-        return UNDERLINE_PAINT;
+        return DanmakuStyle.getUnderlinePaint(danmaku.underlineColor, UNDERLINE_HEIGHT);
     }
-    
-    private static TextPaint getPaint(BaseDanmaku danmaku, boolean quick) {
-        TextPaint paint;
-        if (quick) {
-            paint = PAINT_DUPLICATE;
-            paint.set(PAINT);
-        } else {
-            paint = PAINT;
+
+    /**
+     * @param quick 为true时不开抗锯齿
+     */
+    private static DanmakuStyle getStyle(BaseDanmaku danmaku, boolean quick) {
+        float textSize = danmaku.textSize;
+        if (DanmakuGlobalConfig.DEFAULT.isTextScaled) {
+            textSize *= DanmakuGlobalConfig.DEFAULT.scaleTextSize;
         }
-        paint.setTextSize(danmaku.textSize);
-        applyTextScaleConfig(danmaku, paint);
-        
+        int flags = 0;
         //ignore the transparent textShadowColor
-        if (!HAS_SHADOW || SHADOW_RADIUS <= 0 || danmaku.textShadowColor == 0) {
-            paint.clearShadowLayer();
-        } else {
-            paint.setShadowLayer(SHADOW_RADIUS, 0, 0, danmaku.textShadowColor);
-        }
-        paint.setAntiAlias(ANTI_ALIAS);
-        return paint;
-    }
-
-    public static TextPaint getPaint(BaseDanmaku danmaku) {
-        return getPaint(danmaku, false);
-    }
-    
-    private static void applyPaintConfig(BaseDanmaku danmaku, Paint paint,boolean stroke) {
-
-        if (DanmakuGlobalConfig.DEFAULT.isTranslucent) {
-            if(stroke){
-                paint.setStyle(Style.STROKE);
-                int color = (danmaku.textShadowColor & 0x00FFFFFF) | (DanmakuGlobalConfig.DEFAULT.transparency<<24);
-                paint.setColor(color);
-            }else{
-                paint.setStyle(Style.FILL);
-                int color = (danmaku.textColor & 0x00FFFFFF) | (DanmakuGlobalConfig.DEFAULT.transparency<<24);
-                paint.setColor(color);
+        if (danmaku.textShadowColor != 0) {
+            if (hasStroke()) {
+                flags |= DanmakuStyle.FLAG_STROKE;
             }
-            paint.setAlpha(DanmakuGlobalConfig.DEFAULT.transparency);
-        } else {
-            if(stroke){
-                paint.setStyle(Style.STROKE);
-                paint.setColor(danmaku.textShadowColor);
-            }else{
-                paint.setStyle(Style.FILL);
-                paint.setColor(danmaku.textColor);
+            if (hasShadow()) {
+                flags |= DanmakuStyle.FLAG_SHADOW;
             }
-            paint.setAlpha(AlphaValue.MAX);
         }
-            
+        if (!quick && CONFIG_ANTI_ALIAS && !DEGRADE_ANTI_ALIAS) {
+            flags |= DanmakuStyle.FLAG_ANTI_ALIAS;
+        }
+        DanmakuGlobalConfig config = DanmakuGlobalConfig.DEFAULT;
+        int alpha = config.isTranslucent ? config.transparency : AlphaValue.MAX;
+        return DanmakuStyle.obtain(PAINT, textSize, danmaku.textColor, danmaku.textShadowColor,
+                alpha, flags, SHADOW_RADIUS);
     }
 
-    private static void applyTextScaleConfig(BaseDanmaku danmaku, Paint paint) {
-        if (!DanmakuGlobalConfig.DEFAULT.isTextScaled) {
-            return;
-        }
-        Float size = sCachedScaleSize.get(danmaku.textSize);
-        if (size == null || sLastScaleTextSize != DanmakuGlobalConfig.DEFAULT.scaleTextSize) {
-            sLastScaleTextSize = DanmakuGlobalConfig.DEFAULT.scaleTextSize;
-            size = danmaku.textSize * DanmakuGlobalConfig.DEFAULT.scaleTextSize;
-            sCachedScaleSize.put(danmaku.textSize, size);
-        }
-        paint.setTextSize(size);
+    /**
+     * @return 当前线程的文字Paint,已按弹幕样式配置好,不要修改
+     */
+    public static TextPaint getPaint(BaseDanmaku danmaku) {
+        return getStyle(danmaku, false).fillPaint;
     }
     
     @Override
     public void measure(BaseDanmaku danmaku) {
-        TextPaint paint = getPaint(danmaku);
-        if (HAS_STROKE) {
-            applyPaintConfig(danmaku, paint, true);
-        }
-        calcPaintWH(danmaku, paint);
-        if (HAS_STROKE) {
-            applyPaintConfig(danmaku, paint, false);
-        }
+        calcPaintWH(danmaku, getPaint(danmaku));
     }
     
     private void calcPaintWH(BaseDanmaku danmaku, TextPaint paint) {
         float w = 0;
-        Float textHeight = getTextHeight(paint);
+        float textHeight = getTextHeight(paint);
         if (danmaku.lines == null) {
-            w = danmaku.text == null ? 0 : paint.measureText(danmaku.text);
+            w = danmaku.text == null ? 0 : measureText(paint, danmaku.text);
             setDanmakuPaintWidthAndHeight(danmaku,w,textHeight);
             return;
         }
 
         for(String tempStr : danmaku.lines){
             if (tempStr.length() > 0) {
-                float tr = paint.measureText(tempStr);
+                float tr = measureText(paint, tempStr);
                 w = Math.max(tr, w);
             }
         }
@@ -437,20 +443,31 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
         danmaku.paintHeight = ph;
     }
 
+    private static float measureText(TextPaint paint, String text) {
+        float textSize = paint.getTextSize();
+        float width = sTextMetricsCache.getWidth(text, textSize);
+        if (width == TextMetricsCache.MISS) {
+            width = DanmakuGlobalConfig.DEFAULT.isApproximateMeasureEnabled() ? sGlyphWidthTable
+                    .measureText(paint, text) : paint.measureText(text);
+            sTextMetricsCache.putWidth(text, textSize, width);
+        }
+        return width;
+    }
+
     private static float getTextHeight(TextPaint paint) {
-        Float textSize = paint.getTextSize();
-        Float textHeight = sTextHeightCache.get(textSize);
-        if(textHeight == null){
+        float textSize = paint.getTextSize();
+        float textHeight = sTextMetricsCache.getTextHeight(textSize);
+        if (textHeight == TextMetricsCache.MISS) {
             Paint.FontMetrics fontMetrics = paint.getFontMetrics();
             textHeight = fontMetrics.descent - fontMetrics.ascent + fontMetrics.leading;
-            sTextHeightCache.put(textSize, textHeight);
-        }  
+            sTextMetricsCache.putTextHeight(textSize, textHeight);
+        }
         return textHeight;
     }
     
     public static void clearTextHeightCache(){
-        sTextHeightCache.clear();
-        sCachedScaleSize.clear();
+        sTextMetricsCache.clear();
+        sGlyphWidthTable.clear();
     }
 
     @Override
@@ -496,15 +513,25 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas> {
         return this.canvas;
     }
 
+    /**
+     * 是否直接绘制到{@link #getExtraData()}的Canvas上.
+     * 离屏图层等依赖Canvas的绘制方式只在返回true时使用
+     */
+    public boolean isCanvasBacked() {
+        return true;
+    }
+
     @Override
     public float getStrokeWidth() {
-        if (HAS_SHADOW && HAS_STROKE) {
+        boolean hasShadow = hasShadow();
+        boolean hasStroke = hasStroke();
+        if (hasShadow && hasStroke) {
             return Math.max(SHADOW_RADIUS, STROKE_WIDTH);
         }
-        if (HAS_SHADOW) {
+        if (hasShadow) {
             return SHADOW_RADIUS;
         }
-        if (HAS_STROKE) {
+        if (hasStroke) {
             return STROKE_WIDTH;
         }
         return 0f;
@@ -17,7 +17,7 @@ import android.graphics.Typeface;
 public class DanmakuGlobalConfig {
 
     public enum DanmakuConfigTag {
-        FT_DANMAKU_VISIBILITY, FB_DANMAKU_VISIBILITY, L2R_DANMAKU_VISIBILITY, R2L_DANMAKU_VISIBILIY, SPECIAL_DANMAKU_VISIBILITY, TYPEFACE, TRANSPARENCY, SCALE_TEXTSIZE, MAXIMUM_NUMS_IN_SCREEN, DANMAKU_STYLE, DANMAKU_BOLD, COLOR_VALUE_WHITE_LIST, USER_ID_BLACK_LIST, USER_HASH_BLACK_LIST, SCROLL_SPEED_FACTOR, BLOCK_GUEST_DANMAKU, DUPLICATE_MERGING_ENABLED;
+        FT_DANMAKU_VISIBILITY, FB_DANMAKU_VISIBILITY, L2R_DANMAKU_VISIBILITY, R2L_DANMAKU_VISIBILIY, SPECIAL_DANMAKU_VISIBILITY, TYPEFACE, TRANSPARENCY, SCALE_TEXTSIZE, MAXIMUM_NUMS_IN_SCREEN, DANMAKU_STYLE, DANMAKU_BOLD, COLOR_VALUE_WHITE_LIST, USER_ID_BLACK_LIST, USER_HASH_BLACK_LIST, SCROLL_SPEED_FACTOR, BLOCK_GUEST_DANMAKU, DUPLICATE_MERGING_ENABLED, NEAR_DUPLICATE_FILTER_ENABLED, ADAPTIVE_QUALITY_ENABLED, LAYERED_RENDERING_ENABLED, LANE_STRIP_RENDERING_ENABLED, APPROXIMATE_MEASURE_ENABLED;
 
         public boolean isVisibilityRelatedTag() {
             return this.equals(FT_DANMAKU_VISIBILITY) || this.equals(FB_DANMAKU_VISIBILITY)
@@ -107,6 +107,16 @@ public class DanmakuGlobalConfig {
 
     private boolean mDuplicateMergingEnable = false;
 
+    private boolean mNearDuplicateFilterEnable = false;
+
+    private boolean mAdaptiveQualityEnable = false;
+
+    private boolean mLayeredRenderingEnable = false;
+
+    private boolean mLaneStripRenderingEnable = false;
+
+    private boolean mApproximateMeasureEnable = false;
+
     /**
      * set typeface
      * 
@@ -117,6 +127,7 @@ public class DanmakuGlobalConfig {
             mFont = font;
             AndroidDisplayer.clearTextHeightCache();
             AndroidDisplayer.setTypeFace(font);
+            GlobalFlagValues.updateMeasureFlagIncrementally();
             notifyConfigureChanged(DanmakuConfigTag.TYPEFACE);
         }
         return this;
@@ -136,7 +147,7 @@ public class DanmakuGlobalConfig {
         if (scaleTextSize != p) {
             scaleTextSize = p;
             AndroidDisplayer.clearTextHeightCache();
-            GlobalFlagValues.updateMeasureFlag();
+            GlobalFlagValues.updateMeasureFlagIncrementally();
             notifyConfigureChanged(DanmakuConfigTag.SCALE_TEXTSIZE, p);
         }
         isTextScaled = (scaleTextSize != 1f);
@@ -487,7 +498,7 @@ public class DanmakuGlobalConfig {
         if (scrollSpeedFactor != p) {
             scrollSpeedFactor = p;
             DanmakuFactory.updateDurationFactor(p);
-            GlobalFlagValues.updateMeasureFlag();
+            GlobalFlagValues.updateMeasureFlagIncrementally();
             notifyConfigureChanged(DanmakuConfigTag.SCROLL_SPEED_FACTOR, p);
         }
         return this;
@@ -509,6 +520,102 @@ public class DanmakuGlobalConfig {
     public boolean isDuplicateMergingEnabled() {
         return mDuplicateMergingEnable;
     }
+
+    /**
+     * 设置是否屏蔽近似重复的刷屏弹幕(重复字符长度不同,结尾标点不同,全角半角不同等)
+     * @param enable
+     * @return
+     */
+    public DanmakuGlobalConfig setNearDuplicateFilterEnabled(boolean enable) {
+        if (mNearDuplicateFilterEnable != enable) {
+            mNearDuplicateFilterEnable = enable;
+            if (enable) {
+                DanmakuFilters.getDefault().registerFilter(DanmakuFilters.TAG_NEAR_DUPLICATE_FILTER);
+            } else {
+                DanmakuFilters.getDefault().unregisterFilter(DanmakuFilters.TAG_NEAR_DUPLICATE_FILTER);
+            }
+            notifyConfigureChanged(DanmakuConfigTag.NEAR_DUPLICATE_FILTER_ENABLED, enable);
+        }
+        return this;
+    }
+
+    public boolean isNearDuplicateFilterEnabled() {
+        return mNearDuplicateFilterEnable;
+    }
+
+    /**
+     * 设置是否根据绘制耗时自动降低绘制质量(描边阴影,抗锯齿,弹幕密度),耗时恢复后逐级还原
+     * @param enable
+     * @return
+     */
+    public DanmakuGlobalConfig setAdaptiveQualityEnabled(boolean enable) {
+        if (mAdaptiveQualityEnable != enable) {
+            mAdaptiveQualityEnable = enable;
+            notifyConfigureChanged(DanmakuConfigTag.ADAPTIVE_QUALITY_ENABLED, enable);
+        }
+        return this;
+    }
+
+    public boolean isAdaptiveQualityEnabled() {
+        return mAdaptiveQualityEnable;
+    }
+
+    /**
+     * 设置是否分层绘制:顶部/底部弹幕绘制到离屏图层,只在变化时重建,每帧整块贴图
+     * @param enable
+     * @return
+     */
+    public DanmakuGlobalConfig setLayeredRenderingEnabled(boolean enable) {
+        if (mLayeredRenderingEnable != enable) {
+            mLayeredRenderingEnable = enable;
+            notifyConfigureChanged(DanmakuConfigTag.LAYERED_RENDERING_ENABLED, enable);
+        }
+        return this;
+    }
+
+    public boolean isLayeredRenderingEnabled() {
+        return mLayeredRenderingEnable;
+    }
+
+    /**
+     * 设置是否整行合成绘制从右向左的滚动弹幕,每行每帧只贴图一次.
+     * 开启后不太宽的滚动弹幕以统一的速度滚动(不再随宽度变化)
+     * @param enable
+     * @return
+     */
+    public DanmakuGlobalConfig setLaneStripRenderingEnabled(boolean enable) {
+        if (mLaneStripRenderingEnable != enable) {
+            mLaneStripRenderingEnable = enable;
+            // 重新measure以恢复或统一滚动速度
+            GlobalFlagValues.updateMeasureFlagIncrementally();
+            notifyConfigureChanged(DanmakuConfigTag.LANE_STRIP_RENDERING_ENABLED, enable);
+        }
+        return this;
+    }
+
+    public boolean isLaneStripRenderingEnabled() {
+        return mLaneStripRenderingEnable;
+    }
+
+    /**
+     * 设置是否用逐字宽度表近似计算弹幕宽度,代替measureText.
+     * 需要字形组合的文字仍精确测量
+     * @param enable
+     * @return
+     */
+    public DanmakuGlobalConfig setApproximateMeasureEnabled(boolean enable) {
+        if (mApproximateMeasureEnable != enable) {
+            mApproximateMeasureEnable = enable;
+            AndroidDisplayer.clearTextHeightCache();
+            GlobalFlagValues.updateMeasureFlagIncrementally();
+            notifyConfigureChanged(DanmakuConfigTag.APPROXIMATE_MEASURE_ENABLED, enable);
+        }
+        return this;
+    }
+
+    public boolean isApproximateMeasureEnabled() {
+        return mApproximateMeasureEnable;
+    }
     
     
     public interface ConfigChangedCallback {
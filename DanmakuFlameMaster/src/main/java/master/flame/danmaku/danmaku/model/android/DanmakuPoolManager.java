@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.model.android;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.FBDanmaku;
+import master.flame.danmaku.danmaku.model.FTDanmaku;
+import master.flame.danmaku.danmaku.model.L2RDanmaku;
+import master.flame.danmaku.danmaku.model.R2LDanmaku;
+import master.flame.danmaku.danmaku.model.objectpool.PoolableManager;
+
+/**
+ * 按类型创建和重置弹幕对象,duration由取出方设置
+ */
+public class DanmakuPoolManager implements PoolableManager<BaseDanmaku> {
+
+    private final int mType;
+
+    public DanmakuPoolManager(int type) {
+        mType = type;
+    }
+
+    @Override
+    public BaseDanmaku newInstance() {
+        switch (mType) {
+            case BaseDanmaku.TYPE_SCROLL_RL:
+                return new R2LDanmaku(null);
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                return new FBDanmaku(null);
+            case BaseDanmaku.TYPE_FIX_TOP:
+                return new FTDanmaku(null);
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                return new L2RDanmaku(null);
+        }
+        return null;
+    }
+
+    @Override
+    public void onAcquired(BaseDanmaku element) {
+
+    }
+
+    @Override
+    public void onReleased(BaseDanmaku element) {
+        element.reset();
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.text.TextPaint;
+
+/**
+ * 不可变的弹幕文字样式:字号,颜色,描边/阴影/抗锯齿和透明度.
+ * 样式按线程驻留,每个样式持有配置好的Paint,绘制时直接使用,不再逐条修改Paint状态,
+ * 不同线程可以同时绘制.
+ * 字体,描边宽度,阴影半径等全局设置变化时调用{@link #invalidateAll()}
+ */
+public final class DanmakuStyle {
+
+    public static final int FLAG_STROKE = 1;
+
+    public static final int FLAG_SHADOW = 1 << 1;
+
+    public static final int FLAG_ANTI_ALIAS = 1 << 2;
+
+    private static volatile int sGeneration;
+
+    private static final ThreadLocal<Pool> sPools = new ThreadLocal<Pool>() {
+
+        @Override
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
+
+    public final float textSize;
+
+    public final int textColor;
+
+    public final int strokeColor;
+
+    public final int alpha;
+
+    public final int flags;
+
+    /**
+     * 填充文字用
+     */
+    public final TextPaint fillPaint;
+
+    /**
+     * 描边用,没有描边时为null
+     */
+    public final TextPaint strokePaint;
+
+    public final float ascent;
+
+    private final int mHash;
+
+    private DanmakuStyle(TextPaint template, float textSize, int textColor, int strokeColor,
+            int alpha, int flags, float shadowRadius, int hash) {
+        this.textSize = textSize;
+        this.textColor = textColor;
+        this.strokeColor = strokeColor;
+        this.alpha = alpha;
+        this.flags = flags;
+        mHash = hash;
+        fillPaint = createPaint(template, shadowRadius, Style.FILL, textColor);
+        strokePaint = (flags & FLAG_STROKE) != 0 ? createPaint(template, shadowRadius,
+                Style.STROKE, strokeColor) : null;
+        ascent = fillPaint.ascent();
+    }
+
+    private TextPaint createPaint(TextPaint template, float shadowRadius, Style style, int color) {
+        TextPaint paint = new TextPaint(template);
+        paint.setTextSize(textSize);
+        if ((flags & FLAG_SHADOW) != 0) {
+            paint.setShadowLayer(shadowRadius, 0, 0, strokeColor);
+        } else {
+            paint.clearShadowLayer();
+        }
+        paint.setAntiAlias((flags & FLAG_ANTI_ALIAS) != 0);
+        paint.setStyle(style);
+        paint.setColor((color & 0x00FFFFFF) | (alpha << 24));
+        return paint;
+    }
+
+    private boolean matches(float textSize, int textColor, int strokeColor, int alpha, int flags) {
+        return this.textSize == textSize && this.textColor == textColor
+                && this.strokeColor == strokeColor && this.alpha == alpha && this.flags == flags;
+    }
+
+    /**
+     * 取当前线程驻留的样式,不存在时按template创建
+     * 
+     * @param template 提供字体,粗体,描边宽度等全局设置
+     */
+    public static DanmakuStyle obtain(TextPaint template, float textSize, int textColor,
+            int strokeColor, int alpha, int flags, float shadowRadius) {
+        return sPools.get().obtain(template, textSize, textColor, strokeColor, alpha, flags,
+                shadowRadius);
+    }
+
+    /**
+     * 所有线程驻留的样式作废,下次使用时重建
+     */
+    public static void invalidateAll() {
+        sGeneration++;
+    }
+
+    /**
+     * @return 当前线程的下划线Paint
+     */
+    public static Paint getUnderlinePaint(int color, float width) {
+        Pool pool = sPools.get();
+        return pool.getLinePaint(pool.mUnderlinePaint, color, width);
+    }
+
+    /**
+     * @return 当前线程的边框Paint
+     */
+    public static Paint getBorderPaint(int color, float width) {
+        Pool pool = sPools.get();
+        return pool.getLinePaint(pool.mBorderPaint, color, width);
+    }
+
+    private static int hash(float textSize, int textColor, int strokeColor, int alpha, int flags) {
+        int h = Float.floatToIntBits(textSize);
+        h = h * 31 + textColor;
+        h = h * 31 + strokeColor;
+        h = h * 31 + alpha;
+        h = h * 31 + flags;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 每个线程最多驻留{@link #MAX_STYLES}个样式,满了按CLOCK淘汰一个最近没用到的
+     */
+    private static class Pool {
+
+        private static final int MAX_STYLES = 128;
+
+        private static final int TABLE_SIZE = 256;
+
+        private final DanmakuStyle[] mStyles = new DanmakuStyle[MAX_STYLES];
+
+        /**
+         * 哈希桶,值为mStyles下标+1,0表示空
+         */
+        private final int[] mBuckets = new int[TABLE_SIZE];
+
+        /**
+         * 同一个桶里下一个样式的下标+1
+         */
+        private final int[] mNext = new int[MAX_STYLES];
+
+        private final boolean[] mReferenced = new boolean[MAX_STYLES];
+
+        private int mSize;
+
+        private int mHand;
+
+        private int mGeneration = sGeneration;
+
+        final Paint mUnderlinePaint = new Paint();
+
+        final Paint mBorderPaint = new Paint();
+
+        Pool() {
+            mUnderlinePaint.setStyle(Style.STROKE);
+            mBorderPaint.setStyle(Style.STROKE);
+        }
+
+        DanmakuStyle obtain(TextPaint template, float textSize, int textColor, int strokeColor,
+                int alpha, int flags, float shadowRadius) {
+            int generation = sGeneration;
+            if (mGeneration != generation) {
+                clear();
+                mGeneration = generation;
+            }
+            int hash = hash(textSize, textColor, strokeColor, alpha, flags);
+            int bucket = hash & (TABLE_SIZE - 1);
+            for (int i = mBuckets[bucket]; i != 0; i = mNext[i - 1]) {
+                DanmakuStyle style = mStyles[i - 1];
+                if (style.mHash == hash
+                        && style.matches(textSize, textColor, strokeColor, alpha, flags)) {
+                    mReferenced[i - 1] = true;
+                    return style;
+                }
+            }
+            int index = mSize < MAX_STYLES ? mSize++ : evict();
+            DanmakuStyle style = new DanmakuStyle(template, textSize, textColor, strokeColor,
+                    alpha, flags, shadowRadius, hash);
+            mStyles[index] = style;
+            mReferenced[index] = true;
+            mNext[index] = mBuckets[bucket];
+            mBuckets[bucket] = index + 1;
+            return style;
+        }
+
+        /**
+         * @return 空出来的下标
+         */
+        private int evict() {
+            while (mReferenced[mHand]) {
+                mReferenced[mHand] = false;
+                mHand = (mHand + 1) % MAX_STYLES;
+            }
+            int index = mHand;
+            mHand = (mHand + 1) % MAX_STYLES;
+            int bucket = mStyles[index].mHash & (TABLE_SIZE - 1);
+            if (mBuckets[bucket] == index + 1) {
+                mBuckets[bucket] = mNext[index];
+            } else {
+                int prev = mBuckets[bucket] - 1;
+                while (mNext[prev] != index + 1) {
+                    prev = mNext[prev] - 1;
+                }
+                mNext[prev] = mNext[index];
+            }
+            mStyles[index] = null;
+            return index;
+        }
+
+        Paint getLinePaint(Paint paint, int color, float width) {
+            if (paint.getStrokeWidth() != width) {
+                paint.setStrokeWidth(width);
+            }
+            paint.setColor(color);
+            return paint;
+        }
+
+        private void clear() {
+            for (int i = 0; i < MAX_STYLES; i++) {
+                mStyles[i] = null;
+                mReferenced[i] = false;
+            }
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                mBuckets[i] = 0;
+            }
+            mSize = 0;
+            mHand = 0;
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ import master.flame.danmaku.danmaku.model.IDanmakuIterator;
 import master.flame.danmaku.danmaku.model.IDanmakus;
 import master.flame.danmaku.danmaku.util.DanmakuUtils;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -52,6 +53,30 @@ public class Danmakus implements IDanmakus {
     private BaseDanmaku endSubItem;
 
     private BaseDanmaku startSubItem;
+
+    /**
+     * sub()结果复用的列表,绘制线程每帧按下标遍历,不用再创建TreeMap的迭代器
+     */
+    private ArrayList<BaseDanmaku> mSubList;
+
+    /**
+     * items的修改次数,sub()据此判断复用的列表是否过期
+     */
+    private int mModCount;
+
+    private int mSubModCount;
+
+    /**
+     * items的有序副本,sub()在它上面二分截取,不用再创建subSet和迭代器.
+     * 第一次sub()时建立,之后随items的增删二分插入/删除,不再整体重建
+     */
+    private ArrayList<BaseDanmaku> mSortedItems;
+
+    /**
+     * 不为null时items是按它排好序的ArrayList,addItem二分插入.
+     * sub()复制出的窗口按时间排序,否则绘制时会提前遇到isLate而中断
+     */
+    private Comparator<BaseDanmaku> mListComparator;
     
     private DanmakuIterator iterator;
 
@@ -72,6 +97,14 @@ public class Danmakus implements IDanmakus {
     }
 
     public Danmakus(int sortType, boolean duplicateMergingEnabled) {
+        this(sortType, duplicateMergingEnabled, false);
+    }
+
+    /**
+     * @param sortedList 用有序ArrayList代替TreeSet,增删和遍历都不分配对象,
+     *            适合元素少、每帧都要查找插入的集合;不支持sub/subnew
+     */
+    public Danmakus(int sortType, boolean duplicateMergingEnabled, boolean sortedList) {
         BaseComparator comparator = null;
         if (sortType == ST_BY_TIME) {
             comparator = new TimeComparator(duplicateMergingEnabled);
@@ -85,8 +118,14 @@ public class Danmakus implements IDanmakus {
         } else {
             mDuplicateMergingEnabled = duplicateMergingEnabled;
             comparator.setDuplicateMergingEnabled(duplicateMergingEnabled);
-            items = new TreeSet<BaseDanmaku>(comparator);
             mComparator = comparator;
+            if (sortedList) {
+                items = new ArrayList<BaseDanmaku>();
+                mListComparator = comparator;
+                sortType = ST_BY_LIST;
+            } else {
+                items = new TreeSet<BaseDanmaku>(comparator);
+            }
         }
         mSortType = sortType;
         mSize = 0;
@@ -110,6 +149,9 @@ public class Danmakus implements IDanmakus {
         else {
             this.items = items;
         }
+        mListComparator = null;
+        mSortedItems = null;
+        mModCount++;
         if (items instanceof List) {
             mSortType = ST_BY_LIST;
         }
@@ -126,12 +168,55 @@ public class Danmakus implements IDanmakus {
         return iterator;
     }
 
+    @Override
+    public void forEach(Consumer consumer) {
+        Collection<BaseDanmaku> items = this.items;
+        if (items == null || items.isEmpty()) {
+            return;
+        }
+        if (items instanceof ArrayList) {
+            // 按下标遍历,不分配迭代器
+            ArrayList<BaseDanmaku> list = (ArrayList<BaseDanmaku>) items;
+            for (int i = 0; i < list.size(); i++) {
+                int action = consumer.accept(list.get(i));
+                if (action == Consumer.ACTION_BREAK) {
+                    break;
+                } else if (action == Consumer.ACTION_REMOVE) {
+                    list.remove(i--);
+                    mSize--;
+                    mModCount++;
+                }
+            }
+            return;
+        }
+        Iterator<BaseDanmaku> it = items.iterator();
+        while (it.hasNext()) {
+            BaseDanmaku item = it.next();
+            int action = consumer.accept(item);
+            if (action == Consumer.ACTION_BREAK) {
+                break;
+            } else if (action == Consumer.ACTION_REMOVE) {
+                it.remove();
+                removeSorted(item);
+                mSize--;
+                mModCount++;
+            }
+        }
+    }
+
     @Override
     public boolean addItem(BaseDanmaku item) {
+        if (mListComparator != null) {
+            return insertSorted((ArrayList<BaseDanmaku>) items, item);
+        }
         if (items != null) {
             try {
                 if (items.add(item)) {
+                    if (mSortedItems != null) {
+                        mSortedItems.add(lowerBound(mSortedItems, item), item);
+                    }
                     mSize++;
+                    mModCount++;
                     return true;
                 }
             } catch (Exception e) {
@@ -141,6 +226,25 @@ public class Danmakus implements IDanmakus {
         return false;
     }
 
+    private boolean insertSorted(ArrayList<BaseDanmaku> list, BaseDanmaku item) {
+        int low = 0, high = list.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int result = mListComparator.compare(list.get(mid), item);
+            if (result < 0) {
+                low = mid + 1;
+            } else if (result > 0) {
+                high = mid - 1;
+            } else {
+                return false;
+            }
+        }
+        list.add(low, item);
+        mSize++;
+        mModCount++;
+        return true;
+    }
+
     @Override
     public boolean removeItem(BaseDanmaku item) {
         if (item == null) {
@@ -150,12 +254,25 @@ public class Danmakus implements IDanmakus {
             item.setVisibility(false);
         }
         if (items.remove(item)) {
+            removeSorted(item);
             mSize--;
+            mModCount++;
             return true;
         }
         return false;
     }
 
+    private void removeSorted(BaseDanmaku item) {
+        ArrayList<BaseDanmaku> sortedItems = mSortedItems;
+        if (sortedItems == null) {
+            return;
+        }
+        int index = lowerBound(sortedItems, item);
+        if (index < sortedItems.size() && mComparator.compare(sortedItems.get(index), item) == 0) {
+            sortedItems.remove(index);
+        }
+    }
+
     private Collection<BaseDanmaku> subset(long startTime, long endTime) {
         if (mSortType == ST_BY_LIST || items == null || items.size() == 0) {
             return null;
@@ -196,7 +313,7 @@ public class Danmakus implements IDanmakus {
             endItem = createItem("end");
         }
 
-        if (subItems != null) {
+        if (subItems != null && mSubModCount == mModCount) {
             long dtime = startTime - startItem.time;
             if (dtime >= 0 && endTime <= endItem.time) {
                 return subItems;
@@ -205,10 +322,49 @@ public class Danmakus implements IDanmakus {
 
         startItem.time = startTime;
         endItem.time = endTime;
-        subItems.setItems(((SortedSet<BaseDanmaku>) items).subSet(startItem, endItem));
+        mSubModCount = mModCount;
+        if (mDuplicateMergingEnabled || mComparator == null) {
+            subItems.setItems(((SortedSet<BaseDanmaku>) items).subSet(startItem, endItem));
+            return subItems;
+        }
+        // 复制一份,绘制线程按下标遍历
+        ArrayList<BaseDanmaku> sortedItems = getSortedItems();
+        int end = lowerBound(sortedItems, endItem);
+        if (mSubList == null) {
+            mSubList = new ArrayList<BaseDanmaku>();
+        }
+        mSubList.clear();
+        for (int i = lowerBound(sortedItems, startItem); i < end; i++) {
+            mSubList.add(sortedItems.get(i));
+        }
+        subItems.setItems(mSubList);
+        subItems.mListComparator = subItems.mComparator;
         return subItems;
     }
 
+    private ArrayList<BaseDanmaku> getSortedItems() {
+        if (mSortedItems == null) {
+            mSortedItems = new ArrayList<BaseDanmaku>(items);
+        }
+        return mSortedItems;
+    }
+
+    /**
+     * @return 第一个不小于key的下标,与subSet的左闭右开一致
+     */
+    private int lowerBound(ArrayList<BaseDanmaku> list, BaseDanmaku key) {
+        int low = 0, high = list.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mComparator.compare(list.get(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     private BaseDanmaku createItem(String text) {
         return new Danmaku(text);
     }
@@ -222,6 +378,10 @@ public class Danmakus implements IDanmakus {
         if (items != null){
             items.clear();
             mSize = 0;
+            mModCount++;
+        }
+        if (mSortedItems != null) {
+            mSortedItems.clear();
         }
         if (subItems != null) {
             subItems.clear();
@@ -232,7 +392,7 @@ public class Danmakus implements IDanmakus {
     public BaseDanmaku first() {
         if (items != null && !items.isEmpty()) {
             if (mSortType == ST_BY_LIST) {
-                return ((LinkedList<BaseDanmaku>) items).getFirst();
+                return ((List<BaseDanmaku>) items).get(0);
             }
             return ((SortedSet<BaseDanmaku>) items).first();
         }
@@ -243,7 +403,8 @@ public class Danmakus implements IDanmakus {
     public BaseDanmaku last() {
         if (items != null && !items.isEmpty()) {
             if (mSortType == ST_BY_LIST) {
-                return ((LinkedList<BaseDanmaku>) items).getLast();
+                List<BaseDanmaku> list = (List<BaseDanmaku>) items;
+                return list.get(list.size() - 1);
             }
             return ((SortedSet<BaseDanmaku>) items).last();
         }
@@ -256,11 +417,26 @@ public class Danmakus implements IDanmakus {
         private Iterator<BaseDanmaku> it;
         private boolean mIteratorUsed;
 
+        /**
+         * mData是ArrayList时按下标遍历,不分配迭代器
+         */
+        private ArrayList<BaseDanmaku> mList;
+        private int mIndex;
+
+        /**
+         * it最近返回的弹幕,remove时同步删掉有序副本里的
+         */
+        private BaseDanmaku mLast;
+
         public DanmakuIterator(Collection<BaseDanmaku> datas){
             setDatas(datas);
         }
         
         public synchronized void reset() {
+            if (mList != null) {
+                mIndex = 0;
+                return;
+            }
             if (!mIteratorUsed && it != null) {
                 return;
             }
@@ -277,24 +453,44 @@ public class Danmakus implements IDanmakus {
                 it = null;
             }
             mData = datas;
+            mList = datas instanceof ArrayList ? (ArrayList<BaseDanmaku>) datas : null;
+            mIndex = 0;
+            mLast = null;
         }
 
         @Override
         public synchronized BaseDanmaku next() {
             mIteratorUsed = true;
-            return it != null ? it.next() : null;
+            if (mList != null) {
+                return mIndex < mList.size() ? mList.get(mIndex++) : null;
+            }
+            mLast = it != null ? it.next() : null;
+            return mLast;
         }
 
         @Override
         public synchronized boolean hasNext() {
+            if (mList != null) {
+                return mIndex < mList.size();
+            }
             return it != null && it.hasNext();
         }
 
         @Override
         public synchronized void remove() {
             mIteratorUsed = true;
+            if (mList != null) {
+                if (mIndex > 0) {
+                    mList.remove(--mIndex);
+                    mSize--;
+                    mModCount++;
+                }
+                return;
+            }
             if (it != null) {
                 it.remove();
+                removeSorted(mLast);
+                mModCount++;
             }
         }
 
@@ -391,7 +587,8 @@ public class Danmakus implements IDanmakus {
     public void setSubItemsDuplicateMergingEnabled(boolean enable) {
         mDuplicateMergingEnabled = enable;
         startItem = endItem = null;
-        if (subItems == null) {
+        if (subItems == null || subItems.mSortType == ST_BY_LIST) {
+            // 复用列表的sub结果不能去重,换回有序集合
             subItems = new Danmakus(enable);
         }
         subItems.setDuplicateMergingEnabled(enable);
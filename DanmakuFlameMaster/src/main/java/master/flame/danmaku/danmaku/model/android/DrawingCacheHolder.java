@@ -19,6 +19,13 @@ public class DrawingCacheHolder {
 
     public int height;
 
+    /**
+     * 绘制缓存时弹幕的尺寸,重新measure后与弹幕尺寸不同时缩放绘制
+     */
+    public float contentWidth;
+
+    public float contentHeight;
+
     public boolean drawn;
 
     @SuppressWarnings("unused")
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Paint;
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+/**
+ * 按字号缓存单个字符的宽度,文字宽度近似为各字符宽度之和.
+ * 弹幕大多是中日韩文字,字形宽度几乎相同,只需测量一次.
+ * BMP字符按256个一页懒加载,其余字符放在稀疏表里;
+ * 需要字形组合或双向排版的文字(阿拉伯文,印度系文字,组合符,emoji序列等)仍用measureText.
+ * 不依赖具体的displayer,字体或粗体变化时需要{@link #clear()}
+ */
+public class GlyphWidthTable {
+
+    private static final int PAGE_SHIFT = 8;
+
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_COUNT = 0x10000 >> PAGE_SHIFT;
+
+    private static final int MAX_TEXT_SIZE_COUNT = 16;
+
+    private static final float UNKNOWN = -1f;
+
+    private final float[] mTextSizes = new float[MAX_TEXT_SIZE_COUNT];
+
+    private final float[][][] mPages = new float[MAX_TEXT_SIZE_COUNT][][];
+
+    private final SparseIntArray[] mSupplementary = new SparseIntArray[MAX_TEXT_SIZE_COUNT];
+
+    private int mTextSizeCount;
+
+    private final char[] mCharBuffer = new char[2];
+
+    public synchronized float measureText(Paint paint, String text) {
+        int length = text.length();
+        if (length == 0) {
+            return 0;
+        }
+        if (needsShaping(text)) {
+            return paint.measureText(text);
+        }
+        int index = indexOf(paint.getTextSize());
+        float width = 0;
+        for (int i = 0; i < length;) {
+            int codePoint = text.codePointAt(i);
+            width += getAdvance(paint, index, codePoint);
+            i += Character.charCount(codePoint);
+        }
+        return width;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mTextSizeCount; i++) {
+            mPages[i] = null;
+            mSupplementary[i] = null;
+        }
+        mTextSizeCount = 0;
+    }
+
+    private int indexOf(float textSize) {
+        for (int i = 0; i < mTextSizeCount; i++) {
+            if (mTextSizes[i] == textSize) {
+                return i;
+            }
+        }
+        if (mTextSizeCount == MAX_TEXT_SIZE_COUNT) {
+            // 字号种类很少,满了直接重来
+            clear();
+        }
+        int index = mTextSizeCount++;
+        mTextSizes[index] = textSize;
+        mPages[index] = new float[PAGE_COUNT][];
+        return index;
+    }
+
+    private float getAdvance(Paint paint, int index, int codePoint) {
+        if (codePoint < 0x10000) {
+            float[][] pages = mPages[index];
+            float[] page = pages[codePoint >> PAGE_SHIFT];
+            if (page == null) {
+                page = pages[codePoint >> PAGE_SHIFT] = new float[PAGE_SIZE];
+                Arrays.fill(page, UNKNOWN);
+            }
+            float advance = page[codePoint & (PAGE_SIZE - 1)];
+            if (advance == UNKNOWN) {
+                advance = page[codePoint & (PAGE_SIZE - 1)] = measureCodePoint(paint, codePoint);
+            }
+            return advance;
+        }
+        SparseIntArray supplementary = mSupplementary[index];
+        if (supplementary == null) {
+            supplementary = mSupplementary[index] = new SparseIntArray();
+        }
+        int position = supplementary.indexOfKey(codePoint);
+        if (position >= 0) {
+            return Float.intBitsToFloat(supplementary.valueAt(position));
+        }
+        float advance = measureCodePoint(paint, codePoint);
+        supplementary.put(codePoint, Float.floatToIntBits(advance));
+        return advance;
+    }
+
+    private float measureCodePoint(Paint paint, int codePoint) {
+        int count = Character.toChars(codePoint, mCharBuffer, 0);
+        return paint.measureText(mCharBuffer, 0, count);
+    }
+
+    /**
+     * @return 文字宽度是否依赖字形组合,不能逐字相加
+     */
+    private static boolean needsShaping(String text) {
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x0300) {
+                continue;
+            }
+            if (c < 0x0370 // 组合附加符号
+                    || (c >= 0x0590 && c < 0x1100) // 希伯来文,阿拉伯文,印度系,东南亚文字等
+                    || (c >= 0x1100 && c < 0x1200) // 谚文字母
+                    || (c >= 0x1780 && c < 0x1800) // 高棉文
+                    || (c >= 0x200B && c < 0x2010) // 零宽字符,方向控制
+                    || (c >= 0x202A && c < 0x202F)
+                    || (c >= 0x20D0 && c < 0x2100) // 符号用组合符
+                    || c == 0x3099 || c == 0x309A // 假名浊音组合符
+                    || (c >= 0xFB1D && c < 0xFE00) // 希伯来文,阿拉伯文表现形式
+                    || (c >= 0xFE00 && c < 0xFE10) // 变体选择符
+                    || (c >= 0xFE20 && c < 0xFE30)
+                    || (c >= 0xFE70 && c < 0xFF00)) {
+                return true;
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < length) {
+                int codePoint = Character.toCodePoint(c, text.charAt(i + 1));
+                if ((codePoint >= 0x1F1E6 && codePoint <= 0x1F1FF) // 国旗
+                        || (codePoint >= 0x1F3FB && codePoint <= 0x1F3FF) // 肤色
+                        || codePoint >= 0xE0000) { // 标签,变体选择符补充
+                    return true;
+                }
+                i++;
+            }
+        }
+        return false;
+    }
+
+}
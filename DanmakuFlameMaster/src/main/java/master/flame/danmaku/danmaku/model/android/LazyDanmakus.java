@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.model.android;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakuIterator;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+
+/**
+ * 按需创建弹幕对象的集合.弹幕数据以列的形式保存在{@link Source}里,
+ * 只有被{@link #sub(long, long)}/{@link #subnew(long, long)}覆盖到的行才会创建BaseDanmaku,
+ * 播放位置之后不再需要的对象会被释放,占用的内存与弹幕文件大小基本无关.
+ * 
+ * {@link #iterator()}/{@link #forEach(Consumer)}/{@link #first()}/{@link #last()}只涉及已创建的对象;
+ * 通过{@link #addItem(BaseDanmaku)}加入的弹幕(如直播弹幕)不会被释放.
+ * 与{@link Danmakus}一样不是线程安全的,使用方以集合本身加锁
+ */
+public class LazyDanmakus implements IDanmakus {
+
+    public interface Source {
+
+        /**
+         * @return 行数
+         */
+        public int size();
+
+        /**
+         * 行按时间升序排列
+         */
+        public long getTime(int row);
+
+        /**
+         * 创建第row行的弹幕,其index须为row
+         * 
+         * @return 数据无效时返回null
+         */
+        public BaseDanmaku create(int row);
+
+        /**
+         * 第row行的弹幕已从集合中移除,不会再被使用
+         */
+        public void recycle(BaseDanmaku item);
+
+    }
+
+    private final Source mSource;
+
+    private final int mRowCount;
+
+    /**
+     * 已创建的行[mBegin, mEnd)和额外加入的弹幕
+     */
+    private final Danmakus mWindow = new Danmakus();
+
+    private final Danmakus mExtras = new Danmakus();
+
+    private int mBegin;
+
+    private int mEnd;
+
+    /**
+     * 被移除或创建失败的行,按需分配
+     */
+    private boolean[] mRemovedRows;
+
+    private int mRemovedCount;
+
+    private final LazyIterator mIterator = new LazyIterator();
+
+    public LazyDanmakus(Source source) {
+        mSource = source;
+        mRowCount = source.size();
+    }
+
+    @Override
+    public boolean addItem(BaseDanmaku item) {
+        if (mExtras.addItem(item)) {
+            mWindow.addItem(item);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean removeItem(BaseDanmaku item) {
+        if (!mWindow.removeItem(item)) {
+            return false;
+        }
+        onRemoved(item);
+        return true;
+    }
+
+    private void onRemoved(BaseDanmaku item) {
+        if (!mExtras.removeItem(item)) {
+            markRemoved(item.index);
+        }
+    }
+
+    private void markRemoved(int row) {
+        if (row < 0 || row >= mRowCount) {
+            return;
+        }
+        if (mRemovedRows == null) {
+            mRemovedRows = new boolean[mRowCount];
+        }
+        if (!mRemovedRows[row]) {
+            mRemovedRows[row] = true;
+            mRemovedCount++;
+        }
+    }
+
+    @Override
+    public IDanmakus subnew(long startTime, long endTime) {
+        ensureRows(indexOf(startTime), indexOf(endTime));
+        return mWindow.subnew(startTime, endTime);
+    }
+
+    /**
+     * sub由绘制线程按播放位置调用,起点之前已创建的行在这里释放
+     */
+    @Override
+    public IDanmakus sub(long startTime, long endTime) {
+        int begin = indexOf(startTime);
+        ensureRows(begin, indexOf(endTime));
+        recycleRowsBefore(begin);
+        return mWindow.sub(startTime, endTime);
+    }
+
+    /**
+     * @return 第一条时间不小于time的行
+     */
+    private int indexOf(long time) {
+        int low = 0;
+        int high = mRowCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSource.getTime(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void ensureRows(int begin, int end) {
+        if (begin >= end) {
+            return;
+        }
+        int length = end - begin;
+        if (mBegin >= mEnd || begin - mEnd > length || mBegin - end > length) {
+            // 与已创建的行相距太远(如seek),重新开始而不是把中间的行都创建出来
+            recycleRowsBefore(mEnd);
+            mBegin = mEnd = begin;
+        }
+        if (begin < mBegin) {
+            createRows(begin, mBegin);
+            mBegin = begin;
+        }
+        if (end > mEnd) {
+            createRows(mEnd, end);
+            mEnd = end;
+        }
+    }
+
+    private void createRows(int begin, int end) {
+        for (int row = begin; row < end; row++) {
+            if (mRemovedRows != null && mRemovedRows[row]) {
+                continue;
+            }
+            BaseDanmaku item = mSource.create(row);
+            if (item == null) {
+                markRemoved(row);
+            } else {
+                mWindow.addItem(item);
+            }
+        }
+    }
+
+    private void recycleRowsBefore(int row) {
+        if (row <= mBegin) {
+            return;
+        }
+        IDanmakuIterator it = mWindow.iterator();
+        while (it.hasNext()) {
+            BaseDanmaku item = it.next();
+            if (mExtras.contains(item)) {
+                continue;
+            }
+            if (item.index >= row) {
+                break;
+            }
+            it.remove();
+            mSource.recycle(item);
+        }
+        mBegin = Math.min(row, mEnd);
+    }
+
+    @Override
+    public int size() {
+        return mRowCount - mRemovedCount + mExtras.size();
+    }
+
+    @Override
+    public void clear() {
+        mWindow.clear();
+        mExtras.clear();
+        mBegin = mEnd = 0;
+        for (int row = 0; row < mRowCount; row++) {
+            markRemoved(row);
+        }
+    }
+
+    @Override
+    public BaseDanmaku first() {
+        return mWindow.first();
+    }
+
+    @Override
+    public BaseDanmaku last() {
+        return mWindow.last();
+    }
+
+    @Override
+    public IDanmakuIterator iterator() {
+        mIterator.reset();
+        return mIterator;
+    }
+
+    @Override
+    public void forEach(final Consumer consumer) {
+        mWindow.forEach(new Consumer() {
+
+            @Override
+            public int accept(BaseDanmaku danmaku) {
+                int action = consumer.accept(danmaku);
+                if (action == ACTION_REMOVE) {
+                    onRemoved(danmaku);
+                }
+                return action;
+            }
+        });
+    }
+
+    @Override
+    public boolean contains(BaseDanmaku item) {
+        return mWindow.contains(item);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void setSubItemsDuplicateMergingEnabled(boolean enable) {
+        mWindow.setSubItemsDuplicateMergingEnabled(enable);
+    }
+
+    private class LazyIterator implements IDanmakuIterator {
+
+        private IDanmakuIterator mIt;
+
+        private BaseDanmaku mCurrent;
+
+        @Override
+        public BaseDanmaku next() {
+            mCurrent = mIt.next();
+            return mCurrent;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mIt.hasNext();
+        }
+
+        @Override
+        public void reset() {
+            mIt = mWindow.iterator();
+            mCurrent = null;
+        }
+
+        @Override
+        public void remove() {
+            mIt.remove();
+            if (mCurrent != null) {
+                onRemoved(mCurrent);
+                mCurrent = null;
+            }
+        }
+
+    }
+
+}
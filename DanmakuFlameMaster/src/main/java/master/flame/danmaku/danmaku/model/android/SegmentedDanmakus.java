@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.model.android;
+
+import android.util.SparseIntArray;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakuIterator;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按时间分段加载的弹幕集合.{@link #sub(long, long)}/{@link #subnew(long, long)}覆盖到的段
+ * 如果还没加载,交给{@link Loader}异步加载,加载完成后通过{@link #onSegmentLoaded(int, List)}并入;
+ * 绘制窗口前后较远的段会被卸载,内存占用与视频时长无关.
+ * 与{@link Danmakus}一样以集合本身加锁
+ */
+public class SegmentedDanmakus implements IDanmakus {
+
+    public interface Loader {
+
+        /**
+         * 异步加载第segment段,完成后调用{@link SegmentedDanmakus#onSegmentLoaded(int, List)}
+         */
+        public void requestSegment(int segment);
+
+    }
+
+    private static final int STATE_LOADING = 1;
+
+    private static final int STATE_LOADED = 2;
+
+    private final Loader mLoader;
+
+    private final long mSegmentDuration;
+
+    private final Danmakus mItems = new Danmakus();
+
+    private final SparseIntArray mStates = new SparseIntArray();
+
+    /**
+     * 缓存线程已请求到的最远一段,卸载时保留
+     */
+    private int mAheadSegment = -1;
+
+    public SegmentedDanmakus(long segmentDuration, Loader loader) {
+        mSegmentDuration = segmentDuration;
+        mLoader = loader;
+    }
+
+    /**
+     * 加载线程回调;加载期间该段已被卸载时丢弃数据
+     * 
+     * @return 并入的弹幕数
+     */
+    public synchronized int onSegmentLoaded(int segment, List<BaseDanmaku> items) {
+        if (mStates.get(segment) != STATE_LOADING) {
+            return 0;
+        }
+        mStates.put(segment, STATE_LOADED);
+        int count = 0;
+        if (items != null) {
+            long begin = segment * mSegmentDuration;
+            long end = begin + mSegmentDuration;
+            for (int i = 0, size = items.size(); i < size; i++) {
+                BaseDanmaku item = items.get(i);
+                // 只收本段时间范围内的,避免相邻段的数据重叠
+                if (item.time >= begin && item.time < end && mItems.addItem(item)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int segmentOf(long time) {
+        return time <= 0 ? 0 : (int) (time / mSegmentDuration);
+    }
+
+    private void requestSegments(long startTime, long endTime) {
+        int last = segmentOf(endTime);
+        for (int segment = segmentOf(startTime); segment <= last; segment++) {
+            if (mStates.get(segment) == 0) {
+                mStates.put(segment, STATE_LOADING);
+                mLoader.requestSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * 卸载[first - 1, last + 1]和缓存线程预取范围之外的段
+     */
+    private void unloadSegments(int first, int last) {
+        last = Math.max(last + 1, mAheadSegment);
+        first = first - 1;
+        int[] unloaded = null;
+        int unloadedCount = 0;
+        for (int i = 0, size = mStates.size(); i < size; i++) {
+            int segment = mStates.keyAt(i);
+            if (segment >= first && segment <= last) {
+                continue;
+            }
+            if (unloaded == null) {
+                unloaded = new int[size];
+            }
+            unloaded[unloadedCount++] = segment;
+        }
+        if (unloadedCount == 0) {
+            return;
+        }
+        for (int i = 0; i < unloadedCount; i++) {
+            mStates.delete(unloaded[i]);
+        }
+        ArrayList<BaseDanmaku> removed = new ArrayList<BaseDanmaku>();
+        IDanmakuIterator it = mItems.iterator();
+        while (it.hasNext()) {
+            BaseDanmaku item = it.next();
+            int segment = segmentOf(item.time);
+            if ((segment < first || segment > last) && !item.isLive) {
+                removed.add(item);
+            }
+        }
+        for (int i = 0, size = removed.size(); i < size; i++) {
+            mItems.removeItem(removed.get(i));
+        }
+    }
+
+    @Override
+    public synchronized boolean addItem(BaseDanmaku item) {
+        return mItems.addItem(item);
+    }
+
+    @Override
+    public synchronized boolean removeItem(BaseDanmaku item) {
+        return mItems.removeItem(item);
+    }
+
+    /**
+     * 缓存线程按预取范围调用,只请求加载,不卸载
+     */
+    @Override
+    public synchronized IDanmakus subnew(long startTime, long endTime) {
+        requestSegments(startTime, endTime);
+        mAheadSegment = Math.max(mAheadSegment, segmentOf(endTime));
+        return mItems.subnew(startTime, endTime);
+    }
+
+    /**
+     * 绘制线程按播放位置调用,同时卸载远离播放位置的段
+     */
+    @Override
+    public synchronized IDanmakus sub(long startTime, long endTime) {
+        requestSegments(startTime, endTime);
+        int first = segmentOf(startTime);
+        int last = segmentOf(endTime);
+        if (mAheadSegment < first || mAheadSegment > last + 2) {
+            // seek之后旧的预取位置作废
+            mAheadSegment = last;
+        }
+        unloadSegments(first, last);
+        return mItems.sub(startTime, endTime);
+    }
+
+    @Override
+    public synchronized int size() {
+        return mItems.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        mItems.clear();
+        mStates.clear();
+        mAheadSegment = -1;
+    }
+
+    @Override
+    public synchronized BaseDanmaku first() {
+        return mItems.first();
+    }
+
+    @Override
+    public synchronized BaseDanmaku last() {
+        return mItems.last();
+    }
+
+    @Override
+    public IDanmakuIterator iterator() {
+        return mItems.iterator();
+    }
+
+    @Override
+    public void forEach(Consumer consumer) {
+        mItems.forEach(consumer);
+    }
+
+    @Override
+    public synchronized boolean contains(BaseDanmaku item) {
+        return mItems.contains(item);
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return mItems.isEmpty();
+    }
+
+    @Override
+    public void setSubItemsDuplicateMergingEnabled(boolean enable) {
+        mItems.setSubItemsDuplicateMergingEnabled(enable);
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.model.android;
+
+/**
+ * 文字宽度缓存,以(文字, 字号)为键,CLOCK淘汰.
+ * 字体,粗体等影响宽度的设置变化时由调用方清空.
+ * 键和值都存放在基本类型数组里,查找和插入不产生对象
+ */
+class TextMetricsCache {
+
+    /**
+     * 未命中
+     */
+    public static final float MISS = -1f;
+
+    private static final int MAX_TEXT_HEIGHT_SIZE = 16;
+
+    private final int mCapacity;
+
+    private final int mMask;
+
+    /**
+     * 开放寻址哈希表,存放条目下标+1,0为空
+     */
+    private final int[] mTable;
+
+    private final String[] mTexts;
+
+    private final int[] mSizeBits;
+
+    private final int[] mHashes;
+
+    private final float[] mWidths;
+
+    /**
+     * 条目在mTable中的位置
+     */
+    private final int[] mSlots;
+
+    /**
+     * CLOCK访问位
+     */
+    private final boolean[] mReferenced;
+
+    private int mSize;
+
+    private int mHand;
+
+    private final float[] mTextHeightSizes = new float[MAX_TEXT_HEIGHT_SIZE];
+
+    private final float[] mTextHeights = new float[MAX_TEXT_HEIGHT_SIZE];
+
+    private int mTextHeightCount;
+
+    /**
+     * @param capacity 最多缓存的条目数
+     */
+    public TextMetricsCache(int capacity) {
+        mCapacity = capacity;
+        int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        mMask = tableSize - 1;
+        mTable = new int[tableSize];
+        mTexts = new String[capacity];
+        mSizeBits = new int[capacity];
+        mHashes = new int[capacity];
+        mWidths = new float[capacity];
+        mSlots = new int[capacity];
+        mReferenced = new boolean[capacity];
+    }
+
+    /**
+     * @return 文字宽度,未缓存时返回{@link #MISS}
+     */
+    public synchronized float getWidth(String text, float textSize) {
+        int sizeBits = Float.floatToIntBits(textSize);
+        int hash = hash(text, sizeBits);
+        for (int slot = hash & mMask;; slot = (slot + 1) & mMask) {
+            int entry = mTable[slot] - 1;
+            if (entry < 0) {
+                return MISS;
+            }
+            if (mHashes[entry] == hash && mSizeBits[entry] == sizeBits
+                    && (mTexts[entry] == text || mTexts[entry].equals(text))) {
+                mReferenced[entry] = true;
+                return mWidths[entry];
+            }
+        }
+    }
+
+    public synchronized void putWidth(String text, float textSize, float width) {
+        int sizeBits = Float.floatToIntBits(textSize);
+        int hash = hash(text, sizeBits);
+        int entry;
+        if (mSize < mCapacity) {
+            entry = mSize++;
+        } else {
+            entry = evict();
+        }
+        int slot = hash & mMask;
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mMask;
+        }
+        mTable[slot] = entry + 1;
+        mSlots[entry] = slot;
+        mTexts[entry] = text;
+        mSizeBits[entry] = sizeBits;
+        mHashes[entry] = hash;
+        mWidths[entry] = width;
+        mReferenced[entry] = false;
+    }
+
+    /**
+     * @return 行高,未缓存时返回{@link #MISS}
+     */
+    public synchronized float getTextHeight(float textSize) {
+        for (int i = 0; i < mTextHeightCount; i++) {
+            if (mTextHeightSizes[i] == textSize) {
+                return mTextHeights[i];
+            }
+        }
+        return MISS;
+    }
+
+    public synchronized void putTextHeight(float textSize, float textHeight) {
+        if (mTextHeightCount == MAX_TEXT_HEIGHT_SIZE) {
+            // 字号种类很少,满了直接重来
+            mTextHeightCount = 0;
+        }
+        mTextHeightSizes[mTextHeightCount] = textSize;
+        mTextHeights[mTextHeightCount] = textHeight;
+        mTextHeightCount++;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = 0;
+        }
+        for (int i = 0; i < mSize; i++) {
+            mTexts[i] = null;
+        }
+        mSize = 0;
+        mHand = 0;
+        mTextHeightCount = 0;
+    }
+
+    /**
+     * CLOCK: 跳过并清除访问位已置位的条目,淘汰第一个未被访问的
+     * 
+     * @return 腾出的条目下标
+     */
+    private int evict() {
+        while (mReferenced[mHand]) {
+            mReferenced[mHand] = false;
+            mHand = (mHand + 1) % mCapacity;
+        }
+        int victim = mHand;
+        mHand = (mHand + 1) % mCapacity;
+        removeSlot(mSlots[victim]);
+        mTexts[victim] = null;
+        return victim;
+    }
+
+    /**
+     * 线性探测的删除:把后面探测链上的条目前移填补空位
+     */
+    private void removeSlot(int hole) {
+        mTable[hole] = 0;
+        for (int slot = (hole + 1) & mMask;; slot = (slot + 1) & mMask) {
+            int entry = mTable[slot] - 1;
+            if (entry < 0) {
+                return;
+            }
+            int home = mHashes[entry] & mMask;
+            if (((slot - home) & mMask) >= ((slot - hole) & mMask)) {
+                mTable[hole] = entry + 1;
+                mSlots[entry] = hole;
+                mTable[slot] = 0;
+                hole = slot;
+            }
+        }
+    }
+
+    private static int hash(String text, int sizeBits) {
+        int h = text.hashCode() * 31 + sizeBits;
+        // 打散低位,表大小是2的幂
+        return h ^ (h >>> 16);
+    }
+
+}
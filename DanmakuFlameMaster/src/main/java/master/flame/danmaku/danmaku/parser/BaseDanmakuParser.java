@@ -24,6 +24,18 @@ import master.flame.danmaku.danmaku.model.IDisplayer;
  *
  */
 public abstract class BaseDanmakuParser {
+
+    public interface ParseListener {
+
+        /**
+         * 新一批弹幕已加入{@link #getDanmakus()}返回的集合,可能在解析线程回调
+         * 
+         * @param count 本批数量
+         */
+        public void onDanmakusParsed(int count);
+
+    }
+
     protected IDataSource<?> mDataSource;
 
     protected DanmakuTimer mTimer;
@@ -35,6 +47,10 @@ public abstract class BaseDanmakuParser {
     private IDanmakus mDanmakus;
 
     protected IDisplayer mDisp;
+
+    private ParseListener mParseListener;
+
+    private volatile boolean mReleased;
     
     public BaseDanmakuParser setDisplayer(IDisplayer disp){
         mDisp = disp;
@@ -72,6 +88,18 @@ public abstract class BaseDanmakuParser {
     public DanmakuTimer getTimer() {
         return mTimer;
     }
+
+    public BaseDanmakuParser setParseListener(ParseListener listener) {
+        mParseListener = listener;
+        return this;
+    }
+
+    protected void notifyDanmakusParsed(int count) {
+        ParseListener listener = mParseListener;
+        if (listener != null && !mReleased) {
+            listener.onDanmakusParsed(count);
+        }
+    }
     
     public IDanmakus getDanmakus() {
         if (mDanmakus != null)
@@ -91,7 +119,22 @@ public abstract class BaseDanmakuParser {
 
     protected abstract IDanmakus parse();
 
+    /**
+     * @return {@link #getDanmakus()}是否只返回第一批弹幕,其余在后台线程继续加入
+     */
+    public boolean isIncremental() {
+        return false;
+    }
+
+    /**
+     * 后台解析线程据此提前结束
+     */
+    protected boolean isReleased() {
+        return mReleased;
+    }
+
     public void release() {
+        mReleased = true;
         releaseDataSource();
     }
 
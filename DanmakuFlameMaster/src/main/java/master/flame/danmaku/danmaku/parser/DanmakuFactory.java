@@ -20,18 +20,22 @@ import android.text.TextUtils;
 
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.Duration;
-import master.flame.danmaku.danmaku.model.FBDanmaku;
-import master.flame.danmaku.danmaku.model.FTDanmaku;
 import master.flame.danmaku.danmaku.model.IDanmakuIterator;
 import master.flame.danmaku.danmaku.model.IDanmakus;
 import master.flame.danmaku.danmaku.model.IDisplayer;
-import master.flame.danmaku.danmaku.model.L2RDanmaku;
-import master.flame.danmaku.danmaku.model.R2LDanmaku;
 import master.flame.danmaku.danmaku.model.SpecialDanmaku;
 import master.flame.danmaku.danmaku.model.SpecialDanmaku.LinePath;
 import master.flame.danmaku.danmaku.model.android.DanmakuGlobalConfig;
+import master.flame.danmaku.danmaku.model.android.DanmakuPoolManager;
 import master.flame.danmaku.danmaku.model.android.Danmakus;
+import master.flame.danmaku.danmaku.model.objectpool.Pool;
+import master.flame.danmaku.danmaku.model.objectpool.Pools;
+import master.flame.danmaku.danmaku.util.StringInterner;
 
+/**
+ * 时长,视口尺寸和特殊弹幕集合都是静态共享状态,解析线程和绘制线程都会修改,
+ * 修改这些状态的方法都在DanmakuFactory.class上同步
+ */
 public class DanmakuFactory {
 
     public final static float OLD_BILI_PLAYER_WIDTH = 539;
@@ -52,9 +56,9 @@ public class DanmakuFactory {
 
     public final static long MIN_DANMAKU_DURATION = 4000;
     
-    public static long REAL_DANMAKU_DURATION = COMMON_DANMAKU_DURATION;
+    public static volatile long REAL_DANMAKU_DURATION = COMMON_DANMAKU_DURATION;
 
-    public static long MAX_DANMAKU_DURATION = MIN_DANMAKU_DURATION;
+    public static volatile long MAX_DANMAKU_DURATION = MIN_DANMAKU_DURATION;
 
     public final static long MAX_DANMAKU_DURATION_HIGH_DENSITY = 9000;
     
@@ -67,8 +71,54 @@ public class DanmakuFactory {
     public static IDanmakus sSpecialDanmakus = new Danmakus();
 
     public static IDisplayer sLastDisp;
+
+    /**
+     * 每种类型最多缓存的空闲弹幕对象数
+     */
+    private static final int MAX_POOL_SIZE = 200;
+
+    private static final Pool<BaseDanmaku> sScrollRLPool = createPool(BaseDanmaku.TYPE_SCROLL_RL);
+
+    private static final Pool<BaseDanmaku> sScrollLRPool = createPool(BaseDanmaku.TYPE_SCROLL_LR);
+
+    private static final Pool<BaseDanmaku> sFixTopPool = createPool(BaseDanmaku.TYPE_FIX_TOP);
+
+    private static final Pool<BaseDanmaku> sFixBottomPool = createPool(BaseDanmaku.TYPE_FIX_BOTTOM);
+
+    private static Pool<BaseDanmaku> createPool(int type) {
+        return Pools.synchronizedPool(Pools.finitePool(new DanmakuPoolManager(type),
+                MAX_POOL_SIZE));
+    }
+
+    private static Pool<BaseDanmaku> getPool(int type) {
+        switch (type) {
+            case BaseDanmaku.TYPE_SCROLL_RL:
+                return sScrollRLPool;
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                return sScrollLRPool;
+            case BaseDanmaku.TYPE_FIX_TOP:
+                return sFixTopPool;
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                return sFixBottomPool;
+        }
+        return null;
+    }
+
+    /**
+     * 把不再使用的弹幕放回对象池,之后{@link #createDanmaku}可能返回同一个对象.
+     * 特殊弹幕和仍持有绘制缓存的弹幕不回收;调用方须保证已没有任何集合引用此弹幕
+     */
+    public static void recycleDanmaku(BaseDanmaku item) {
+        if (item == null || item.cache != null || item.isPooled()) {
+            return;
+        }
+        Pool<BaseDanmaku> pool = getPool(item.getType());
+        if (pool != null) {
+            pool.release(item);
+        }
+    }
     
-    public static void resetDurationsData() {
+    public static synchronized void resetDurationsData() {
         sLastDisp = null;
         CURRENT_DISP_WIDTH = CURRENT_DISP_HEIGHT = 0;
         sSpecialDanmakus.clear();
@@ -78,24 +128,25 @@ public class DanmakuFactory {
         MAX_DANMAKU_DURATION = MIN_DANMAKU_DURATION;
     }
     
-    public static void notifyDispSizeChanged(IDisplayer disp) {
+    public static synchronized void notifyDispSizeChanged(IDisplayer disp) {
         if (disp != null)
             sLastDisp = disp;
         createDanmaku(BaseDanmaku.TYPE_SCROLL_RL, disp);
     }
     
-    public static BaseDanmaku createDanmaku(int type) {
+    public static synchronized BaseDanmaku createDanmaku(int type) {
         return createDanmaku(type, sLastDisp);
     }
 
-    public static BaseDanmaku createDanmaku(int type, IDisplayer disp) {
+    public static synchronized BaseDanmaku createDanmaku(int type, IDisplayer disp) {
         if (disp == null)
             return null;
         sLastDisp = disp;
         return createDanmaku(type, disp.getWidth(), disp.getHeight(), CURRENT_DISP_SIZE_FACTOR);
     }
     
-    public static BaseDanmaku createDanmaku(int type, IDisplayer disp, float viewportScale) {
+    public static synchronized BaseDanmaku createDanmaku(int type, IDisplayer disp,
+            float viewportScale) {
         if (disp == null)
             return null;
         sLastDisp = disp;
@@ -110,8 +161,8 @@ public class DanmakuFactory {
      * @param viewportScale 缩放比例,会影响滚动弹幕的存活时间(duration)
      * @return
      */
-    public static BaseDanmaku createDanmaku(int type, int viewportWidth, int viewportHeight,
-            float viewportScale) {
+    public static synchronized BaseDanmaku createDanmaku(int type, int viewportWidth,
+            int viewportHeight, float viewportScale) {
         return createDanmaku(type, (float) viewportWidth, (float) viewportHeight, viewportScale);
     }
     
@@ -123,8 +174,8 @@ public class DanmakuFactory {
      * @param viewportSizeFactor 会影响滚动弹幕的速度/存活时间(duration)
      * @return
      */
-    public static BaseDanmaku createDanmaku(int type, float viewportWidth, float viewportHeight,
-            float viewportSizeFactor) {
+    public static synchronized BaseDanmaku createDanmaku(int type, float viewportWidth,
+            float viewportHeight, float viewportSizeFactor) {
         boolean sizeChanged = updateViewportState(viewportWidth, viewportHeight, viewportSizeFactor);
         if (MAX_Duration_Scroll_Danmaku == null) {
             MAX_Duration_Scroll_Danmaku = new Duration(REAL_DANMAKU_DURATION);
@@ -153,16 +204,20 @@ public class DanmakuFactory {
         BaseDanmaku instance = null;
         switch (type) {
             case 1: // 从右往左滚动
-                instance = new R2LDanmaku(MAX_Duration_Scroll_Danmaku);
+                instance = sScrollRLPool.acquire();
+                instance.duration = MAX_Duration_Scroll_Danmaku;
                 break;
             case 4: // 底端固定
-                instance = new FBDanmaku(MAX_Duration_Fix_Danmaku);
+                instance = sFixBottomPool.acquire();
+                instance.duration = MAX_Duration_Fix_Danmaku;
                 break;
             case 5: // 顶端固定
-                instance = new FTDanmaku(MAX_Duration_Fix_Danmaku);
+                instance = sFixTopPool.acquire();
+                instance.duration = MAX_Duration_Fix_Danmaku;
                 break;
             case 6: // 从左往右滚动
-                instance = new L2RDanmaku(MAX_Duration_Scroll_Danmaku);
+                instance = sScrollLRPool.acquire();
+                instance.duration = MAX_Duration_Scroll_Danmaku;
                 break;
             case 7: // 特殊弹幕
                 instance = new SpecialDanmaku();
@@ -172,8 +227,8 @@ public class DanmakuFactory {
         return instance;
     }
     
-    public static boolean updateViewportState(float viewportWidth, float viewportHeight,
-            float viewportSizeFactor) {
+    public static synchronized boolean updateViewportState(float viewportWidth,
+            float viewportHeight, float viewportSizeFactor) {
         boolean sizeChanged = false;
         if (CURRENT_DISP_WIDTH != (int) viewportWidth
                 || CURRENT_DISP_HEIGHT != (int) viewportHeight
@@ -213,7 +268,7 @@ public class DanmakuFactory {
         }
     }
 
-    public static void updateMaxDanmakuDuration() {
+    public static synchronized void updateMaxDanmakuDuration() {
         long maxScrollDuration = (MAX_Duration_Scroll_Danmaku == null ? 0: MAX_Duration_Scroll_Danmaku.value), 
               maxFixDuration = (MAX_Duration_Fix_Danmaku == null ? 0 : MAX_Duration_Fix_Danmaku.value), 
               maxSpecialDuration = (MAX_Duration_Special_Danmaku == null ? 0: MAX_Duration_Special_Danmaku.value);
@@ -225,7 +280,7 @@ public class DanmakuFactory {
         MAX_DANMAKU_DURATION = Math.max(REAL_DANMAKU_DURATION, MAX_DANMAKU_DURATION);
     }
     
-    public static void updateDurationFactor(float f) {
+    public static synchronized void updateDurationFactor(float f) {
         if (MAX_Duration_Scroll_Danmaku == null || MAX_Duration_Fix_Danmaku == null)
             return;
         MAX_Duration_Scroll_Danmaku.setFactor(f);
@@ -233,7 +288,7 @@ public class DanmakuFactory {
     }
     
     public static void fillText(BaseDanmaku danmaku, String text) {
-        danmaku.text = text;
+        danmaku.text = StringInterner.DEFAULT.intern(text);
         if (TextUtils.isEmpty(text) || !text.contains(BaseDanmaku.DANMAKU_BR_CHAR)) {
             return;
         }
@@ -257,9 +312,9 @@ public class DanmakuFactory {
      * @param translationDuration
      * @param translationStartDelay
      */
-    public static void fillTranslationData(BaseDanmaku item, float beginX, float beginY,
-            float endX, float endY, long translationDuration, long translationStartDelay,
-            float scaleX, float scaleY) {
+    public static synchronized void fillTranslationData(BaseDanmaku item, float beginX,
+            float beginY, float endX, float endY, long translationDuration,
+            long translationStartDelay, float scaleX, float scaleY) {
         if (item.getType() != BaseDanmaku.TYPE_SPECIAL)
             return;
         ((SpecialDanmaku) item).setTranslationData(beginX * scaleX, beginY * scaleY, endX * scaleX,
@@ -267,8 +322,8 @@ public class DanmakuFactory {
         updateSpecicalDanmakuDuration(item);
     }
     
-    public static void fillLinePathData(BaseDanmaku item, float[][] points, float scaleX,
-            float scaleY) {
+    public static synchronized void fillLinePathData(BaseDanmaku item, float[][] points,
+            float scaleX, float scaleY) {
         if (item.getType() != BaseDanmaku.TYPE_SPECIAL || points.length == 0
                 || points[0].length != 2)
             return;
@@ -287,8 +342,8 @@ public class DanmakuFactory {
      * @param endAlpha
      * @param alphaDuraion
      */
-    public static void fillAlphaData(BaseDanmaku item, int beginAlpha, int endAlpha,
-            long alphaDuraion) {
+    public static synchronized void fillAlphaData(BaseDanmaku item, int beginAlpha,
+            int endAlpha, long alphaDuraion) {
         if (item.getType() != BaseDanmaku.TYPE_SPECIAL)
             return;
         ((SpecialDanmaku) item).setAlphaData(beginAlpha, endAlpha, alphaDuraion);
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser;
+
+/**
+ * 按时间分段提供弹幕数据,配合{@link SegmentedDanmakuParser}按播放位置逐段加载
+ */
+public interface ISegmentedDataSource<T> extends IDataSource<T> {
+
+    /**
+     * 在加载线程调用,返回的数据源由调用方释放
+     * 
+     * @param segment 段序号,第n段覆盖[n * 段时长, (n + 1) * 段时长)
+     * @return 该段不存在时返回null
+     */
+    public IDataSource<?> getSegment(int segment);
+
+}
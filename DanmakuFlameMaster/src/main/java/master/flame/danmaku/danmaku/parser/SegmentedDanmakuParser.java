@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakuIterator;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.model.android.SegmentedDanmakus;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 按播放位置逐段加载弹幕的parser,数据源须为{@link ISegmentedDataSource}.
+ * 每段用{@link SegmentParserFactory}创建的parser(如BiliDanmukuParser)解析,
+ * 缓存线程预取到哪里就加载到哪里,远离播放位置的段会被卸载.
+ * 每段加载完成后回调{@link BaseDanmakuParser.ParseListener}
+ */
+public class SegmentedDanmakuParser extends BaseDanmakuParser {
+
+    public interface SegmentParserFactory {
+
+        public BaseDanmakuParser create();
+
+    }
+
+    public static final long DEFAULT_SEGMENT_DURATION = 5 * 60 * 1000;
+
+    private final long mSegmentDuration;
+
+    private final SegmentParserFactory mFactory;
+
+    private ExecutorService mExecutor;
+
+    private SegmentedDanmakus mDanmakus;
+
+    public SegmentedDanmakuParser(SegmentParserFactory factory) {
+        this(DEFAULT_SEGMENT_DURATION, factory);
+    }
+
+    public SegmentedDanmakuParser(long segmentDuration, SegmentParserFactory factory) {
+        mSegmentDuration = segmentDuration;
+        mFactory = factory;
+    }
+
+    @Override
+    protected IDanmakus parse() {
+        if (!(mDataSource instanceof ISegmentedDataSource)) {
+            return null;
+        }
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "DFM Segment Loading Thread");
+            }
+        });
+        mDanmakus = new SegmentedDanmakus(mSegmentDuration, new SegmentedDanmakus.Loader() {
+
+            @Override
+            public void requestSegment(final int segment) {
+                ExecutorService executor = mExecutor;
+                if (executor == null || executor.isShutdown()) {
+                    return;
+                }
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        loadSegment(segment);
+                    }
+                });
+            }
+        });
+        return mDanmakus;
+    }
+
+    private void loadSegment(int segment) {
+        ISegmentedDataSource<?> source = (ISegmentedDataSource<?>) mDataSource;
+        SegmentedDanmakus danmakus = mDanmakus;
+        if (source == null || danmakus == null) {
+            return;
+        }
+        ArrayList<BaseDanmaku> items = new ArrayList<BaseDanmaku>();
+        IDataSource<?> segmentSource = source.getSegment(segment);
+        if (segmentSource != null) {
+            BaseDanmakuParser parser = mFactory.create();
+            parser.setDisplayer(mDisp).setTimer(mTimer).load(segmentSource);
+            // 不走getDanmakus,以免重置DanmakuFactory里其他段共用的时长数据
+            IDanmakus parsed = parser.parse();
+            parser.release();
+            if (parsed != null) {
+                IDanmakuIterator it = parsed.iterator();
+                while (it.hasNext()) {
+                    items.add(it.next());
+                }
+            }
+        }
+        int count = danmakus.onSegmentLoaded(segment, items);
+        if (count > 0) {
+            DanmakuFactory.updateMaxDanmakuDuration();
+            notifyDanmakusParsed(count);
+        }
+    }
+
+    /**
+     * 各段加载时还要用到数据源,不在getDanmakus之后释放
+     */
+    @Override
+    protected void releaseDataSource() {
+    }
+
+    @Override
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        if (mDataSource != null) {
+            mDataSource.release();
+            mDataSource = null;
+        }
+    }
+
+}
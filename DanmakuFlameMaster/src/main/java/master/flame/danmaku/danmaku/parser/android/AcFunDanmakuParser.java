@@ -16,87 +16,220 @@
 
 package master.flame.danmaku.danmaku.parser.android;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.graphics.Color;
 
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.android.Danmakus;
 import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
 import master.flame.danmaku.danmaku.parser.DanmakuFactory;
+import master.flame.danmaku.danmaku.util.StringInterner;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 
 public class AcFunDanmakuParser extends BaseDanmakuParser {
 
+    /**
+     * 增量解析时每批加入的弹幕数量
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    private static final String DEFAULT_TEXT = "....";
+
+    private boolean mIncremental;
+
+    private int mIndex;
+
+    /**
+     * 是否位于外层数组里的某个弹幕数组中
+     */
+    private boolean mInArray;
+
+    private final CommaSeparatedValue mValue = new CommaSeparatedValue();
+
+    /**
+     * 开启后{@link #parse()}解析完第一批弹幕就返回,其余在后台线程继续加入同一个集合,
+     * 每批完成后回调{@link BaseDanmakuParser.ParseListener}.
+     * 使用方遍历集合时需要以集合本身加锁
+     */
+    public AcFunDanmakuParser setIncremental(boolean incremental) {
+        mIncremental = incremental;
+        return this;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    /**
+     * 直接从输入流逐条读取,不构建JSONArray.
+     * 外层数组包含普通弹幕、会员弹幕、锁定弹幕等数组,
+     * 每条弹幕形如{"c":"时间,颜色,类型,字号,...","m":"文字"}
+     */
     @Override
     public Danmakus parse() {
-        if (mDataSource != null && mDataSource instanceof JSONSource) {
-            JSONSource jsonSource = (JSONSource) mDataSource;
-            return doParse(jsonSource.data());
+        if (mDataSource == null || !(mDataSource instanceof JSONSource)) {
+            return new Danmakus();
+        }
+        final JSONSource source = (JSONSource) mDataSource;
+        Reader input = source.openReader();
+        if (input == null) {
+            return new Danmakus();
+        }
+        final Danmakus result = new Danmakus();
+        final JsonTokenizer reader = new JsonTokenizer(input);
+        mIndex = 0;
+        mInArray = false;
+        try {
+            if (reader.peek() != '[') {
+                return result;
+            }
+            reader.consume();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return result;
+        }
+        if (!mIncremental) {
+            parseChunk(reader, result, Integer.MAX_VALUE);
+            return result;
         }
-        return new Danmakus();
+        if (parseChunk(reader, result, CHUNK_SIZE)) {
+            // 数据源交给解析线程释放
+            mDataSource = null;
+            new Thread("DFM Parse Thread") {
+
+                @Override
+                public void run() {
+                    // release()之后停止解析
+                    while (!isReleased() && parseChunk(reader, result, CHUNK_SIZE)) {
+                    }
+                    reader.close();
+                    source.release();
+                    DanmakuFactory.updateMaxDanmakuDuration();
+                }
+            }.start();
+        }
+        return result;
     }
 
     /**
-     * @param danmakuListData 弹幕数据
-     *                        传入的数组内包含普通弹幕，会员弹幕，锁定弹幕。
-     * @return 转换后的Danmakus
+     * @return 是否还有未解析的弹幕
      */
-    private Danmakus doParse(JSONArray danmakuListData) {
-        Danmakus danmakus = new Danmakus();
-        if (danmakuListData == null || danmakuListData.length() == 0) {
-            return danmakus;
+    private boolean parseChunk(JsonTokenizer reader, Danmakus result, int maxCount) {
+        ArrayList<BaseDanmaku> chunk = new ArrayList<BaseDanmaku>(Math.min(maxCount, CHUNK_SIZE));
+        boolean hasMore = false;
+        try {
+            BaseDanmaku item;
+            while (chunk.size() < maxCount && !isReleased() && (item = nextDanmaku(reader)) != null) {
+                chunk.add(item);
+            }
+            hasMore = chunk.size() == maxCount;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (chunk.isEmpty() || isReleased()) {
+            return false;
         }
-        for (int i = 0; i < danmakuListData.length(); i++) {
-            try {
-                JSONArray danmakuArray = danmakuListData.getJSONArray(i);
-                if (danmakuArray != null) {
-                    danmakus = _parse(danmakuArray, danmakus);
+        synchronized (result) {
+            for (int i = 0, size = chunk.size(); i < size; i++) {
+                result.addItem(chunk.get(i));
+            }
+        }
+        notifyDanmakusParsed(chunk.size());
+        return hasMore;
+    }
+
+    /**
+     * @return 下一条有效的弹幕,没有更多时返回null
+     */
+    private BaseDanmaku nextDanmaku(JsonTokenizer reader) throws IOException {
+        while (true) {
+            int c = reader.peek();
+            if (c == JsonTokenizer.EOF) {
+                return null;
+            }
+            if (c == ']') {
+                if (!mInArray) {
+                    return null;
                 }
-            } catch (JSONException e) {
+                reader.consume();
+                mInArray = false;
+                continue;
+            }
+            if (c == '[' && !mInArray) {
+                reader.consume();
+                mInArray = true;
+                continue;
+            }
+            if (c != '{') {
+                reader.skipValue();
+                continue;
+            }
+            BaseDanmaku item = readDanmaku(reader);
+            if (item != null) {
+                return item;
             }
         }
-        return danmakus;
     }
 
-    private Danmakus _parse(JSONArray jsonArray, Danmakus danmakus) {
-        if (danmakus == null) {
-            danmakus = new Danmakus();
+    private BaseDanmaku readDanmaku(JsonTokenizer reader) throws IOException {
+        reader.consume();
+        boolean hasValue = false;
+        String text = DEFAULT_TEXT;
+        while (true) {
+            int c = reader.peek();
+            if (c == '}') {
+                reader.consume();
+                break;
+            }
+            if (c == JsonTokenizer.EOF) {
+                break;
+            }
+            if (c != '"') {
+                reader.skipValue();
+                continue;
+            }
+            StringBuilder name = reader.readString();
+            char key = name.length() == 1 ? name.charAt(0) : 0;
+            if (reader.peek() != '"' || (key != 'c' && key != 'm')) {
+                reader.skipValue();
+            } else if (key == 'c') {
+                mValue.set(reader.readString());
+                hasValue = true;
+            } else {
+                text = StringInterner.DEFAULT.intern(reader.readString());
+            }
         }
-        if (jsonArray == null || jsonArray.length() == 0) {
-            return danmakus;
+        if (!hasValue || mValue.getFieldCount() < 4) {
+            return null;
         }
-        for (int i = 0; i < jsonArray.length(); i++) {
-            try {
-                JSONObject obj = jsonArray.getJSONObject(i);
-                String c = obj.getString("c");
-                String[] values = c.split(",");
-                if (values.length > 0) {
-                    int type = Integer.parseInt(values[2]); // 弹幕类型
-                    if (type == 7)
-                        // FIXME : hard code
-                        // TODO : parse advance danmaku json
-                        continue;
-                    long time = (long) (Float.parseFloat(values[0]) * 1000); // 出现时间
-                    int color = Integer.parseInt(values[1]) | 0xFF000000; // 颜色
-                    float textSize = Float.parseFloat(values[3]); // 字体大小
-                    BaseDanmaku item = DanmakuFactory.createDanmaku(type, mDisp);
-                    if (item != null) {
-                        item.time = time;
-                        item.textSize = textSize * (mDispDensity - 0.6f);
-                        item.textColor = color;
-                        item.textShadowColor = color <= Color.BLACK ? Color.WHITE : Color.BLACK;
-                        DanmakuFactory.fillText(item, obj.optString("m", "...."));
-                        item.index = i;
-                        item.setTimer(mTimer);
-                        danmakus.addItem(item);
-                    }
-                }
-            } catch (JSONException e) {
-            } catch (NumberFormatException e) {
-            }
+        int index = mIndex++;
+        // 数字格式不对的弹幕跳过,不当作0解析
+        if (!mValue.isNumber(0, false) || !mValue.isNumber(1, true) || !mValue.isNumber(2, true)
+                || !mValue.isNumber(3, false)) {
+            return null;
+        }
+        int type = mValue.parseInt(2); // 弹幕类型
+        if (type == 7)
+            // FIXME : hard code
+            // TODO : parse advance danmaku json
+            return null;
+        long time = (long) (mValue.parseFloat(0) * 1000); // 出现时间
+        int color = mValue.parseInt(1) | 0xFF000000; // 颜色
+        float textSize = mValue.parseFloat(3); // 字体大小
+        BaseDanmaku item = DanmakuFactory.createDanmaku(type, mDisp);
+        if (item == null) {
+            return null;
         }
-        return danmakus;
+        item.time = time;
+        item.textSize = textSize * (mDispDensity - 0.6f);
+        item.textColor = color;
+        item.textShadowColor = color <= Color.BLACK ? Color.WHITE : Color.BLACK;
+        DanmakuFactory.fillText(item, text);
+        item.index = index;
+        item.setTimer(mTimer);
+        return item;
     }
 }
@@ -26,228 +26,450 @@ import master.flame.danmaku.danmaku.model.IDisplayer;
 import master.flame.danmaku.danmaku.model.android.Danmakus;
 import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
 import master.flame.danmaku.danmaku.parser.DanmakuFactory;
+import master.flame.danmaku.danmaku.util.DanmakuUtils;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.DefaultHandler;
-import org.xml.sax.helpers.XMLReaderFactory;
 
+import java.io.CharArrayReader;
 import java.io.IOException;
-import java.util.Locale;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class BiliDanmukuParser extends BaseDanmakuParser {
 
-    static {
-        System.setProperty("org.xml.sax.driver", "org.xmlpull.v1.sax2.Driver");
-    }
+    /**
+     * 增量解析时每批加入的弹幕数量
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * 数据量小于此值(字符数)时并行解析不划算,直接单线程解析
+     */
+    private static final int MIN_PARALLEL_LENGTH = 256 * 1024;
+
+    private static final String TRUE_STRING = "true";
+
+    private static final String END_TAG = "</d>";
+
+    private static final Comparator<BaseDanmaku> TIME_COMPARATOR = new Comparator<BaseDanmaku>() {
+
+        @Override
+        public int compare(BaseDanmaku obj1, BaseDanmaku obj2) {
+            return DanmakuUtils.compare(obj1, obj2);
+        }
+    };
 
     private float mDispScaleX;
     private float mDispScaleY;
 
+    private boolean mIncremental;
+
+    private int mParallelism;
+
+    private int mIndex;
+
+    /**
+     * 开启后{@link #parse()}解析完第一批弹幕就返回,其余在后台线程继续加入同一个集合,
+     * 每批完成后回调{@link BaseDanmakuParser.ParseListener}.
+     * 使用方遍历集合时需要以集合本身加锁
+     */
+    public BiliDanmukuParser setIncremental(boolean incremental) {
+        mIncremental = incremental;
+        return this;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    /**
+     * 并行解析使用的线程数,小于2时单线程解析.开启增量解析时忽略此设置.
+     * 输入在&lt;/d&gt;之后切成若干段,各段在线程池里解析并排序,最后多路归并,
+     * 结果(包括index)与单线程解析一致
+     */
+    public BiliDanmukuParser setParallelism(int parallelism) {
+        mParallelism = parallelism;
+        return this;
+    }
+
     @Override
     public Danmakus parse() {
 
         if (mDataSource != null) {
-            AndroidFileSource source = (AndroidFileSource) mDataSource;
+            final AndroidFileSource source = (AndroidFileSource) mDataSource;
+            InputStream stream = source.data();
+            if (stream == null) {
+                return null;
+            }
+            if (!mIncremental && mParallelism > 1) {
+                return parseParallel(stream);
+            }
+            final Danmakus result = new Danmakus();
+            final BiliXmlReader reader;
             try {
-                XMLReader xmlReader = XMLReaderFactory.createXMLReader();
-                XmlContentHandler contentHandler = new XmlContentHandler();
-                xmlReader.setContentHandler(contentHandler);
-                xmlReader.parse(new InputSource(source.data()));
-                return contentHandler.getResult();
-            } catch (SAXException e) {
-                e.printStackTrace();
+                reader = new BiliXmlReader(stream);
             } catch (IOException e) {
                 e.printStackTrace();
+                return null;
+            }
+            mIndex = 0;
+            if (!mIncremental) {
+                parseChunk(reader, result, Integer.MAX_VALUE);
+                return result;
             }
+            if (parseChunk(reader, result, CHUNK_SIZE)) {
+                // 数据源交给解析线程释放
+                mDataSource = null;
+                new Thread("DFM Parse Thread") {
 
+                    @Override
+                    public void run() {
+                        // release()之后停止解析
+                        while (!isReleased() && parseChunk(reader, result, CHUNK_SIZE)) {
+                        }
+                        reader.close();
+                        source.release();
+                        DanmakuFactory.updateMaxDanmakuDuration();
+                    }
+                }.start();
+            }
+            return result;
         }
 
         return null;
     }
 
-    public class XmlContentHandler extends DefaultHandler {
+    /**
+     * @return 是否还有未解析的弹幕
+     */
+    private boolean parseChunk(BiliXmlReader reader, Danmakus result, int maxCount) {
+        ArrayList<BaseDanmaku> chunk = new ArrayList<BaseDanmaku>(Math.min(maxCount, CHUNK_SIZE));
+        boolean hasMore = false;
+        try {
+            while (chunk.size() < maxCount && !isReleased()) {
+                if (!reader.next()) {
+                    break;
+                }
+                BaseDanmaku item = createDanmaku(reader, mIndex++);
+                if (item != null) {
+                    chunk.add(item);
+                }
+            }
+            hasMore = chunk.size() == maxCount;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (chunk.isEmpty() || isReleased()) {
+            return false;
+        }
+        synchronized (result) {
+            for (int i = 0, size = chunk.size(); i < size; i++) {
+                result.addItem(chunk.get(i));
+            }
+        }
+        notifyDanmakusParsed(chunk.size());
+        return hasMore;
+    }
 
-        private static final String TRUE_STRING = "true";
+    private Danmakus parseParallel(InputStream stream) {
+        char[] data;
+        int length;
+        try {
+            Reader reader = new InputStreamReader(stream, "UTF-8");
+            data = new char[Math.max(stream.available(), 8192)];
+            length = 0;
+            int count;
+            while ((count = reader.read(data, length, data.length - length)) != -1) {
+                length += count;
+                if (length == data.length) {
+                    char[] newData = new char[data.length * 2];
+                    System.arraycopy(data, 0, newData, 0, length);
+                    data = newData;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
 
-        public Danmakus result = null;
+        int chunkCount = length < MIN_PARALLEL_LENGTH ? 1 : mParallelism;
+        List<ChunkTask> tasks = new ArrayList<ChunkTask>(chunkCount);
+        int start = 0;
+        for (int i = 1; i <= chunkCount && start < length; i++) {
+            int end = i == chunkCount ? length : findChunkEnd(data, (int) ((long) length * i
+                    / chunkCount), length);
+            if (end > start) {
+                tasks.add(new ChunkTask(data, start, end));
+                start = end;
+            }
+        }
 
-        public BaseDanmaku item = null;
+        List<ArrayList<BaseDanmaku>> chunks = new ArrayList<ArrayList<BaseDanmaku>>(tasks.size());
+        if (tasks.size() == 1) {
+            chunks.add(tasks.get(0).call());
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(tasks.size(),
+                    new ThreadFactory() {
 
-        public boolean completed = false;
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "DFM Parse Thread");
+                        }
+                    });
+            try {
+                List<Future<ArrayList<BaseDanmaku>>> futures = executor.invokeAll(tasks);
+                for (Future<ArrayList<BaseDanmaku>> future : futures) {
+                    chunks.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                executor.shutdown();
+            }
+        }
 
-        public int index = 0;
+        // 各段的index从0开始,按前面各段的弹幕条数偏移成全局序号
+        int indexOffset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            if (indexOffset > 0) {
+                ArrayList<BaseDanmaku> chunk = chunks.get(i);
+                for (int j = 0, size = chunk.size(); j < size; j++) {
+                    chunk.get(j).index += indexOffset;
+                }
+            }
+            indexOffset += tasks.get(i).mElementCount;
+        }
+        return merge(chunks);
+    }
 
-        public Danmakus getResult() {
-            return result;
+    /**
+     * 段数不多,每次线性比较各段的当前元素即可
+     */
+    private static Danmakus merge(List<ArrayList<BaseDanmaku>> chunks) {
+        Danmakus result = new Danmakus();
+        int k = chunks.size();
+        int[] positions = new int[k];
+        while (true) {
+            int minChunk = -1;
+            BaseDanmaku min = null;
+            for (int i = 0; i < k; i++) {
+                ArrayList<BaseDanmaku> chunk = chunks.get(i);
+                if (positions[i] < chunk.size()) {
+                    BaseDanmaku item = chunk.get(positions[i]);
+                    if (min == null || DanmakuUtils.compare(item, min) < 0) {
+                        min = item;
+                        minChunk = i;
+                    }
+                }
+            }
+            if (min == null) {
+                break;
+            }
+            positions[minChunk]++;
+            result.addItem(min);
         }
+        return result;
+    }
 
-        @Override
-        public void startDocument() throws SAXException {
-            result = new Danmakus();
+    /**
+     * @return from之后第一个&lt;/d&gt;的结束位置,找不到则返回limit
+     */
+    private static int findChunkEnd(char[] data, int from, int limit) {
+        int last = limit - END_TAG.length();
+        for (int i = from; i <= last; i++) {
+            if (data[i] == '<' && data[i + 1] == '/' && data[i + 2] == 'd' && data[i + 3] == '>') {
+                return i + END_TAG.length();
+            }
         }
+        return limit;
+    }
 
-        @Override
-        public void endDocument() throws SAXException {
-            completed = true;
+    private class ChunkTask implements Callable<ArrayList<BaseDanmaku>> {
+
+        private final char[] mData;
+
+        private final int mStart;
+
+        private final int mEnd;
+
+        /**
+         * 本段的&lt;d&gt;元素数,用于计算后续各段的index偏移
+         */
+        int mElementCount;
+
+        ChunkTask(char[] data, int start, int end) {
+            mData = data;
+            mStart = start;
+            mEnd = end;
         }
 
         @Override
-        public void startElement(String uri, String localName, String qName, Attributes attributes)
-                throws SAXException {
-            String tagName = localName.length() != 0 ? localName : qName;
-            tagName = tagName.toLowerCase(Locale.getDefault()).trim();
-            if (tagName.equals("d")) {
-                String pValue = attributes.getValue("p");
-                // parse p value to danmaku
-                String[] values = pValue.split(",");
-                if (values.length > 0) {
-                    long time = (long) (Float.parseFloat(values[0]) * 1000); // 出现时间
-                    int type = Integer.parseInt(values[1]); // 弹幕类型
-                    float textSize = Float.parseFloat(values[2]); // 字体大小
-                    int color = Integer.parseInt(values[3]) | 0xFF000000; // 颜色
-                    // int poolType = Integer.parseInt(values[5]); // 弹幕池类型（忽略
-                    item = DanmakuFactory.createDanmaku(type, mDisp);
+        public ArrayList<BaseDanmaku> call() {
+            ArrayList<BaseDanmaku> items = new ArrayList<BaseDanmaku>();
+            BiliXmlReader reader = new BiliXmlReader(new CharArrayReader(mData, mStart, mEnd
+                    - mStart));
+            try {
+                while (reader.next()) {
+                    BaseDanmaku item = createDanmaku(reader, mElementCount++);
                     if (item != null) {
-                        item.time = time;
-                        item.textSize = textSize * (mDispDensity - 0.6f);
-                        item.textColor = color;
-                        item.textShadowColor = color <= Color.BLACK ? Color.WHITE : Color.BLACK;
+                        items.add(item);
                     }
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            Collections.sort(items, TIME_COMPARATOR);
+            return items;
         }
+    }
 
-        @Override
-        public void endElement(String uri, String localName, String qName) throws SAXException {
-            if (item != null) {
-                if (item.duration != null) {
-                    String tagName = localName.length() != 0 ? localName : qName;
-                    if (tagName.equalsIgnoreCase("d")) {
-                        item.setTimer(mTimer);
-                        result.addItem(item);
-                    }
-                }
-                item = null;
+    /**
+     * @param index 弹幕在文件中的序号,按&lt;d&gt;元素计数
+     */
+    private BaseDanmaku createDanmaku(BiliXmlReader reader, int index) {
+        if (reader.getFieldCount() < 4) {
+            return null;
+        }
+        long time = (long) (reader.parseFloat(0) * 1000); // 出现时间
+        int type = reader.parseInt(1); // 弹幕类型
+        float textSize = reader.parseFloat(2); // 字体大小
+        int color = reader.parseInt(3) | 0xFF000000; // 颜色
+        // int poolType = reader.parseInt(5); // 弹幕池类型（忽略
+        String userHash = reader.getString(6); // 发送者id的hash
+        String text = reader.getText();
+        // DanmakuFactory会更新静态的时长和特殊弹幕集合,特殊弹幕的数据填完之前
+        // 其他解析线程和绘制线程不能看到它,整个创建过程需要互斥
+        synchronized (DanmakuFactory.class) {
+            BaseDanmaku item = DanmakuFactory.createDanmaku(type, mDisp);
+            if (item == null) {
+                return null;
             }
+            item.time = time;
+            item.textSize = textSize * (mDispDensity - 0.6f);
+            item.textColor = color;
+            item.textShadowColor = color <= Color.BLACK ? Color.WHITE : Color.BLACK;
+            item.userHash = userHash;
+            DanmakuFactory.fillText(item, text);
+            item.index = index;
+            if (item.getType() == BaseDanmaku.TYPE_SPECIAL && !fillSpecialData(item)) {
+                return null;
+            }
+            if (item.duration == null) {
+                return null;
+            }
+            item.setTimer(mTimer);
+            return item;
         }
+    }
 
-        @Override
-        public void characters(char[] ch, int start, int length)  {
-            if (item != null) {
-                DanmakuFactory.fillText(item, decodeXmlString(new String(ch, start, length)));
-                item.index = index++;
-
-                // initial specail danmaku data
-                String text = item.text.trim();
-                if (item.getType() == BaseDanmaku.TYPE_SPECIAL && text.startsWith("[")
-                        && text.endsWith("]")) {
-                    //text = text.substring(1, text.length() - 1);
-                    String[] textArr = null;//text.split(",", -1);
-                    try {
-                        JSONArray jsonArray = new JSONArray(text);
-                        textArr = new String[jsonArray.length()];
-                        for(int i=0;i<textArr.length;i++){
-                            textArr[i] = jsonArray.getString(i);
-                        }
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                    
-                    if (textArr == null || textArr.length < 5) {
-                        item = null;
-                        return;
-                    }
-                    item.text = textArr[4];
-                    float beginX = Float.parseFloat(textArr[0]);
-                    float beginY = Float.parseFloat(textArr[1]);
-                    float endX = beginX;
-                    float endY = beginY;
-                    String[] alphaArr = textArr[2].split("-");
-                    int beginAlpha = (int) (AlphaValue.MAX * Float.parseFloat(alphaArr[0]));
-                    int endAlpha = beginAlpha;
-                    if (alphaArr.length > 1) {
-                        endAlpha = (int) (AlphaValue.MAX * Float.parseFloat(alphaArr[1]));
-                    }
-                    long alphaDuraion = (long) (Float.parseFloat(textArr[3]) * 1000);
-                    long translationDuration = alphaDuraion;
-                    long translationStartDelay = 0;
-                    float rotateY = 0, rotateZ = 0;
-                    if (textArr.length >= 7) {
-                        rotateZ = Float.parseFloat(textArr[5]);
-                        rotateY = Float.parseFloat(textArr[6]);
-                    }
-                    if (textArr.length >= 11) {
-                        endX = Float.parseFloat(textArr[7]);
-                        endY = Float.parseFloat(textArr[8]);
-                        if(!"".equals(textArr[9])){
-                            translationDuration = Integer.parseInt(textArr[9]);
-                        }
-                        if(!"".equals(textArr[10])){
-                            translationStartDelay = (long) (Float.parseFloat(textArr[10]));
-                        }
-                    }
-                    item.duration = new Duration(alphaDuraion);
-                    item.rotationZ = rotateZ;
-                    item.rotationY = rotateY;
-                    DanmakuFactory.fillTranslationData(item, beginX,
-                            beginY, endX, endY, translationDuration, translationStartDelay, mDispScaleX, mDispScaleY);
-                    DanmakuFactory.fillAlphaData(item, beginAlpha, endAlpha, alphaDuraion);
-                    
-                    if (textArr.length >= 12) {
-                        // 是否有描边
-                        if (!TextUtils.isEmpty(textArr[11]) && TRUE_STRING.equals(textArr[11])) {
-                            item.textShadowColor = Color.TRANSPARENT;
-                        }
-                    }
-                    if (textArr.length >= 13) {
-                        //TODO 字体 textArr[12]
-                    }
-                    if (textArr.length >= 14) {
-                        //TODO 是否有加速
-                    }
-                    if (textArr.length >= 15) {
-                        // 路径数据
-                        if (!"".equals(textArr[14])) {
-                            String motionPathString = textArr[14].substring(1);
-                            String[] pointStrArray = motionPathString.split("L");
-                            if (pointStrArray != null && pointStrArray.length > 0) {
-                                float[][] points = new float[pointStrArray.length][2];
-                                for (int i = 0; i < pointStrArray.length; i++) {
-                                    String[] pointArray = pointStrArray[i].split(",");
-                                    points[i][0] = Float.parseFloat(pointArray[0]);
-                                    points[i][1] = Float.parseFloat(pointArray[1]);
-                                }
-                                DanmakuFactory.fillLinePathData(item, points, mDispScaleX,
-                                        mDispScaleY);
-                            }
-                        }
-                    }
-                }
-
+    /**
+     * initial specail danmaku data
+     * 
+     * @return 数据是否有效
+     */
+    private boolean fillSpecialData(BaseDanmaku item) {
+        String text = item.text.trim();
+        if (!text.startsWith("[") || !text.endsWith("]")) {
+            return true;
+        }
+        //text = text.substring(1, text.length() - 1);
+        String[] textArr = null;//text.split(",", -1);
+        try {
+            JSONArray jsonArray = new JSONArray(text);
+            textArr = new String[jsonArray.length()];
+            for(int i=0;i<textArr.length;i++){
+                textArr[i] = jsonArray.getString(i);
             }
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
-
-        private String decodeXmlString(String title) {
-            if (title.contains("&amp;")) {
-                title = title.replace("&amp;", "&");
+        
+        if (textArr == null || textArr.length < 5) {
+            return false;
+        }
+        item.text = textArr[4];
+        float beginX = Float.parseFloat(textArr[0]);
+        float beginY = Float.parseFloat(textArr[1]);
+        float endX = beginX;
+        float endY = beginY;
+        String[] alphaArr = textArr[2].split("-");
+        int beginAlpha = (int) (AlphaValue.MAX * Float.parseFloat(alphaArr[0]));
+        int endAlpha = beginAlpha;
+        if (alphaArr.length > 1) {
+            endAlpha = (int) (AlphaValue.MAX * Float.parseFloat(alphaArr[1]));
+        }
+        long alphaDuraion = (long) (Float.parseFloat(textArr[3]) * 1000);
+        long translationDuration = alphaDuraion;
+        long translationStartDelay = 0;
+        float rotateY = 0, rotateZ = 0;
+        if (textArr.length >= 7) {
+            rotateZ = Float.parseFloat(textArr[5]);
+            rotateY = Float.parseFloat(textArr[6]);
+        }
+        if (textArr.length >= 11) {
+            endX = Float.parseFloat(textArr[7]);
+            endY = Float.parseFloat(textArr[8]);
+            if(!"".equals(textArr[9])){
+                translationDuration = Integer.parseInt(textArr[9]);
             }
-            if (title.contains("&quot;")) {
-                title = title.replace("&quot;", "\"");
+            if(!"".equals(textArr[10])){
+                translationStartDelay = (long) (Float.parseFloat(textArr[10]));
             }
-            if (title.contains("&gt;")) {
-                title = title.replace("&gt;", ">");
+        }
+        item.duration = new Duration(alphaDuraion);
+        item.rotationZ = rotateZ;
+        item.rotationY = rotateY;
+        DanmakuFactory.fillTranslationData(item, beginX,
+                beginY, endX, endY, translationDuration, translationStartDelay, mDispScaleX, mDispScaleY);
+        DanmakuFactory.fillAlphaData(item, beginAlpha, endAlpha, alphaDuraion);
+        
+        if (textArr.length >= 12) {
+            // 是否有描边
+            if (!TextUtils.isEmpty(textArr[11]) && TRUE_STRING.equals(textArr[11])) {
+                item.textShadowColor = Color.TRANSPARENT;
             }
-            if (title.contains("&lt;")) {
-                title = title.replace("&lt;", "<");
+        }
+        if (textArr.length >= 13) {
+            //TODO 字体 textArr[12]
+        }
+        if (textArr.length >= 14) {
+            //TODO 是否有加速
+        }
+        if (textArr.length >= 15) {
+            // 路径数据
+            if (!"".equals(textArr[14])) {
+                String motionPathString = textArr[14].substring(1);
+                String[] pointStrArray = motionPathString.split("L");
+                if (pointStrArray != null && pointStrArray.length > 0) {
+                    float[][] points = new float[pointStrArray.length][2];
+                    for (int i = 0; i < pointStrArray.length; i++) {
+                        String[] pointArray = pointStrArray[i].split(",");
+                        points[i][0] = Float.parseFloat(pointArray[0]);
+                        points[i][1] = Float.parseFloat(pointArray[1]);
+                    }
+                    DanmakuFactory.fillLinePathData(item, points, mDispScaleX,
+                            mDispScaleY);
+                }
             }
-            return title;
         }
-
+        return true;
     }
     
     @Override
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.parser.android;
+
+import master.flame.danmaku.danmaku.util.StringInterner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * B站弹幕xml的流式读取器,只关心&lt;d p="..."&gt;文字&lt;/d&gt;,其余标签直接跳过.
+ * 逐字符扫描,p属性保存在可复用的{@link CommaSeparatedValue}里,
+ * 由{@link #parseFloat(int)}等直接解析数字,每条弹幕只为文字创建一个String
+ */
+class BiliXmlReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int EOF = -1;
+
+    private final Reader mReader;
+
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+
+    private int mPosition;
+
+    private int mLimit;
+
+    /**
+     * p属性的值
+     */
+    private final CommaSeparatedValue mValue = new CommaSeparatedValue();
+
+    private final StringBuilder mText = new StringBuilder();
+
+    private final char[] mName = new char[8];
+
+    public BiliXmlReader(InputStream stream) throws IOException {
+        this(new InputStreamReader(stream, "UTF-8"));
+    }
+
+    public BiliXmlReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * 读到下一条弹幕
+     * 
+     * @return 没有更多弹幕时返回false
+     */
+    public boolean next() throws IOException {
+        int c;
+        while ((c = read()) != EOF) {
+            if (c != '<') {
+                continue;
+            }
+            c = read();
+            if (c == '!') {
+                skipDeclaration();
+            } else if (c == '?' || c == '/') {
+                skipTag();
+            } else if (c != EOF && readDanmakuElement(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return p属性的字段数,以逗号分隔
+     */
+    public int getFieldCount() {
+        return mValue.getFieldCount();
+    }
+
+    public String getText() {
+        return StringInterner.DEFAULT.intern(mText);
+    }
+
+    /**
+     * @return 字段原文,经过驻留;字段不存在时返回null
+     */
+    public String getString(int field) {
+        return mValue.getString(field);
+    }
+
+    public float parseFloat(int field) {
+        return mValue.parseFloat(field);
+    }
+
+    public int parseInt(int field) {
+        return mValue.parseInt(field);
+    }
+
+    public long parseLong(int field) {
+        return mValue.parseLong(field);
+    }
+
+    public void close() {
+        try {
+            mReader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit) {
+            int count = mReader.read(mBuffer, 0, BUFFER_SIZE);
+            if (count <= 0) {
+                return EOF;
+            }
+            mPosition = 0;
+            mLimit = count;
+        }
+        return mBuffer[mPosition++];
+    }
+
+    /**
+     * 退回刚读到的一个字符
+     */
+    private void unread() {
+        mPosition--;
+    }
+
+    /**
+     * 跳过注释,CDATA和DOCTYPE
+     */
+    private void skipDeclaration() throws IOException {
+        int c = read();
+        if (c == '-') {
+            // <!-- ... -->
+            int dashes = 0;
+            while ((c = read()) != EOF) {
+                if (c == '>' && dashes >= 2) {
+                    return;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+            return;
+        }
+        if (c == '[') {
+            // <![CDATA[ ... ]]>
+            int brackets = 0;
+            while ((c = read()) != EOF) {
+                if (c == '>' && brackets >= 2) {
+                    return;
+                }
+                brackets = c == ']' ? brackets + 1 : 0;
+            }
+            return;
+        }
+        if (c != '>' && c != EOF) {
+            skipTag();
+        }
+    }
+
+    /**
+     * 跳到当前标签的'>',引号里的'>'不算
+     */
+    private int skipTag() throws IOException {
+        int c;
+        int quote = 0;
+        while ((c = read()) != EOF) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                break;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * @param c 标签名的第一个字符
+     * @return 是否读到一条&lt;d&gt;
+     */
+    private boolean readDanmakuElement(int c) throws IOException {
+        int nameLength = 0;
+        while (c != EOF && c != '>' && c != '/' && !isWhitespace(c)) {
+            if (nameLength < mName.length) {
+                mName[nameLength] = (char) c;
+            }
+            nameLength++;
+            c = read();
+        }
+        boolean isDanmaku = nameLength == 1 && (mName[0] == 'd' || mName[0] == 'D');
+        if (!isDanmaku) {
+            if (c != '>' && c != EOF) {
+                skipTag();
+            }
+            return false;
+        }
+        mValue.clear();
+        mText.setLength(0);
+        boolean selfClosing = false;
+        while (c != EOF && c != '>') {
+            if (c == '/') {
+                selfClosing = true;
+                c = read();
+                continue;
+            }
+            if (isWhitespace(c)) {
+                c = read();
+                continue;
+            }
+            c = readAttribute(c);
+        }
+        if (c == EOF) {
+            return false;
+        }
+        mValue.split();
+        if (!selfClosing) {
+            readText();
+        }
+        return true;
+    }
+
+    /**
+     * @return 属性之后的字符
+     */
+    private int readAttribute(int c) throws IOException {
+        int first = c;
+        int nameLength = 0;
+        while (c != EOF && c != '=' && c != '>' && c != '/' && !isWhitespace(c)) {
+            nameLength++;
+            c = read();
+        }
+        while (isWhitespace(c)) {
+            c = read();
+        }
+        if (c != '=') {
+            return c;
+        }
+        c = read();
+        while (isWhitespace(c)) {
+            c = read();
+        }
+        if (c != '"' && c != '\'') {
+            return c;
+        }
+        int quote = c;
+        boolean isP = nameLength == 1 && (first == 'p' || first == 'P');
+        while ((c = read()) != EOF && c != quote) {
+            if (isP) {
+                mValue.append((char) c);
+            }
+        }
+        return c == EOF ? EOF : read();
+    }
+
+    /**
+     * 读取文字直到下一个'<',解码实体,然后跳过结束标签
+     */
+    private void readText() throws IOException {
+        int c;
+        while ((c = read()) != EOF && c != '<') {
+            if (c == '&') {
+                readEntity();
+            } else {
+                mText.append((char) c);
+            }
+        }
+        if (c == '<') {
+            skipTag();
+        }
+    }
+
+    private void readEntity() throws IOException {
+        int start = mText.length();
+        mText.append('&');
+        int c;
+        while ((c = read()) != EOF && c != ';' && c != '<' && mText.length() - start < 10) {
+            mText.append((char) c);
+        }
+        if (c != ';') {
+            // 不是实体,保留原样
+            if (c == '<') {
+                unread();
+            } else if (c != EOF) {
+                mText.append((char) c);
+            }
+            return;
+        }
+        int decoded = decodeEntity(start + 1, mText.length());
+        if (decoded < 0) {
+            mText.append(';');
+            return;
+        }
+        mText.setLength(start);
+        if (decoded > 0xFFFF) {
+            int offset = decoded - 0x10000;
+            mText.append((char) (0xD800 + (offset >> 10))).append((char) (0xDC00 + (offset & 0x3FF)));
+        } else {
+            mText.append((char) decoded);
+        }
+    }
+
+    private int decodeEntity(int start, int end) {
+        int length = end - start;
+        if (length >= 2 && mText.charAt(start) == '#') {
+            int radix = 10;
+            int i = start + 1;
+            if (mText.charAt(i) == 'x' || mText.charAt(i) == 'X') {
+                radix = 16;
+                i++;
+            }
+            int codePoint = 0;
+            for (; i < end; i++) {
+                int digit = Character.digit(mText.charAt(i), radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                codePoint = codePoint * radix + digit;
+            }
+            return codePoint <= Character.MAX_CODE_POINT ? codePoint : -1;
+        }
+        if (matches(start, end, "amp")) {
+            return '&';
+        }
+        if (matches(start, end, "lt")) {
+            return '<';
+        }
+        if (matches(start, end, "gt")) {
+            return '>';
+        }
+        if (matches(start, end, "quot")) {
+            return '"';
+        }
+        if (matches(start, end, "apos")) {
+            return '\'';
+        }
+        return -1;
+    }
+
+    private boolean matches(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (mText.charAt(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+}
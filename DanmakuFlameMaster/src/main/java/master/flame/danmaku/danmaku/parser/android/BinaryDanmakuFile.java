@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser.android;
+
+import master.flame.danmaku.danmaku.util.StringInterner;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * 预解析弹幕的二进制列存格式,由{@link BinaryDanmakuWriter}写出,{@link BinaryDanmakuParser}读取.
+ * 
+ * <pre>
+ * 文件头: magic(int) version(int) count(int) stringCount(int) stringDataLength(int)
+ * time     long[count]  按时间(相同时间按原序号)升序,可直接二分查找
+ * size     float[count] 未按屏幕密度缩放的字号
+ * color    int[count]
+ * userId   int[count]
+ * userHash int[count]   字符串池序号,-1表示没有
+ * text     int[count]   字符串池序号
+ * stringOffsets int[stringCount + 1]
+ * stringData    byte[stringDataLength] UTF-8,相同字符串只存一份
+ * type     byte[count]
+ * </pre>
+ * 
+ * 所有整数均为大端序
+ */
+public class BinaryDanmakuFile {
+
+    public static final int MAGIC = 0x44464D42; // "DFMB"
+
+    public static final int VERSION = 1;
+
+    public static final int NO_STRING = -1;
+
+    static final int HEADER_SIZE = 5 * 4;
+
+    private final ByteBuffer mBuffer;
+
+    private final int mCount;
+
+    private final int mStringCount;
+
+    private final int mTimeOffset;
+
+    private final int mSizeOffset;
+
+    private final int mColorOffset;
+
+    private final int mUserIdOffset;
+
+    private final int mUserHashOffset;
+
+    private final int mTextOffset;
+
+    private final int mStringOffsetsOffset;
+
+    private final int mStringDataOffset;
+
+    private final int mTypeOffset;
+
+    private final String[] mStrings;
+
+    private byte[] mStringBytes = new byte[256];
+
+    /**
+     * @throws IllegalArgumentException 不是本格式或版本不符
+     */
+    public BinaryDanmakuFile(ByteBuffer buffer) {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("not a danmaku binary file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("unsupported version: " + buffer.getInt(4));
+        }
+        mCount = buffer.getInt(8);
+        mStringCount = buffer.getInt(12);
+        int stringDataLength = buffer.getInt(16);
+        mTimeOffset = HEADER_SIZE;
+        mSizeOffset = mTimeOffset + mCount * 8;
+        mColorOffset = mSizeOffset + mCount * 4;
+        mUserIdOffset = mColorOffset + mCount * 4;
+        mUserHashOffset = mUserIdOffset + mCount * 4;
+        mTextOffset = mUserHashOffset + mCount * 4;
+        mStringOffsetsOffset = mTextOffset + mCount * 4;
+        mStringDataOffset = mStringOffsetsOffset + (mStringCount + 1) * 4;
+        mTypeOffset = mStringDataOffset + stringDataLength;
+        if (mCount < 0 || mStringCount < 0 || stringDataLength < 0
+                || buffer.capacity() < mTypeOffset + mCount) {
+            throw new IllegalArgumentException("truncated danmaku binary file");
+        }
+        mStrings = new String[mStringCount];
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public long getTime(int i) {
+        return mBuffer.getLong(mTimeOffset + i * 8);
+    }
+
+    public int getType(int i) {
+        return mBuffer.get(mTypeOffset + i);
+    }
+
+    public float getTextSize(int i) {
+        return mBuffer.getFloat(mSizeOffset + i * 4);
+    }
+
+    public int getColor(int i) {
+        return mBuffer.getInt(mColorOffset + i * 4);
+    }
+
+    public int getUserId(int i) {
+        return mBuffer.getInt(mUserIdOffset + i * 4);
+    }
+
+    public String getUserHash(int i) {
+        return getString(mBuffer.getInt(mUserHashOffset + i * 4));
+    }
+
+    public String getText(int i) {
+        return getString(mBuffer.getInt(mTextOffset + i * 4));
+    }
+
+    /**
+     * @return 第一条时间不小于time的弹幕序号,都小于time时返回{@link #size()}
+     */
+    public int indexOf(long time) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 池里的字符串按需解码,解码后缓存,相同序号总是返回同一个实例
+     */
+    private synchronized String getString(int id) {
+        if (id < 0 || id >= mStringCount) {
+            return null;
+        }
+        String string = mStrings[id];
+        if (string == null) {
+            int start = mBuffer.getInt(mStringOffsetsOffset + id * 4);
+            int end = mBuffer.getInt(mStringOffsetsOffset + (id + 1) * 4);
+            int length = end - start;
+            if (mStringBytes.length < length) {
+                mStringBytes = new byte[Math.max(length, mStringBytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                mStringBytes[i] = mBuffer.get(mStringDataOffset + start + i);
+            }
+            try {
+                string = new String(mStringBytes, 0, length, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            string = StringInterner.DEFAULT.intern(string);
+            mStrings[id] = string;
+        }
+        return string;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser.android;
+
+import android.graphics.Color;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.model.android.LazyDanmakus;
+import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
+import master.flame.danmaku.danmaku.parser.DanmakuFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 读取{@link BinaryDanmakuWriter}写出的文件,数据源为{@link BinaryFileSource}.
+ * 返回的{@link LazyDanmakus}只为播放位置附近的弹幕创建对象
+ */
+public class BinaryDanmakuParser extends BaseDanmakuParser {
+
+    @Override
+    public IDanmakus parse() {
+        if (mDataSource == null || !(mDataSource instanceof BinaryFileSource)) {
+            return null;
+        }
+        ByteBuffer buffer = ((BinaryFileSource) mDataSource).data();
+        if (buffer == null) {
+            return null;
+        }
+        final BinaryDanmakuFile file;
+        try {
+            file = new BinaryDanmakuFile(buffer);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return new LazyDanmakus(new LazyDanmakus.Source() {
+
+            @Override
+            public int size() {
+                return file.size();
+            }
+
+            @Override
+            public long getTime(int row) {
+                return file.getTime(row);
+            }
+
+            @Override
+            public BaseDanmaku create(int row) {
+                return createDanmaku(file, row);
+            }
+
+            @Override
+            public void recycle(BaseDanmaku item) {
+            }
+        });
+    }
+
+    protected BaseDanmaku createDanmaku(BinaryDanmakuFile file, int i) {
+        BaseDanmaku item = DanmakuFactory.createDanmaku(file.getType(i), mDisp);
+        if (item == null || item.duration == null) {
+            return null;
+        }
+        int color = file.getColor(i);
+        item.time = file.getTime(i);
+        item.textSize = file.getTextSize(i) * (mDispDensity - 0.6f);
+        item.textColor = color;
+        item.textShadowColor = color <= Color.BLACK ? Color.WHITE : Color.BLACK;
+        DanmakuFactory.fillText(item, file.getText(i));
+        item.userId = file.getUserId(i);
+        item.userHash = file.getUserHash(i);
+        item.index = i;
+        item.setTimer(mTimer);
+        return item;
+    }
+
+}
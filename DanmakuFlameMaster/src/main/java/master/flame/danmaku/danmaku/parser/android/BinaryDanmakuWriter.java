@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser.android;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakuIterator;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
+import master.flame.danmaku.danmaku.util.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 把其他parser的解析结果写成{@link BinaryDanmakuFile}格式,例如缓存在下载的视频旁边,
+ * 下次用{@link BinaryFileSource}和{@link BinaryDanmakuParser}直接加载.
+ * 特殊弹幕的运动数据无法还原,不会写入
+ */
+public class BinaryDanmakuWriter {
+
+    /**
+     * @param parser 已设置displayer且未开启增量解析的parser,字号按其屏幕密度还原成原始值
+     * @return 写入的弹幕条数
+     */
+    public static int write(BaseDanmakuParser parser, File file) throws IOException {
+        checkParser(parser);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            return write(parser, out);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    public static int write(BaseDanmakuParser parser, OutputStream out) throws IOException {
+        checkParser(parser);
+        IDanmakus danmakus = parser.getDanmakus();
+        float textSizeScale = parser.getDisplayer().getDensity() - 0.6f;
+        if (danmakus == null) {
+            return write(new ArrayList<BaseDanmaku>(0), textSizeScale, out);
+        }
+        ArrayList<BaseDanmaku> items = new ArrayList<BaseDanmaku>(danmakus.size());
+        synchronized (danmakus) {
+            IDanmakuIterator itr = danmakus.iterator();
+            while (itr.hasNext()) {
+                BaseDanmaku item = itr.next();
+                if (item.getType() != BaseDanmaku.TYPE_SPECIAL) {
+                    items.add(item);
+                }
+            }
+        }
+        return write(items, textSizeScale, out);
+    }
+
+    private static void checkParser(BaseDanmakuParser parser) {
+        if (parser.isIncremental()) {
+            // getDanmakus()只有第一批弹幕,写出的缓存会被截断
+            throw new IllegalArgumentException("incremental parser is not supported");
+        }
+    }
+
+    /**
+     * @param items 按时间排好序的弹幕
+     * @param textSizeScale 写入的字号为textSize / textSizeScale
+     */
+    public static int write(ArrayList<BaseDanmaku> items, float textSizeScale, OutputStream out)
+            throws IOException {
+        int count = items.size();
+        HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+        ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+        ArrayList<Integer> stringOffsets = new ArrayList<Integer>();
+        int[] textIds = new int[count];
+        int[] userHashIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            BaseDanmaku item = items.get(i);
+            textIds[i] = intern(item.text == null ? "" : item.text, stringIds, stringData,
+                    stringOffsets);
+            userHashIds[i] = item.userHash == null ? BinaryDanmakuFile.NO_STRING : intern(
+                    item.userHash, stringIds, stringData, stringOffsets);
+        }
+        stringOffsets.add(stringData.size());
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(BinaryDanmakuFile.MAGIC);
+        data.writeInt(BinaryDanmakuFile.VERSION);
+        data.writeInt(count);
+        data.writeInt(stringIds.size());
+        data.writeInt(stringData.size());
+        for (int i = 0; i < count; i++) {
+            data.writeLong(items.get(i).time);
+        }
+        for (int i = 0; i < count; i++) {
+            data.writeFloat(items.get(i).textSize / textSizeScale);
+        }
+        for (int i = 0; i < count; i++) {
+            data.writeInt(items.get(i).textColor);
+        }
+        for (int i = 0; i < count; i++) {
+            data.writeInt(items.get(i).userId);
+        }
+        for (int i = 0; i < count; i++) {
+            data.writeInt(userHashIds[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            data.writeInt(textIds[i]);
+        }
+        for (int i = 0, size = stringOffsets.size(); i < size; i++) {
+            data.writeInt(stringOffsets.get(i));
+        }
+        stringData.writeTo(data);
+        for (int i = 0; i < count; i++) {
+            data.writeByte(items.get(i).getType());
+        }
+        data.flush();
+        return count;
+    }
+
+    private static int intern(String string, HashMap<String, Integer> stringIds,
+            ByteArrayOutputStream stringData, ArrayList<Integer> stringOffsets)
+            throws IOException {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = stringIds.size();
+            stringIds.put(string, id);
+            stringOffsets.add(stringData.size());
+            stringData.write(string.getBytes("UTF-8"));
+        }
+        return id;
+    }
+
+}
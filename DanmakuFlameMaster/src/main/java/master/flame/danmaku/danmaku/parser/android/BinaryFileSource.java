@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser.android;
+
+import master.flame.danmaku.danmaku.parser.IDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 以内存映射方式打开{@link BinaryDanmakuFile}格式的文件,配合{@link BinaryDanmakuParser}使用
+ */
+public class BinaryFileSource implements IDataSource<ByteBuffer> {
+
+    private RandomAccessFile mFile;
+
+    private ByteBuffer mBuffer;
+
+    public BinaryFileSource(String filepath) {
+        this(new File(filepath));
+    }
+
+    public BinaryFileSource(File file) {
+        try {
+            mFile = new RandomAccessFile(file, "r");
+            FileChannel channel = mFile.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+            release();
+        }
+    }
+
+    public BinaryFileSource(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * 映射在release之后仍然有效,直到buffer被回收
+     */
+    @Override
+    public ByteBuffer data() {
+        return mBuffer;
+    }
+
+    @Override
+    public void release() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException ignore) {
+            }
+            mFile = null;
+        }
+    }
+
+}
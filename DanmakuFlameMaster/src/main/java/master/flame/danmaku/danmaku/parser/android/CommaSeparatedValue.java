@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser.android;
+
+import master.flame.danmaku.danmaku.util.StringInterner;
+
+/**
+ * 逗号分隔的弹幕属性值,如B站的p属性和A站的c字段.
+ * 字符保存在可复用的数组里,数字直接从字符解析,不创建中间String
+ */
+class CommaSeparatedValue {
+
+    private char[] mValue = new char[64];
+
+    private int mValueLength;
+
+    /**
+     * 各字段的起止位置
+     */
+    private int[] mFieldStarts = new int[16];
+
+    private int[] mFieldEnds = new int[16];
+
+    private int mFieldCount;
+
+    public void clear() {
+        mValueLength = 0;
+        mFieldCount = 0;
+    }
+
+    public void set(CharSequence value) {
+        clear();
+        for (int i = 0, length = value.length(); i < length; i++) {
+            append(value.charAt(i));
+        }
+        split();
+    }
+
+    public int getFieldCount() {
+        return mFieldCount;
+    }
+
+    public float parseFloat(int field) {
+        if (field >= mFieldCount) {
+            return 0f;
+        }
+        char[] value = mValue;
+        int i = mFieldStarts[field];
+        int end = mFieldEnds[field];
+        boolean negative = false;
+        if (i < end && (value[i] == '-' || value[i] == '+')) {
+            negative = value[i] == '-';
+            i++;
+        }
+        double result = 0;
+        for (; i < end && value[i] >= '0' && value[i] <= '9'; i++) {
+            result = result * 10 + (value[i] - '0');
+        }
+        if (i < end && value[i] == '.') {
+            double scale = 0.1;
+            for (i++; i < end && value[i] >= '0' && value[i] <= '9'; i++) {
+                result += (value[i] - '0') * scale;
+                scale *= 0.1;
+            }
+        }
+        if (i < end && (value[i] == 'e' || value[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (value[i] == '-' || value[i] == '+')) {
+                negativeExponent = value[i] == '-';
+                i++;
+            }
+            int exponent = 0;
+            for (; i < end && value[i] >= '0' && value[i] <= '9'; i++) {
+                exponent = exponent * 10 + (value[i] - '0');
+            }
+            result *= Math.pow(10, negativeExponent ? -exponent : exponent);
+        }
+        return (float) (negative ? -result : result);
+    }
+
+    public int parseInt(int field) {
+        return (int) parseLong(field);
+    }
+
+    public long parseLong(int field) {
+        if (field >= mFieldCount) {
+            return 0;
+        }
+        char[] value = mValue;
+        int i = mFieldStarts[field];
+        int end = mFieldEnds[field];
+        boolean negative = false;
+        if (i < end && (value[i] == '-' || value[i] == '+')) {
+            negative = value[i] == '-';
+            i++;
+        }
+        long result = 0;
+        for (; i < end && value[i] >= '0' && value[i] <= '9'; i++) {
+            result = result * 10 + (value[i] - '0');
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * @param integer 是否只允许整数
+     * @return 字段是否是完整的数字,格式按Integer.parseInt/Float.parseFloat
+     */
+    public boolean isNumber(int field, boolean integer) {
+        if (field >= mFieldCount) {
+            return false;
+        }
+        char[] value = mValue;
+        int i = mFieldStarts[field];
+        int end = mFieldEnds[field];
+        if (i < end && (value[i] == '-' || value[i] == '+')) {
+            i++;
+        }
+        int digits = 0;
+        for (; i < end && value[i] >= '0' && value[i] <= '9'; i++) {
+            digits++;
+        }
+        if (!integer && i < end && value[i] == '.') {
+            for (i++; i < end && value[i] >= '0' && value[i] <= '9'; i++) {
+                digits++;
+            }
+        }
+        if (!integer && digits > 0 && i < end && (value[i] == 'e' || value[i] == 'E')) {
+            i++;
+            if (i < end && (value[i] == '-' || value[i] == '+')) {
+                i++;
+            }
+            int exponentDigits = 0;
+            for (; i < end && value[i] >= '0' && value[i] <= '9'; i++) {
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                return false;
+            }
+        }
+        return digits > 0 && i == end;
+    }
+
+    /**
+     * @return 字段原文,经过驻留;字段不存在时返回null
+     */
+    public String getString(int field) {
+        if (field >= mFieldCount) {
+            return null;
+        }
+        return StringInterner.DEFAULT.intern(mValue, mFieldStarts[field], mFieldEnds[field]
+                - mFieldStarts[field]);
+    }
+
+    public void append(char c) {
+        if (mValueLength == mValue.length) {
+            char[] value = new char[mValueLength * 2];
+            System.arraycopy(mValue, 0, value, 0, mValueLength);
+            mValue = value;
+        }
+        mValue[mValueLength++] = c;
+    }
+
+    public void split() {
+        int start = 0;
+        for (int i = 0; i <= mValueLength; i++) {
+            if (i == mValueLength || mValue[i] == ',') {
+                if (mFieldCount == mFieldStarts.length) {
+                    int[] starts = new int[mFieldCount * 2];
+                    int[] ends = new int[mFieldCount * 2];
+                    System.arraycopy(mFieldStarts, 0, starts, 0, mFieldCount);
+                    System.arraycopy(mFieldEnds, 0, ends, 0, mFieldCount);
+                    mFieldStarts = starts;
+                    mFieldEnds = ends;
+                }
+                mFieldStarts[mFieldCount] = start;
+                mFieldEnds[mFieldCount] = i;
+                mFieldCount++;
+                start = i + 1;
+            }
+        }
+    }
+
+}
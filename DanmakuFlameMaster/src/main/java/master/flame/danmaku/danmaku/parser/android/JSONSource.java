@@ -5,6 +5,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 
 import master.flame.danmaku.danmaku.parser.IDataSource;
@@ -18,11 +22,14 @@ import android.text.TextUtils;
 
 /**
  * a json file source
+ * 字符串数据在构造时校验;输入流的数据在第一次调用{@link #data()}时才读成JSONArray;
+ * {@link AcFunDanmakuParser}通过{@link #openReader()}直接流式解析,不构建JSONArray
  * @author yrom
  */
 public class JSONSource implements IDataSource<JSONArray>{
 	private JSONArray mJSONArray;
 	private InputStream mInput;
+	private String mJson;
 	public JSONSource(String json) throws JSONException{
 		init(json);
 	}
@@ -35,8 +42,6 @@ public class JSONSource implements IDataSource<JSONArray>{
 		if(in == null)
 			throw new NullPointerException("input stream cannot be null!");
 		mInput = in;
-		String json = IOUtils.getString(mInput);
-		init(json);
 	}
 	
 	public JSONSource(URL url) throws JSONException, IOException{
@@ -60,11 +65,43 @@ public class JSONSource implements IDataSource<JSONArray>{
 		if(!TextUtils.isEmpty(json)){
 			mJSONArray = new JSONArray(json);
 		}
+		mJson = json;
 	}
     public JSONArray data(){
+    	if (mJSONArray == null) {
+    		if (mJson == null && mInput != null) {
+    			mJson = IOUtils.getString(mInput);
+    		}
+    		if (!TextUtils.isEmpty(mJson)) {
+    			try {
+    				mJSONArray = new JSONArray(mJson);
+    			} catch (JSONException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	}
     	return mJSONArray;
     }
 
+	/**
+	 * 流式读取原始数据,读取输入流后{@link #data()}不再可用
+	 * @return 没有数据时返回null
+	 */
+	Reader openReader() {
+		if (mJson != null) {
+			return new StringReader(mJson);
+		}
+		if (mInput == null) {
+			return null;
+		}
+		try {
+			return new InputStreamReader(mInput, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	@Override
 	public void release() {
 		IOUtils.closeQuietly(mInput);
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser.android;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * 极简的流式json扫描器,供弹幕parser按需取值,不构建对象树.
+ * 逗号和冒号当作空白跳过,调用方按位置区分名字和值,不校验json语法
+ */
+class JsonTokenizer {
+
+    public static final int EOF = -1;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader mReader;
+
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+
+    private int mPosition;
+
+    private int mLimit;
+
+    private final StringBuilder mString = new StringBuilder();
+
+    public JsonTokenizer(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * @return 下一个有意义的字符('[' ']' '{' '}' '"'或字面量的首字符),不消耗;结束时返回{@link #EOF}
+     */
+    public int peek() throws IOException {
+        while (true) {
+            if (mPosition == mLimit && !fill()) {
+                return EOF;
+            }
+            char c = mBuffer[mPosition];
+            if (c == ',' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                mPosition++;
+                continue;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * 消耗{@link #peek()}返回的字符
+     */
+    public void consume() {
+        mPosition++;
+    }
+
+    /**
+     * 读取一个字符串并解码转义,须在{@link #peek()}返回'"'时调用
+     * 
+     * @return 可复用的缓冲区,下次读取前有效
+     */
+    public StringBuilder readString() throws IOException {
+        StringBuilder string = mString;
+        string.setLength(0);
+        consume();
+        int c;
+        while ((c = read()) != EOF && c != '"') {
+            if (c != '\\') {
+                string.append((char) c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+                case 'b':
+                    string.append('\b');
+                    break;
+                case 'f':
+                    string.append('\f');
+                    break;
+                case 'n':
+                    string.append('\n');
+                    break;
+                case 'r':
+                    string.append('\r');
+                    break;
+                case 't':
+                    string.append('\t');
+                    break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit < 0) {
+                            throw new IOException("invalid unicode escape");
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    string.append((char) code);
+                    break;
+                case EOF:
+                    break;
+                default:
+                    string.append((char) c);
+                    break;
+            }
+        }
+        return string;
+    }
+
+    /**
+     * 跳过下一个值(包括嵌套的数组和对象)
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int c = peek();
+            switch (c) {
+                case EOF:
+                    return;
+                case '[':
+                case '{':
+                    depth++;
+                    consume();
+                    break;
+                case ']':
+                case '}':
+                    depth--;
+                    consume();
+                    break;
+                case '"':
+                    readString();
+                    break;
+                default:
+                    skipLiteral();
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    public void close() {
+        try {
+            mReader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void skipLiteral() throws IOException {
+        while (mPosition < mLimit || fill()) {
+            char c = mBuffer[mPosition];
+            if (c == ',' || c == ':' || c == ']' || c == '}' || c == ' ' || c == '\t'
+                    || c == '\n' || c == '\r') {
+                return;
+            }
+            mPosition++;
+        }
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return EOF;
+        }
+        return mBuffer[mPosition++];
+    }
+
+    private boolean fill() throws IOException {
+        int count = mReader.read(mBuffer, 0, BUFFER_SIZE);
+        if (count <= 0) {
+            return false;
+        }
+        mPosition = 0;
+        mLimit = count;
+        return true;
+    }
+
+}
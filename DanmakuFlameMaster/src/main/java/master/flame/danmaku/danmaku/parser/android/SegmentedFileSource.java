@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.parser.android;
+
+import android.net.Uri;
+
+import master.flame.danmaku.danmaku.parser.IDataSource;
+import master.flame.danmaku.danmaku.parser.ISegmentedDataSource;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * 按段号拼出文件路径或地址的分段数据源,如"/sdcard/danmaku/av123/%d.xml".
+ * 以http(s)开头的模板按地址读取,可以对接本地的分段弹幕服务
+ */
+public class SegmentedFileSource implements ISegmentedDataSource<String> {
+
+    private final String mPattern;
+
+    public SegmentedFileSource(String pattern) {
+        mPattern = pattern;
+    }
+
+    @Override
+    public IDataSource<?> getSegment(int segment) {
+        String path = String.format(Locale.US, mPattern, segment);
+        Uri uri = Uri.parse(path);
+        String scheme = uri.getScheme();
+        if (SCHEME_HTTP_TAG.equalsIgnoreCase(scheme)
+                || SCHEME_HTTPS_TAG.equalsIgnoreCase(scheme)) {
+            return new AndroidFileSource(uri);
+        }
+        File file = SCHEME_FILE_TAG.equalsIgnoreCase(scheme) ? new File(uri.getPath()) : new File(
+                path);
+        if (!file.exists()) {
+            return null;
+        }
+        return new AndroidFileSource(file);
+    }
+
+    @Override
+    public String data() {
+        return mPattern;
+    }
+
+    @Override
+    public void release() {
+    }
+
+}
@@ -53,6 +53,30 @@ public interface IRenderer {
             mRefreshRect[3] = bottom;
         }
 
+        public void union(float left, float top, float right, float bottom) {
+            if (left >= right || top >= bottom) {
+                return;
+            }
+            mRefreshRect[0] = Math.min(mRefreshRect[0], left);
+            mRefreshRect[1] = Math.min(mRefreshRect[1], top);
+            mRefreshRect[2] = Math.max(mRefreshRect[2], right);
+            mRefreshRect[3] = Math.max(mRefreshRect[3], bottom);
+        }
+
+        public void union(Area other) {
+            union(other.mRefreshRect[0], other.mRefreshRect[1], other.mRefreshRect[2],
+                    other.mRefreshRect[3]);
+        }
+
+        public boolean intersects(float left, float top, float right, float bottom) {
+            return left < mRefreshRect[2] && mRefreshRect[0] < right && top < mRefreshRect[3]
+                    && mRefreshRect[1] < bottom;
+        }
+
+        public boolean isEmpty() {
+            return mRefreshRect[0] >= mRefreshRect[2] || mRefreshRect[1] >= mRefreshRect[3];
+        }
+
     }
 
     public class RenderingState {
@@ -127,6 +151,24 @@ public interface IRenderer {
 
     public RenderingState draw(IDisplayer disp, IDanmakus danmakus, long startRenderTime);
 
+    /**
+     * 脏区域模式: 只测量和布局,不绘制,并计算出与上一帧相比需要重绘的区域
+     * 
+     * @param dirtyArea 输出,需要重绘的区域;为空表示画面没有变化
+     */
+    public RenderingState layout(IDisplayer disp, IDanmakus danmakus, long startRenderTime,
+            Area dirtyArea);
+
+    /**
+     * 绘制最近一次{@link #layout}结果中与area相交的弹幕
+     */
+    public void drawArea(IDisplayer disp, Area area);
+
+    /**
+     * 丢弃缓存的离屏图层,下一帧重建
+     */
+    public void invalidateLayers();
+
     public void clear();
 
     public void release();
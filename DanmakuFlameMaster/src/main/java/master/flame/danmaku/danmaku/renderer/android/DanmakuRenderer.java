@@ -19,86 +19,403 @@ package master.flame.danmaku.danmaku.renderer.android;
 import master.flame.danmaku.controller.DanmakuFilters;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.DanmakuTimer;
-import master.flame.danmaku.danmaku.model.IDanmakuIterator;
 import master.flame.danmaku.danmaku.model.IDanmakus;
 import master.flame.danmaku.danmaku.model.IDisplayer;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+import master.flame.danmaku.danmaku.model.android.DanmakuGlobalConfig;
 import master.flame.danmaku.danmaku.renderer.IRenderer;
 import master.flame.danmaku.danmaku.renderer.Renderer;
 
+import java.util.ArrayList;
+
 
 public class DanmakuRenderer extends Renderer {
 
+    /**
+     * 合并数量标签"×N"绘制在弹幕右侧,脏区域按字号的倍数向右扩展
+     */
+    private static final float MERGED_COUNT_MARGIN_FACTOR = 3f;
+
     private final DanmakuTimer mStartTimer = new DanmakuTimer();
     private final RenderingState mRenderingState = new RenderingState();
+
+    /**
+     * 最近一次layout的可见弹幕,按绘制顺序
+     */
+    private final ArrayList<BaseDanmaku> mLaidOutDanmakus = new ArrayList<BaseDanmaku>();
+
+    /**
+     * 顶部/底部弹幕布局后位置不变,只在集合变化时需要重绘
+     */
+    private ArrayList<BaseDanmaku> mStaticDanmakus = new ArrayList<BaseDanmaku>();
+    private ArrayList<BaseDanmaku> mLastStaticDanmakus = new ArrayList<BaseDanmaku>();
+    private int[] mStaticMergedCounts = new int[16];
+    private int[] mLastStaticMergedCounts = new int[16];
+
+    /**
+     * 滚动弹幕每帧都在移动,记录本帧和上一帧覆盖的范围
+     */
+    private Area mMovingArea = new Area();
+    private Area mLastMovingArea = new Area();
+
+    private boolean mHasSpecial;
+    private boolean mLastHasSpecial;
+
+    /**
+     * 分层绘制时顶部/底部弹幕所在的离屏图层
+     */
+    private final FixedDanmakuLayer mFixedLayer = new FixedDanmakuLayer();
+
+    private boolean mLayered;
+
+    /**
+     * 整行合成绘制滚动弹幕
+     */
+    private final LaneStripCompositor mLaneStrips = new LaneStripCompositor();
+
+    private final RenderingConsumer mRenderingConsumer = new RenderingConsumer();
+
+    private boolean mLaneStripsEnabled;
+
+    private boolean mDirtyTrackingValid;
+    private int mLastWidth;
+    private int mLastHeight;
     
     @Override
     public void clear() {
         DanmakusRetainer.clear();
         DanmakuFilters.getDefault().clear();
+        invalidateDirtyTracking();
+        mFixedLayer.invalidate();
+        mLaneStrips.invalidate();
     }
 
     @Override
     public void release() {
         DanmakusRetainer.release();
         DanmakuFilters.getDefault().release();
+        invalidateDirtyTracking();
+        mFixedLayer.release();
+        mLaneStrips.release();
+    }
+
+    @Override
+    public void invalidateLayers() {
+        mFixedLayer.invalidate();
+        mLaneStrips.invalidate();
     }
     
     @Override
     public RenderingState draw(IDisplayer disp, IDanmakus danmakus, long startRenderTime) {
+        invalidateDirtyTracking();
+        return render(disp, danmakus, startRenderTime, false);
+    }
+
+    @Override
+    public RenderingState layout(IDisplayer disp, IDanmakus danmakus, long startRenderTime,
+            Area dirtyArea) {
+        int width = disp.getWidth();
+        int height = disp.getHeight();
+        mLaidOutDanmakus.clear();
+        ArrayList<BaseDanmaku> statics = mLastStaticDanmakus;
+        mLastStaticDanmakus = mStaticDanmakus;
+        mStaticDanmakus = statics;
+        mStaticDanmakus.clear();
+        int[] counts = mLastStaticMergedCounts;
+        mLastStaticMergedCounts = mStaticMergedCounts;
+        mStaticMergedCounts = counts;
+        Area area = mLastMovingArea;
+        mLastMovingArea = mMovingArea;
+        mMovingArea = area;
+        mMovingArea.setEdge(width, height);
+        mMovingArea.reset();
+        mLastHasSpecial = mHasSpecial;
+        mHasSpecial = false;
+
+        RenderingState state = render(disp, danmakus, startRenderTime, true);
+
+        dirtyArea.setEdge(width, height);
+        if (!mDirtyTrackingValid || mHasSpecial || mLastHasSpecial || width != mLastWidth
+                || height != mLastHeight) {
+            // 特殊弹幕带旋转和路径动画,边界不好估计,直接全部重绘
+            dirtyArea.resizeToMax();
+        } else {
+            dirtyArea.reset();
+            dirtyArea.union(mLastMovingArea);
+            dirtyArea.union(mMovingArea);
+            unionChangedStatics(dirtyArea);
+        }
+        mDirtyTrackingValid = true;
+        mLastWidth = width;
+        mLastHeight = height;
+        return state;
+    }
+
+    @Override
+    public void drawArea(IDisplayer disp, Area area) {
+        boolean layered = beginFixedLayer(disp);
+        for (int i = 0, size = mLaidOutDanmakus.size(); i < size; i++) {
+            BaseDanmaku drawItem = mLaidOutDanmakus.get(i);
+            if (layered && isFixed(drawItem)) {
+                mFixedLayer.add(drawItem);
+                continue;
+            }
+            if (drawItem.getType() != BaseDanmaku.TYPE_SPECIAL
+                    && !area.intersects(drawItem.getLeft(), drawItem.getTop(),
+                            getBoundsRight(drawItem), drawItem.getBottom())) {
+                continue;
+            }
+            countRenderingType(drawItem.draw(disp));
+        }
+        if (layered) {
+            mFixedLayer.draw((AndroidDisplayer) disp);
+        }
+    }
+
+    private RenderingState render(IDisplayer disp, IDanmakus danmakus, long startRenderTime,
+            boolean layoutOnly) {
         mRenderingState.reset();       
-        IDanmakuIterator itr = danmakus.iterator();
-        int orderInScreen = 0;        
+        if (danmakus == null) {
+            mRenderingState.nothingRendered = true;
+            mRenderingState.beginTime = mRenderingState.endTime = RenderingState.UNKNOWN_TIME;
+            return mRenderingState;
+        }
+        boolean layered = !layoutOnly && beginFixedLayer(disp);
+        boolean laneStrips = beginLaneStrips(disp);
         mStartTimer.update(System.currentTimeMillis());
-        int sizeInScreen = danmakus.size();
-        BaseDanmaku drawItem = null;
-        while (itr.hasNext()) {
+        RenderingConsumer consumer = mRenderingConsumer;
+        consumer.begin(disp, danmakus.size(), startRenderTime, layoutOnly, layered, laneStrips);
+        danmakus.forEach(consumer);
+        BaseDanmaku drawItem = consumer.end();
+        
+        if (laneStrips && !layoutOnly) {
+            mLaneStrips.draw((AndroidDisplayer) disp);
+        }
+        if (layered) {
+            // 固定弹幕层合成在滚动弹幕之上
+            mFixedLayer.draw((AndroidDisplayer) disp);
+        }
+        
+        mRenderingState.nothingRendered = (mRenderingState.totalDanmakuCount == 0);
+        if (mRenderingState.nothingRendered) {
+            mRenderingState.beginTime = RenderingState.UNKNOWN_TIME;
+            mRenderingState.endTime = drawItem != null ? drawItem.time : RenderingState.UNKNOWN_TIME;
+        }
+        mRenderingState.consumingTime = mStartTimer.update(System.currentTimeMillis());
+        return mRenderingState;
+    }
+
+    /**
+     * @return 是否使用固定弹幕图层绘制本帧
+     */
+    private boolean beginFixedLayer(IDisplayer disp) {
+        boolean layered = DanmakuGlobalConfig.DEFAULT.isLayeredRenderingEnabled()
+                && isCanvasBacked(disp);
+        if (layered) {
+            mFixedLayer.begin();
+        } else if (mLayered) {
+            mFixedLayer.release();
+        }
+        mLayered = layered;
+        return layered;
+    }
+
+    /**
+     * 脏区域模式下只统一滚动速度,弹幕仍逐条绘制
+     * 
+     * @return 是否启用整行合成
+     */
+    private boolean beginLaneStrips(IDisplayer disp) {
+        boolean enabled = DanmakuGlobalConfig.DEFAULT.isLaneStripRenderingEnabled()
+                && isCanvasBacked(disp);
+        if (enabled) {
+            mLaneStrips.begin();
+        } else if (mLaneStripsEnabled) {
+            mLaneStrips.release();
+        }
+        mLaneStripsEnabled = enabled;
+        return enabled;
+    }
+
+    private static boolean isCanvasBacked(IDisplayer disp) {
+        return disp instanceof AndroidDisplayer && ((AndroidDisplayer) disp).isCanvasBacked();
+    }
+
+    private static boolean isFixed(BaseDanmaku item) {
+        int type = item.getType();
+        return type == BaseDanmaku.TYPE_FIX_TOP || type == BaseDanmaku.TYPE_FIX_BOTTOM;
+    }
 
-            drawItem = itr.next();
+    private void countRenderingType(int renderingType) {
+        if(renderingType == IRenderer.CACHE_RENDERING) {
+            mRenderingState.cacheHitCount++;
+        } else if(renderingType == IRenderer.TEXT_RENDERING) {
+            mRenderingState.cacheMissCount++;
+        }
+    }
+
+    private void onLaidOut(BaseDanmaku item) {
+        mLaidOutDanmakus.add(item);
+        switch (item.getType()) {
+            case BaseDanmaku.TYPE_FIX_TOP:
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                int index = mStaticDanmakus.size();
+                if (index >= mStaticMergedCounts.length) {
+                    int[] counts = new int[index * 2];
+                    System.arraycopy(mStaticMergedCounts, 0, counts, 0, index);
+                    mStaticMergedCounts = counts;
+                }
+                mStaticMergedCounts[index] = item.mergedCount;
+                mStaticDanmakus.add(item);
+                break;
+            case BaseDanmaku.TYPE_SPECIAL:
+                mHasSpecial = true;
+                break;
+            default:
+                unionBounds(mMovingArea, item);
+                break;
+        }
+    }
+
+    private void unionChangedStatics(Area dirtyArea) {
+        int size = mStaticDanmakus.size();
+        if (size == mLastStaticDanmakus.size()) {
+            boolean sameItems = true;
+            for (int i = 0; i < size; i++) {
+                if (mStaticDanmakus.get(i) != mLastStaticDanmakus.get(i)) {
+                    sameItems = false;
+                    break;
+                }
+            }
+            if (sameItems) {
+                // 只有合并数量变化的需要重绘
+                for (int i = 0; i < size; i++) {
+                    if (mStaticMergedCounts[i] != mLastStaticMergedCounts[i]) {
+                        unionBounds(dirtyArea, mStaticDanmakus.get(i));
+                    }
+                }
+                return;
+            }
+        }
+        for (int i = 0, lastSize = mLastStaticDanmakus.size(); i < lastSize; i++) {
+            unionBounds(dirtyArea, mLastStaticDanmakus.get(i));
+        }
+        for (int i = 0; i < size; i++) {
+            unionBounds(dirtyArea, mStaticDanmakus.get(i));
+        }
+    }
+
+    private static void unionBounds(Area area, BaseDanmaku item) {
+        // 向外多扩1像素,避免浮点坐标取整后残留边缘
+        area.union(item.getLeft() - 1, item.getTop() - 1, getBoundsRight(item) + 1,
+                item.getBottom() + 1);
+    }
+
+    private static float getBoundsRight(BaseDanmaku item) {
+        float right = item.getRight();
+        if (item.mergedCount > 1) {
+            right += item.textSize * MERGED_COUNT_MARGIN_FACTOR;
+        }
+        return right;
+    }
+
+    private void invalidateDirtyTracking() {
+        mDirtyTrackingValid = false;
+        mLaidOutDanmakus.clear();
+        mStaticDanmakus.clear();
+        mLastStaticDanmakus.clear();
+    }
+    
+
+    /**
+     * 渲染一帧时对每条弹幕的处理,只在绘制线程使用,复用同一实例
+     */
+    private class RenderingConsumer implements IDanmakus.Consumer {
+
+        private IDisplayer mDisp;
+
+        private BaseDanmaku mLastItem;
+
+        private long mStartRenderTime;
+
+        private boolean mLayoutOnly;
+
+        private boolean mLayered;
+
+        private boolean mUseLaneStrips;
+
+        private int mOrderInScreen;
+
+        private int mSizeInScreen;
+
+        void begin(IDisplayer disp, int sizeInScreen, long startRenderTime, boolean layoutOnly,
+                boolean layered, boolean laneStrips) {
+            mDisp = disp;
+            mSizeInScreen = sizeInScreen;
+            mStartRenderTime = startRenderTime;
+            mLayoutOnly = layoutOnly;
+            mLayered = layered;
+            mUseLaneStrips = laneStrips;
+            mOrderInScreen = 0;
+            mLastItem = null;
+        }
+
+        /**
+         * @return 最后遍历到的弹幕
+         */
+        BaseDanmaku end() {
+            BaseDanmaku lastItem = mLastItem;
+            mDisp = null;
+            mLastItem = null;
+            return lastItem;
+        }
+
+        @Override
+        public int accept(BaseDanmaku drawItem) {
+            mLastItem = drawItem;
             
             if (drawItem.isLate()) {
-                break;
+                return ACTION_BREAK;
             }
 
-            if (drawItem.time < startRenderTime
+            if (drawItem.time < mStartRenderTime
                     || (drawItem.priority == 0 && DanmakuFilters.getDefault().filter(drawItem,
-                            orderInScreen, sizeInScreen, mStartTimer, false))) {
-                continue;
+                            mOrderInScreen, mSizeInScreen, mStartTimer, false))) {
+                return ACTION_CONTINUE;
             }
             
             if(drawItem.getType() == BaseDanmaku.TYPE_SCROLL_RL){
                 // 同屏弹幕密度只对滚动弹幕有效
-                orderInScreen++;
+                mOrderInScreen++;
             }
 
-            // measure
-            if (!drawItem.isMeasured()) {
+            IDisplayer disp = mDisp;
+            // measure,刚进入屏幕的弹幕顺便更新过期的结果,已在屏幕上的交给RemeasureService
+            if (!drawItem.isMeasured() || (!drawItem.isShown() && drawItem.needRemeasure())) {
                 drawItem.measure(disp);
             }
+            boolean inLaneStrip = mUseLaneStrips && mLaneStrips.adopt(drawItem, disp);
 
             // layout
             DanmakusRetainer.fix(drawItem, disp);
 
             // draw
             if (!drawItem.isOutside() && drawItem.isShown()) {
-                int renderingType = drawItem.draw(disp);
-                if(renderingType == IRenderer.CACHE_RENDERING) {
-                    mRenderingState.cacheHitCount++;
-                } else if(renderingType == IRenderer.TEXT_RENDERING) {
-                    mRenderingState.cacheMissCount++;
+                if (mLayoutOnly) {
+                    onLaidOut(drawItem);
+                } else if (mLayered && isFixed(drawItem)) {
+                    mFixedLayer.add(drawItem);
+                } else if (inLaneStrip) {
+                    mLaneStrips.add(drawItem);
+                } else {
+                    countRenderingType(drawItem.draw(disp));
                 }
                 mRenderingState.addCount(drawItem.getType(), 1);
                 mRenderingState.addTotalCount(1);
             }
-
+            return ACTION_CONTINUE;
         }
-        
-        mRenderingState.nothingRendered = (mRenderingState.totalDanmakuCount == 0);
-        if (mRenderingState.nothingRendered) {
-            mRenderingState.beginTime = RenderingState.UNKNOWN_TIME;
-            mRenderingState.endTime = drawItem != null ? drawItem.time : RenderingState.UNKNOWN_TIME;
-        }
-        mRenderingState.consumingTime = mStartTimer.update(System.currentTimeMillis());
-        return mRenderingState;
+
     }
-    
+
 }
@@ -67,6 +67,34 @@ public class DanmakusRetainer {
 
     }
 
+    /**
+     * 弹幕回收前从占位记录里移除
+     */
+    public static void remove(BaseDanmaku danmaku) {
+        switch (danmaku.getType()) {
+            case BaseDanmaku.TYPE_SCROLL_RL:
+                if (rldrInstance != null) {
+                    rldrInstance.remove(danmaku);
+                }
+                break;
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                if (lrdrInstance != null) {
+                    lrdrInstance.remove(danmaku);
+                }
+                break;
+            case BaseDanmaku.TYPE_FIX_TOP:
+                if (ftdrInstance != null) {
+                    ftdrInstance.remove(danmaku);
+                }
+                break;
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                if (fbdrInstance != null) {
+                    fbdrInstance.remove(danmaku);
+                }
+                break;
+        }
+    }
+
     public static void clear() {
         if (rldrInstance != null) {
             rldrInstance.clear();
@@ -95,11 +123,26 @@ public class DanmakusRetainer {
 
         public void clear();
 
+        public void remove(BaseDanmaku danmaku);
+
+    }
+
+    /**
+     * 超时后弹幕的位置会变,不能依赖排序查找,按引用逐个比较
+     */
+    private static void removeByIdentity(Danmakus danmakus, BaseDanmaku danmaku) {
+        IDanmakuIterator it = danmakus.iterator();
+        while (it.hasNext()) {
+            if (it.next() == danmaku) {
+                it.remove();
+                break;
+            }
+        }
     }
 
     private static class RLDanmakusRetainer implements IDanmakusRetainer {
 
-        protected Danmakus mVisibleDanmakus = new Danmakus(Danmakus.ST_BY_YPOS);
+        protected Danmakus mVisibleDanmakus = new Danmakus(Danmakus.ST_BY_YPOS, false, true);
         protected boolean mCancelFixingFlag = false;
 
         @Override
@@ -209,6 +252,11 @@ public class DanmakusRetainer {
             mVisibleDanmakus.clear();
         }
 
+        @Override
+        public void remove(BaseDanmaku danmaku) {
+            removeByIdentity(mVisibleDanmakus, danmaku);
+        }
+
     }
 
     private static class FTDanmakusRetainer extends RLDanmakusRetainer {
@@ -227,7 +275,7 @@ public class DanmakusRetainer {
 
     private static class FBDanmakusRetainer extends FTDanmakusRetainer {
 
-        protected Danmakus mVisibleDanmakus = new Danmakus(Danmakus.ST_BY_YPOS_DESC);
+        protected Danmakus mVisibleDanmakus = new Danmakus(Danmakus.ST_BY_YPOS_DESC, false, true);
 
         @Override
         public void fix(BaseDanmaku drawItem, IDisplayer disp) {
@@ -303,6 +351,11 @@ public class DanmakusRetainer {
             mVisibleDanmakus.clear();
         }
 
+        @Override
+        public void remove(BaseDanmaku danmaku) {
+            removeByIdentity(mVisibleDanmakus, danmaku);
+        }
+
     }
 
 }
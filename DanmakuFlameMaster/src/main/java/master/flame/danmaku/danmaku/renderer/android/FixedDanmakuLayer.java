@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.renderer.android;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+import master.flame.danmaku.danmaku.model.android.DrawingCacheHolder;
+
+import java.util.ArrayList;
+
+/**
+ * 顶部/底部弹幕的离屏图层.
+ * 固定弹幕每秒只变化几次,图层只在集合(或合并数量)变化、配置变化、尺寸变化时重建,
+ * 其余帧只需把顶部和底部两块区域贴到画布上
+ */
+class FixedDanmakuLayer {
+
+    private final DrawingCacheHolder mHolder = new DrawingCacheHolder();
+
+    private final ArrayList<BaseDanmaku> mDanmakus = new ArrayList<BaseDanmaku>();
+
+    private final ArrayList<BaseDanmaku> mLayerDanmakus = new ArrayList<BaseDanmaku>();
+
+    private int[] mMergedCounts = new int[16];
+
+    private int[] mLayerMergedCounts = new int[16];
+
+    private final Rect mTopBounds = new Rect();
+
+    private final Rect mBottomBounds = new Rect();
+
+    private volatile boolean mValid;
+
+    private int mVisibleResetFlag;
+
+    private int mMeasureResetFlag;
+
+    /**
+     * 开始收集本帧的固定弹幕
+     */
+    public void begin() {
+        mDanmakus.clear();
+    }
+
+    public void add(BaseDanmaku item) {
+        int index = mDanmakus.size();
+        if (index >= mMergedCounts.length) {
+            int[] counts = new int[index * 2];
+            System.arraycopy(mMergedCounts, 0, counts, 0, index);
+            mMergedCounts = counts;
+        }
+        mMergedCounts[index] = item.mergedCount;
+        mDanmakus.add(item);
+    }
+
+    public boolean isEmpty() {
+        return mDanmakus.isEmpty();
+    }
+
+    /**
+     * 必要时重建图层,然后合成到displayer当前的画布上
+     */
+    public void draw(AndroidDisplayer disp) {
+        if (mDanmakus.isEmpty()) {
+            return;
+        }
+        Canvas target = disp.getExtraData();
+        if (target == null) {
+            return;
+        }
+        if (isChanged(disp.getWidth(), disp.getHeight())) {
+            rebuild(disp, target);
+        }
+        if (!mTopBounds.isEmpty()) {
+            target.drawBitmap(mHolder.bitmap, mTopBounds, mTopBounds, null);
+        }
+        if (!mBottomBounds.isEmpty()) {
+            target.drawBitmap(mHolder.bitmap, mBottomBounds, mBottomBounds, null);
+        }
+    }
+
+    public void invalidate() {
+        mValid = false;
+    }
+
+    public void release() {
+        mValid = false;
+        mDanmakus.clear();
+        mLayerDanmakus.clear();
+        mHolder.recycle();
+    }
+
+    private boolean isChanged(int width, int height) {
+        if (!mValid || mHolder.bitmap == null || mHolder.width != width
+                || mHolder.height != height
+                || mVisibleResetFlag != GlobalFlagValues.VISIBLE_RESET_FLAG
+                || mMeasureResetFlag != GlobalFlagValues.MEASURE_RESET_FLAG) {
+            return true;
+        }
+        int size = mDanmakus.size();
+        if (size != mLayerDanmakus.size()) {
+            return true;
+        }
+        for (int i = 0; i < size; i++) {
+            if (mDanmakus.get(i) != mLayerDanmakus.get(i)
+                    || mMergedCounts[i] != mLayerMergedCounts[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rebuild(AndroidDisplayer disp, Canvas target) {
+        int width = disp.getWidth();
+        int height = disp.getHeight();
+        mHolder.buildCache(width, height, target.getDensity(), true);
+        mTopBounds.setEmpty();
+        mBottomBounds.setEmpty();
+        disp.setExtraData(mHolder.canvas);
+        for (int i = 0, size = mDanmakus.size(); i < size; i++) {
+            BaseDanmaku item = mDanmakus.get(i);
+            item.draw(disp);
+            // 合并数量标签画在弹幕右侧,一直延伸到屏幕右边
+            Rect bounds = item.getType() == BaseDanmaku.TYPE_FIX_TOP ? mTopBounds : mBottomBounds;
+            bounds.union((int) item.getLeft() - 1, (int) item.getTop() - 1,
+                    item.mergedCount > 1 ? width : (int) item.getRight() + 2,
+                    (int) item.getBottom() + 2);
+        }
+        disp.setExtraData(target);
+        if (!mTopBounds.intersect(0, 0, width, height)) {
+            mTopBounds.setEmpty();
+        }
+        if (!mBottomBounds.intersect(0, 0, width, height)) {
+            mBottomBounds.setEmpty();
+        }
+
+        mLayerDanmakus.clear();
+        mLayerDanmakus.addAll(mDanmakus);
+        if (mLayerMergedCounts.length < mMergedCounts.length) {
+            mLayerMergedCounts = new int[mMergedCounts.length];
+        }
+        System.arraycopy(mMergedCounts, 0, mLayerMergedCounts, 0, mDanmakus.size());
+        mVisibleResetFlag = GlobalFlagValues.VISIBLE_RESET_FLAG;
+        mMeasureResetFlag = GlobalFlagValues.MEASURE_RESET_FLAG;
+        mValid = true;
+    }
+
+}
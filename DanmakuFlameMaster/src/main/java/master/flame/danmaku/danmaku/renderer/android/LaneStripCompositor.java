@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.renderer.android;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.model.IDisplayer;
+import master.flame.danmaku.danmaku.model.R2LDanmaku;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+import master.flame.danmaku.danmaku.model.android.DrawingCacheHolder;
+import master.flame.danmaku.danmaku.parser.DanmakuFactory;
+
+import java.util.ArrayList;
+
+/**
+ * 整行合成绘制从右向左的滚动弹幕.
+ * 同一行的弹幕以相同速度滚动时,相对位置不变,可以在弹幕进入时画到该行的长条位图上,
+ * 每帧只需平移贴图一次,drawBitmap次数由弹幕数量降为行数.
+ * 默认的滚动速度与弹幕宽度有关,所以合成模式下宽度不超过参考宽度的弹幕统一以
+ * (屏幕宽度+参考宽度)/时长 的速度滚动,仍能在时长内完全离开屏幕;
+ * 更宽的弹幕、非默认时长的弹幕、从左向右的弹幕照常逐条绘制
+ */
+class LaneStripCompositor {
+
+    /**
+     * 参考宽度与屏幕宽度的比例
+     */
+    private static final float REFERENCE_WIDTH_RATIO = 0.5f;
+
+    /**
+     * 长条位图宽度与屏幕宽度的比例,平移超出后重建
+     */
+    private static final float STRIP_WIDTH_RATIO = 2f;
+
+    /**
+     * 合并数量标签画在弹幕右侧,按字号的倍数预留
+     */
+    private static final float MERGED_COUNT_MARGIN_FACTOR = 3f;
+
+    /**
+     * 连续多少帧没有弹幕后回收该行的位图
+     */
+    private static final int IDLE_FRAMES_TO_RECYCLE = 120;
+
+    private final ArrayList<LaneStrip> mLanes = new ArrayList<LaneStrip>();
+
+    private final Rect mSrcRect = new Rect();
+
+    private final RectF mDstRect = new RectF();
+
+    private int mWidth;
+
+    private float mStepX;
+
+    private volatile boolean mValid;
+
+    private int mVisibleResetFlag;
+
+    private int mMeasureResetFlag;
+
+    /**
+     * measure之后、layout之前调用,可以合成的弹幕改为统一速度
+     * 
+     * @return 是否可以整行合成
+     */
+    public boolean adopt(BaseDanmaku item, IDisplayer disp) {
+        if (item.getType() != BaseDanmaku.TYPE_SCROLL_RL
+                || item.duration != DanmakuFactory.MAX_Duration_Scroll_Danmaku
+                || item.duration == null || item.duration.value <= 0) {
+            return false;
+        }
+        int width = disp.getWidth();
+        float referenceWidth = width * REFERENCE_WIDTH_RATIO;
+        if (item.paintWidth > referenceWidth) {
+            return false;
+        }
+        float stepX = (width + referenceWidth) / item.duration.value;
+        R2LDanmaku r2l = (R2LDanmaku) item;
+        if (r2l.getStepX() != stepX) {
+            r2l.setStepX(stepX);
+        }
+        if (mWidth != width || mStepX != stepX) {
+            mWidth = width;
+            mStepX = stepX;
+            mValid = false;
+        }
+        return true;
+    }
+
+    public void begin() {
+        for (int i = 0, size = mLanes.size(); i < size; i++) {
+            mLanes.get(i).mFrameDanmakus.clear();
+        }
+    }
+
+    public void add(BaseDanmaku item) {
+        float top = item.getTop();
+        LaneStrip lane = null;
+        for (int i = 0, size = mLanes.size(); i < size; i++) {
+            if (mLanes.get(i).mTop == top) {
+                lane = mLanes.get(i);
+                break;
+            }
+        }
+        if (lane == null) {
+            lane = new LaneStrip(top);
+            mLanes.add(lane);
+        }
+        lane.mFrameDanmakus.add(item);
+    }
+
+    public void draw(AndroidDisplayer disp) {
+        Canvas target = disp.getExtraData();
+        if (target == null) {
+            return;
+        }
+        if (!mValid || mVisibleResetFlag != GlobalFlagValues.VISIBLE_RESET_FLAG
+                || mMeasureResetFlag != GlobalFlagValues.MEASURE_RESET_FLAG) {
+            for (int i = 0, size = mLanes.size(); i < size; i++) {
+                mLanes.get(i).mStripDanmakus.clear();
+            }
+            mVisibleResetFlag = GlobalFlagValues.VISIBLE_RESET_FLAG;
+            mMeasureResetFlag = GlobalFlagValues.MEASURE_RESET_FLAG;
+            mValid = true;
+        }
+        for (int i = 0, size = mLanes.size(); i < size; i++) {
+            mLanes.get(i).draw(disp, target);
+        }
+    }
+
+    public void invalidate() {
+        mValid = false;
+    }
+
+    public void release() {
+        mValid = false;
+        for (int i = 0, size = mLanes.size(); i < size; i++) {
+            mLanes.get(i).release();
+        }
+        mLanes.clear();
+    }
+
+    private class LaneStrip {
+
+        final float mTop;
+
+        final ArrayList<BaseDanmaku> mFrameDanmakus = new ArrayList<BaseDanmaku>();
+
+        /**
+         * 已画到位图上的弹幕,与mStripLefts,mStripMergedCounts一一对应
+         */
+        final ArrayList<BaseDanmaku> mStripDanmakus = new ArrayList<BaseDanmaku>();
+
+        float[] mStripLefts = new float[16];
+
+        /**
+         * 画到位图上时的合并数量,之后变化需要重画"×N"标签
+         */
+        int[] mStripMergedCounts = new int[16];
+
+        final DrawingCacheHolder mHolder = new DrawingCacheHolder();
+
+        int mIdleFrames;
+
+        LaneStrip(float top) {
+            mTop = top;
+        }
+
+        void draw(AndroidDisplayer disp, Canvas target) {
+            int frameSize = mFrameDanmakus.size();
+            if (frameSize == 0) {
+                mStripDanmakus.clear();
+                if (++mIdleFrames > IDLE_FRAMES_TO_RECYCLE && mHolder.bitmap != null) {
+                    mHolder.recycle();
+                }
+                return;
+            }
+            mIdleFrames = 0;
+            float offset = 0;
+            boolean rebuild = mHolder.bitmap == null || mStripDanmakus.isEmpty();
+            if (!rebuild) {
+                // 任取一条已在位图上的弹幕,求出位图当前的平移量
+                BaseDanmaku anchor = null;
+                for (int i = 0; i < frameSize && anchor == null; i++) {
+                    int index = mStripDanmakus.indexOf(mFrameDanmakus.get(i));
+                    if (index >= 0) {
+                        anchor = mStripDanmakus.get(index);
+                        offset = mStripLefts[index] - anchor.getLeft();
+                    }
+                }
+                rebuild = anchor == null || offset + mWidth > mHolder.width
+                        || hasRemovedVisibleDanmaku(offset) || hasMergedCountChanged()
+                        || !fitsNewDanmakus(offset);
+            }
+            if (rebuild) {
+                offset = 0;
+                mStripDanmakus.clear();
+                int height = 0;
+                for (int i = 0; i < frameSize; i++) {
+                    height = Math.max(height, (int) Math.ceil(mFrameDanmakus.get(i).paintHeight));
+                }
+                mHolder.buildCache((int) (mWidth * STRIP_WIDTH_RATIO), height + 1,
+                        target.getDensity(), true);
+            }
+            appendNewDanmakus(disp, target, offset);
+
+            int srcLeft = Math.max(0, (int) offset);
+            int srcRight = Math.min(mHolder.width, (int) Math.ceil(offset + mWidth));
+            if (srcRight <= srcLeft) {
+                return;
+            }
+            mSrcRect.set(srcLeft, 0, srcRight, mHolder.height);
+            mDstRect.set(srcLeft - offset, mTop, srcRight - offset, mTop + mHolder.height);
+            target.drawBitmap(mHolder.bitmap, mSrcRect, mDstRect, null);
+        }
+
+        /**
+         * 位图上仍在屏幕内的弹幕本帧消失(被屏蔽,隐藏等)时需要重建
+         */
+        private boolean hasRemovedVisibleDanmaku(float offset) {
+            for (int i = mStripDanmakus.size() - 1; i >= 0; i--) {
+                BaseDanmaku item = mStripDanmakus.get(i);
+                if (mFrameDanmakus.contains(item)) {
+                    continue;
+                }
+                if (mStripLefts[i] - offset + item.paintWidth > 0) {
+                    return true;
+                }
+                // 已经滚出屏幕
+                mStripDanmakus.remove(i);
+                System.arraycopy(mStripLefts, i + 1, mStripLefts, i, mStripDanmakus.size() - i);
+                System.arraycopy(mStripMergedCounts, i + 1, mStripMergedCounts, i,
+                        mStripDanmakus.size() - i);
+            }
+            return false;
+        }
+
+        private boolean hasMergedCountChanged() {
+            for (int i = 0, size = mStripDanmakus.size(); i < size; i++) {
+                if (mStripDanmakus.get(i).mergedCount != mStripMergedCounts[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 新进入的弹幕(包括右侧的合并数量标签)能否完整画在位图上
+         */
+        private boolean fitsNewDanmakus(float offset) {
+            for (int i = 0, size = mFrameDanmakus.size(); i < size; i++) {
+                BaseDanmaku item = mFrameDanmakus.get(i);
+                if (mStripDanmakus.contains(item)) {
+                    continue;
+                }
+                float right = item.getRight() + offset;
+                if (item.mergedCount > 1) {
+                    right += item.textSize * MERGED_COUNT_MARGIN_FACTOR;
+                }
+                if (right > mHolder.width || item.paintHeight > mHolder.height) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void appendNewDanmakus(AndroidDisplayer disp, Canvas target, float offset) {
+            Canvas canvas = mHolder.canvas;
+            boolean drawn = false;
+            for (int i = 0, size = mFrameDanmakus.size(); i < size; i++) {
+                BaseDanmaku item = mFrameDanmakus.get(i);
+                if (mStripDanmakus.contains(item)) {
+                    continue;
+                }
+                float stripLeft = item.getLeft() + offset;
+                int index = mStripDanmakus.size();
+                if (index >= mStripLefts.length) {
+                    float[] lefts = new float[index * 2];
+                    System.arraycopy(mStripLefts, 0, lefts, 0, index);
+                    mStripLefts = lefts;
+                    int[] counts = new int[index * 2];
+                    System.arraycopy(mStripMergedCounts, 0, counts, 0, index);
+                    mStripMergedCounts = counts;
+                }
+                mStripLefts[index] = stripLeft;
+                mStripMergedCounts[index] = item.mergedCount;
+                mStripDanmakus.add(item);
+                if (!drawn) {
+                    disp.setExtraData(canvas);
+                    drawn = true;
+                }
+                canvas.save();
+                canvas.translate(offset, -mTop);
+                item.draw(disp);
+                canvas.restore();
+            }
+            if (drawn) {
+                disp.setExtraData(target);
+            }
+        }
+
+        void release() {
+            mFrameDanmakus.clear();
+            mStripDanmakus.clear();
+            mHolder.recycle();
+        }
+    }
+
+}
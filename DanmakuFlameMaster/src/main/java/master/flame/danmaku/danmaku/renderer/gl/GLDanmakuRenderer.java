@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.renderer.gl;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.opengl.GLUtils;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * 在GL线程绘制{@link GLDisplayer}提交的帧:上传新的光栅到图集纹理,
+ * 然后以一次glDrawElements画出所有弹幕.
+ * OpenGL ES 2.0没有实例化绘制,位置、纹理坐标和透明度都作为顶点属性
+ */
+@TargetApi(Build.VERSION_CODES.FROYO)
+public class GLDanmakuRenderer implements GLSurfaceView.Renderer {
+
+    private static final String TAG = "GLDanmakuRenderer";
+
+    private static final String VERTEX_SHADER = ""
+            + "uniform vec2 uViewport;\n"
+            + "attribute vec2 aPosition;\n"
+            + "attribute vec2 aTexCoord;\n"
+            + "attribute float aAlpha;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "varying float vAlpha;\n"
+            + "void main() {\n"
+            + "    vec2 clip = aPosition / uViewport * 2.0 - 1.0;\n"
+            + "    gl_Position = vec4(clip.x, -clip.y, 0.0, 1.0);\n"
+            + "    vTexCoord = aTexCoord;\n"
+            + "    vAlpha = aAlpha;\n"
+            + "}\n";
+
+    /**
+     * Bitmap上传后是预乘alpha的,混合方式为ONE, ONE_MINUS_SRC_ALPHA
+     */
+    private static final String FRAGMENT_SHADER = ""
+            + "precision mediump float;\n"
+            + "uniform sampler2D uTexture;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "varying float vAlpha;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = texture2D(uTexture, vTexCoord) * vAlpha;\n"
+            + "}\n";
+
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private static final int BYTES_PER_SHORT = 2;
+
+    private static final int STRIDE = QuadBatch.FLOATS_PER_VERTEX * BYTES_PER_FLOAT;
+
+    private final GLDisplayer mDisplayer;
+
+    private final ArrayList<GLDisplayer.Upload> mUploads = new ArrayList<GLDisplayer.Upload>();
+
+    private FloatBuffer mVertexBuffer;
+
+    private ShortBuffer mIndexBuffer;
+
+    private int mProgram;
+
+    private int mTexture;
+
+    private int mPositionHandle;
+
+    private int mTexCoordHandle;
+
+    private int mAlphaHandle;
+
+    private int mViewportHandle;
+
+    private int mTextureHandle;
+
+    private int mWidth;
+
+    private int mHeight;
+
+    public GLDanmakuRenderer(GLDisplayer displayer) {
+        mDisplayer = displayer;
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        mProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTexCoordHandle = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+        mAlphaHandle = GLES20.glGetAttribLocation(mProgram, "aAlpha");
+        mViewportHandle = GLES20.glGetUniformLocation(mProgram, "uViewport");
+        mTextureHandle = GLES20.glGetUniformLocation(mProgram, "uTexture");
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        mTexture = textures[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, GLDisplayer.ATLAS_SIZE,
+                GLDisplayer.ATLAS_SIZE, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+
+        if (mVertexBuffer == null) {
+            int capacity = GLDisplayer.BATCH_CAPACITY;
+            mVertexBuffer = ByteBuffer
+                    .allocateDirect(capacity * QuadBatch.VERTICES_PER_QUAD
+                            * QuadBatch.FLOATS_PER_VERTEX * BYTES_PER_FLOAT)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            short[] indices = QuadBatch.buildIndices(capacity);
+            mIndexBuffer = ByteBuffer.allocateDirect(indices.length * BYTES_PER_SHORT)
+                    .order(ByteOrder.nativeOrder()).asShortBuffer();
+            mIndexBuffer.put(indices).position(0);
+        }
+        // 新的上下文里纹理是空的,之前的光栅全部作废
+        recycleUploads();
+        mDisplayer.requestAtlasReset();
+
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 gl, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    @Override
+    public void onDrawFrame(GL10 gl) {
+        GLES20.glClearColor(0f, 0f, 0f, 0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        QuadBatch batch = mDisplayer.acquireFrame(mUploads);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        for (int i = 0, size = mUploads.size(); i < size; i++) {
+            GLDisplayer.Upload upload = mUploads.get(i);
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, upload.x, upload.y, upload.bitmap);
+        }
+        recycleUploads();
+        int quadCount = batch.getQuadCount();
+        if (quadCount == 0 || mProgram == 0) {
+            return;
+        }
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(mTextureHandle, 0);
+        GLES20.glUniform2f(mViewportHandle, mWidth, mHeight);
+
+        mVertexBuffer.position(0);
+        mVertexBuffer.put(batch.getVertices(), 0, quadCount * QuadBatch.VERTICES_PER_QUAD
+                * QuadBatch.FLOATS_PER_VERTEX);
+        mVertexBuffer.position(0);
+        GLES20.glVertexAttribPointer(mPositionHandle, 2, GLES20.GL_FLOAT, false, STRIDE,
+                mVertexBuffer);
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mVertexBuffer.position(2);
+        GLES20.glVertexAttribPointer(mTexCoordHandle, 2, GLES20.GL_FLOAT, false, STRIDE,
+                mVertexBuffer);
+        GLES20.glEnableVertexAttribArray(mTexCoordHandle);
+        mVertexBuffer.position(4);
+        GLES20.glVertexAttribPointer(mAlphaHandle, 1, GLES20.GL_FLOAT, false, STRIDE,
+                mVertexBuffer);
+        GLES20.glEnableVertexAttribArray(mAlphaHandle);
+
+        mIndexBuffer.position(0);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, quadCount * QuadBatch.INDICES_PER_QUAD,
+                GLES20.GL_UNSIGNED_SHORT, mIndexBuffer);
+    }
+
+    private void recycleUploads() {
+        for (int i = 0, size = mUploads.size(); i < size; i++) {
+            mDisplayer.recycleUpload(mUploads.get(i));
+        }
+        mUploads.clear();
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            return 0;
+        }
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "link program failed: " + GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private static int loadShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "compile shader failed: " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.renderer.gl;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.util.SparseArray;
+
+import master.flame.danmaku.danmaku.model.AlphaValue;
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+import master.flame.danmaku.danmaku.model.android.DanmakuGlobalConfig;
+import master.flame.danmaku.danmaku.model.android.DanmakuGlobalConfig.ConfigChangedCallback;
+import master.flame.danmaku.danmaku.model.android.DanmakuGlobalConfig.DanmakuConfigTag;
+import master.flame.danmaku.danmaku.renderer.IRenderer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OpenGL ES绘制用的displayer.
+ * draw()不直接绘制,而是把弹幕光栅化到纹理图集中并追加一个四边形,
+ * 一帧结束后交给GL线程由{@link GLDanmakuRenderer}一次画完
+ */
+public class GLDisplayer extends AndroidDisplayer implements ConfigChangedCallback {
+
+    public static final int ATLAS_SIZE = 2048;
+
+    public static final int BATCH_CAPACITY = 4096;
+
+    /**
+     * 图集空间不足时,淘汰本帧没有用到的区域
+     */
+    private static final int IDLE_FRAMES_TO_EVICT = 1;
+
+    /**
+     * 光栅尺寸向上取整到这些粒度,同一档尺寸的位图上传后可以复用
+     */
+    private static final int RASTER_WIDTH_STEP = 32;
+
+    private static final int RASTER_HEIGHT_STEP = 8;
+
+    private static final int MAX_POOLED_UPLOADS_PER_SIZE = 8;
+
+    /**
+     * 等待上传到图集纹理的光栅,上传后由GL线程交回{@link #recycleUpload(Upload)}
+     */
+    public static class Upload {
+
+        public int x;
+
+        public int y;
+
+        public final Bitmap bitmap;
+
+        final int sizeKey;
+
+        Upload(int sizeKey, Bitmap bitmap) {
+            this.sizeKey = sizeKey;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private final TextureAtlas<BaseDanmaku> mAtlas = new TextureAtlas<BaseDanmaku>(ATLAS_SIZE,
+            ATLAS_SIZE);
+
+    private QuadBatch mBuildingBatch = new QuadBatch(BATCH_CAPACITY);
+
+    private QuadBatch mReadyBatch = new QuadBatch(BATCH_CAPACITY);
+
+    private QuadBatch mRenderingBatch = new QuadBatch(BATCH_CAPACITY);
+
+    private final ArrayList<Upload> mBuildingUploads = new ArrayList<Upload>();
+
+    private final ArrayList<Upload> mReadyUploads = new ArrayList<Upload>();
+
+    /**
+     * 按尺寸档位缓存的光栅,key见{@link #sizeKey(int, int)}
+     */
+    private final SparseArray<ArrayList<Upload>> mUploadPool =
+            new SparseArray<ArrayList<Upload>>();
+
+    private boolean mReleased;
+
+    private boolean mFrameReady;
+
+    private volatile boolean mAtlasResetRequested;
+
+    private final Canvas mRasterCanvas = new Canvas();
+
+    private Canvas mExtraData = new Canvas();
+
+    public GLDisplayer() {
+        DanmakuGlobalConfig.DEFAULT.registerConfigChangedCallback(this);
+    }
+
+    @Override
+    public boolean isCanvasBacked() {
+        return false;
+    }
+
+    /**
+     * 只保存Canvas,尺寸由{@link #setSize(int, int)}决定
+     */
+    @Override
+    public void setExtraData(Canvas data) {
+        if (data != null) {
+            mExtraData = data;
+        }
+    }
+
+    @Override
+    public Canvas getExtraData() {
+        return mExtraData;
+    }
+
+    /**
+     * 在绘制线程,每帧开始时调用
+     */
+    public void beginFrame() {
+        if (mAtlasResetRequested) {
+            mAtlasResetRequested = false;
+            mAtlas.clear();
+        }
+        mAtlas.nextFrame();
+        mBuildingBatch.clear();
+    }
+
+    @Override
+    public int draw(BaseDanmaku danmaku) {
+        float alpha = 1f;
+        if (danmaku.getType() == BaseDanmaku.TYPE_SPECIAL) {
+            if (danmaku.getAlpha() == AlphaValue.TRANSPARENT) {
+                return IRenderer.NOTHING_RENDERING;
+            }
+            alpha = danmaku.getAlpha() / (float) AlphaValue.MAX;
+        }
+        if (mBuildingBatch.isFull()) {
+            return IRenderer.NOTHING_RENDERING;
+        }
+        int width = roundUp((int) Math.ceil(danmaku.paintWidth), RASTER_WIDTH_STEP);
+        int height = roundUp((int) Math.ceil(danmaku.paintHeight), RASTER_HEIGHT_STEP);
+        if (width <= 0 || height <= 0) {
+            return IRenderer.NOTHING_RENDERING;
+        }
+        int result = IRenderer.CACHE_RENDERING;
+        TextureAtlas.Region region = mAtlas.get(danmaku);
+        if (region == null || region.width != width || region.height != height) {
+            region = mAtlas.allocate(danmaku, width, height);
+            if (region == null && mAtlas.evictUnused(IDLE_FRAMES_TO_EVICT) > 0) {
+                region = mAtlas.allocate(danmaku, width, height);
+            }
+            if (region == null) {
+                // 本帧仍在使用的区域已占满图集,下一帧整体重建
+                mAtlasResetRequested = true;
+                return IRenderer.NOTHING_RENDERING;
+            }
+            Upload upload = rasterize(danmaku, width, height);
+            upload.x = region.x;
+            upload.y = region.y;
+            mBuildingUploads.add(upload);
+            result = IRenderer.TEXT_RENDERING;
+        }
+        float left = danmaku.getLeft();
+        float top = danmaku.getTop();
+        mBuildingBatch.add(left, top, left + width, top + height, region.u0, region.v0,
+                region.u1, region.v1, alpha, danmaku.rotationZ);
+        return result;
+    }
+
+    /**
+     * 区域按档位取整,多出的部分是透明的,四边形也按取整后的尺寸绘制
+     */
+    private Upload rasterize(BaseDanmaku danmaku, int width, int height) {
+        Upload upload = obtainUpload(width, height);
+        upload.bitmap.eraseColor(Color.TRANSPARENT);
+        mRasterCanvas.setBitmap(upload.bitmap);
+        AndroidDisplayer.drawDanmaku(danmaku, mRasterCanvas, 0, 0, false);
+        return upload;
+    }
+
+    private synchronized Upload obtainUpload(int width, int height) {
+        int key = sizeKey(width, height);
+        ArrayList<Upload> pool = mUploadPool.get(key);
+        if (pool != null && !pool.isEmpty()) {
+            return pool.remove(pool.size() - 1);
+        }
+        return new Upload(key, Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * 在GL线程调用,光栅已上传到纹理,位图留给同尺寸的弹幕复用
+     */
+    public synchronized void recycleUpload(Upload upload) {
+        ArrayList<Upload> pool = mReleased ? null : mUploadPool.get(upload.sizeKey);
+        if (pool == null && !mReleased) {
+            pool = new ArrayList<Upload>();
+            mUploadPool.put(upload.sizeKey, pool);
+        }
+        if (pool != null && pool.size() < MAX_POOLED_UPLOADS_PER_SIZE) {
+            pool.add(upload);
+        } else {
+            upload.bitmap.recycle();
+        }
+    }
+
+    private static int sizeKey(int width, int height) {
+        return (width / RASTER_WIDTH_STEP) << 16 | (height / RASTER_HEIGHT_STEP);
+    }
+
+    private static int roundUp(int value, int step) {
+        return (value + step - 1) / step * step;
+    }
+
+    /**
+     * 在绘制线程,每帧结束时调用,提交给GL线程
+     */
+    public synchronized void endFrame() {
+        QuadBatch batch = mReadyBatch;
+        mReadyBatch = mBuildingBatch;
+        mBuildingBatch = batch;
+        // 被跳过的帧的上传也要保留
+        mReadyUploads.addAll(mBuildingUploads);
+        mBuildingUploads.clear();
+        mFrameReady = true;
+    }
+
+    /**
+     * 在GL线程调用,取出最新提交的一帧
+     * 
+     * @param uploads 输出,绘制前需要上传到图集纹理的光栅,上传后由调用方回收
+     * @return 要绘制的四边形
+     */
+    public synchronized QuadBatch acquireFrame(List<Upload> uploads) {
+        if (mFrameReady) {
+            QuadBatch batch = mRenderingBatch;
+            mRenderingBatch = mReadyBatch;
+            mReadyBatch = batch;
+            uploads.addAll(mReadyUploads);
+            mReadyUploads.clear();
+            mFrameReady = false;
+        }
+        return mRenderingBatch;
+    }
+
+    /**
+     * GL上下文重建后纹理内容丢失,需要重新光栅化所有弹幕
+     */
+    public void requestAtlasReset() {
+        mAtlasResetRequested = true;
+    }
+
+    public synchronized void release() {
+        DanmakuGlobalConfig.DEFAULT.unregisterConfigChangedCallback(this);
+        mReleased = true;
+        for (int i = 0, size = mReadyUploads.size(); i < size; i++) {
+            mReadyUploads.get(i).bitmap.recycle();
+        }
+        mReadyUploads.clear();
+        for (int i = 0, size = mUploadPool.size(); i < size; i++) {
+            ArrayList<Upload> pool = mUploadPool.valueAt(i);
+            for (int j = 0; j < pool.size(); j++) {
+                pool.get(j).bitmap.recycle();
+            }
+        }
+        mUploadPool.clear();
+        mAtlasResetRequested = true;
+    }
+
+    @Override
+    public boolean onDanmakuConfigChanged(DanmakuGlobalConfig config, DanmakuConfigTag tag,
+            Object... value) {
+        // 颜色,描边,透明度等都已画进光栅里
+        mAtlasResetRequested = true;
+        return false;
+    }
+
+}
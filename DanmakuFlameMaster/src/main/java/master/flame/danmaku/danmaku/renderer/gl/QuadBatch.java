@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.renderer.gl;
+
+/**
+ * 一帧内所有弹幕四边形的顶点数据,不依赖Android和GL,可以在JVM上单独测试.
+ * 每个顶点依次为 x, y, u, v, alpha,坐标为屏幕像素;配合{@link #buildIndices(int)}
+ * 生成的索引一次glDrawElements画完
+ */
+public class QuadBatch {
+
+    public static final int FLOATS_PER_VERTEX = 5;
+
+    public static final int VERTICES_PER_QUAD = 4;
+
+    public static final int INDICES_PER_QUAD = 6;
+
+    /**
+     * unsigned short索引能表示的最大四边形数量
+     */
+    public static final int MAX_CAPACITY = 65536 / VERTICES_PER_QUAD;
+
+    private final float[] mVertices;
+
+    private final int mCapacity;
+
+    private int mQuadCount;
+
+    public QuadBatch(int capacity) {
+        mCapacity = Math.min(capacity, MAX_CAPACITY);
+        mVertices = new float[mCapacity * VERTICES_PER_QUAD * FLOATS_PER_VERTEX];
+    }
+
+    public void clear() {
+        mQuadCount = 0;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getQuadCount() {
+        return mQuadCount;
+    }
+
+    public boolean isFull() {
+        return mQuadCount >= mCapacity;
+    }
+
+    public float[] getVertices() {
+        return mVertices;
+    }
+
+    /**
+     * 添加一个四边形,rotationZ(角度)以左上角为中心旋转
+     *
+     * @return 已满时返回false
+     */
+    public boolean add(float left, float top, float right, float bottom, float u0, float v0,
+            float u1, float v1, float alpha, float rotationZ) {
+        if (isFull()) {
+            return false;
+        }
+        int offset = mQuadCount * VERTICES_PER_QUAD * FLOATS_PER_VERTEX;
+        if (rotationZ == 0) {
+            offset = putVertex(offset, left, top, u0, v0, alpha);
+            offset = putVertex(offset, right, top, u1, v0, alpha);
+            offset = putVertex(offset, right, bottom, u1, v1, alpha);
+            putVertex(offset, left, bottom, u0, v1, alpha);
+        } else {
+            double radians = Math.toRadians(rotationZ);
+            float cos = (float) Math.cos(radians);
+            float sin = (float) Math.sin(radians);
+            float width = right - left;
+            float height = bottom - top;
+            offset = putVertex(offset, left, top, u0, v0, alpha);
+            offset = putVertex(offset, left + width * cos, top + width * sin, u1, v0, alpha);
+            offset = putVertex(offset, left + width * cos - height * sin, top + width * sin
+                    + height * cos, u1, v1, alpha);
+            putVertex(offset, left - height * sin, top + height * cos, u0, v1, alpha);
+        }
+        mQuadCount++;
+        return true;
+    }
+
+    private int putVertex(int offset, float x, float y, float u, float v, float alpha) {
+        float[] vertices = mVertices;
+        vertices[offset++] = x;
+        vertices[offset++] = y;
+        vertices[offset++] = u;
+        vertices[offset++] = v;
+        vertices[offset++] = alpha;
+        return offset;
+    }
+
+    /**
+     * 每个四边形两个三角形: 0-1-2, 0-2-3
+     */
+    public static short[] buildIndices(int capacity) {
+        int quads = Math.min(capacity, MAX_CAPACITY);
+        short[] indices = new short[quads * INDICES_PER_QUAD];
+        for (int i = 0, v = 0, offset = 0; i < quads; i++, v += VERTICES_PER_QUAD) {
+            indices[offset++] = (short) v;
+            indices[offset++] = (short) (v + 1);
+            indices[offset++] = (short) (v + 2);
+            indices[offset++] = (short) v;
+            indices[offset++] = (short) (v + 2);
+            indices[offset++] = (short) (v + 3);
+        }
+        return indices;
+    }
+
+}
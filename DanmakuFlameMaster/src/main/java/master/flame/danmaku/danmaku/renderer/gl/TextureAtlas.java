@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.danmaku.renderer.gl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * 纹理图集的分配表(按行/shelf装箱),不依赖Android和GL,可以在JVM上单独测试.
+ * 一行中的区域全部释放后该行可以重新使用;空间不足时由调用方淘汰或清空
+ *
+ * @param <K> 区域对应的对象
+ */
+public class TextureAtlas<K> {
+
+    public static class Region {
+
+        public final int x;
+
+        public final int y;
+
+        public final int width;
+
+        public final int height;
+
+        public final float u0;
+
+        public final float v0;
+
+        public final float u1;
+
+        public final float v1;
+
+        /**
+         * 附加数据,例如光栅化时的状态
+         */
+        public int tag;
+
+        int lastUsedFrame;
+
+        final Shelf shelf;
+
+        Region(Shelf shelf, int x, int y, int width, int height, int atlasWidth, int atlasHeight) {
+            this.shelf = shelf;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            u0 = x / (float) atlasWidth;
+            v0 = y / (float) atlasHeight;
+            u1 = (x + width) / (float) atlasWidth;
+            v1 = (y + height) / (float) atlasHeight;
+        }
+    }
+
+    static class Shelf {
+
+        final int y;
+
+        final int height;
+
+        int cursorX;
+
+        int liveCount;
+
+        Shelf(int y, int height) {
+            this.y = y;
+            this.height = height;
+        }
+    }
+
+    /**
+     * 区域之间留出的间隔,避免线性采样时串色
+     */
+    private static final int PADDING = 1;
+
+    /**
+     * 复用已有行时允许的最大高度浪费比例
+     */
+    private static final float SHELF_HEIGHT_TOLERANCE = 1.5f;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final ArrayList<Shelf> mShelves = new ArrayList<Shelf>();
+
+    private final HashMap<K, Region> mRegions = new HashMap<K, Region>();
+
+    private int mFrame;
+
+    public TextureAtlas(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int size() {
+        return mRegions.size();
+    }
+
+    /**
+     * 开始新的一帧,用于判断区域最近是否被使用
+     */
+    public void nextFrame() {
+        mFrame++;
+    }
+
+    /**
+     * @return key对应的区域,并标记为本帧使用过;没有时返回null
+     */
+    public Region get(K key) {
+        Region region = mRegions.get(key);
+        if (region != null) {
+            region.lastUsedFrame = mFrame;
+        }
+        return region;
+    }
+
+    /**
+     * 为key分配width*height的区域,已有的区域会先释放
+     *
+     * @return 空间不足时返回null
+     */
+    public Region allocate(K key, int width, int height) {
+        free(key);
+        if (width <= 0 || height <= 0 || width > mWidth || height > mHeight) {
+            return null;
+        }
+        int paddedWidth = width + PADDING;
+        int paddedHeight = height + PADDING;
+        Shelf target = null;
+        for (int i = 0, size = mShelves.size(); i < size; i++) {
+            Shelf shelf = mShelves.get(i);
+            if (shelf.height >= paddedHeight
+                    && shelf.height <= paddedHeight * SHELF_HEIGHT_TOLERANCE
+                    && shelf.cursorX + paddedWidth <= mWidth) {
+                target = shelf;
+                break;
+            }
+        }
+        if (target == null) {
+            int top = 0;
+            if (!mShelves.isEmpty()) {
+                Shelf last = mShelves.get(mShelves.size() - 1);
+                top = last.y + last.height;
+            }
+            if (top + paddedHeight > mHeight) {
+                return null;
+            }
+            target = new Shelf(top, paddedHeight);
+            mShelves.add(target);
+        }
+        Region region = new Region(target, target.cursorX, target.y, width, height, mWidth,
+                mHeight);
+        region.lastUsedFrame = mFrame;
+        target.cursorX += paddedWidth;
+        target.liveCount++;
+        mRegions.put(key, region);
+        return region;
+    }
+
+    public void free(K key) {
+        Region region = mRegions.remove(key);
+        if (region != null) {
+            release(region.shelf);
+        }
+    }
+
+    /**
+     * 释放至少idleFrames帧没有使用的区域
+     *
+     * @return 释放的数量
+     */
+    public int evictUnused(int idleFrames) {
+        int count = 0;
+        Iterator<Region> it = mRegions.values().iterator();
+        while (it.hasNext()) {
+            Region region = it.next();
+            if (mFrame - region.lastUsedFrame >= idleFrames) {
+                it.remove();
+                release(region.shelf);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void clear() {
+        mRegions.clear();
+        mShelves.clear();
+    }
+
+    private void release(Shelf shelf) {
+        if (--shelf.liveCount > 0) {
+            return;
+        }
+        shelf.cursorX = 0;
+        // 末尾的空行直接回收高度
+        while (!mShelves.isEmpty()) {
+            Shelf last = mShelves.get(mShelves.size() - 1);
+            if (last.liveCount > 0) {
+                break;
+            }
+            mShelves.remove(mShelves.size() - 1);
+        }
+    }
+
+}
@@ -82,15 +82,24 @@ public class DanmakuUtils {
         return false;
     }
 
+    /**
+     * 可在任意线程调用:绘制用的Paint按线程持有(见DanmakuStyle),不需要持有绘制线程的锁.
+     * 同一个cache不能同时在多个线程构建
+     */
     public static DrawingCache buildDanmakuDrawingCache(BaseDanmaku danmaku, IDisplayer disp,
             DrawingCache cache) {
         if (cache == null)
             cache = new DrawingCache();
 
-        cache.build((int) Math.ceil(danmaku.paintWidth), (int) Math.ceil(danmaku.paintHeight), disp.getDensityDpi(), false);
+        // 尺寸可能被后台重新measure,取一次快照
+        float paintWidth = danmaku.paintWidth;
+        float paintHeight = danmaku.paintHeight;
+        cache.build((int) Math.ceil(paintWidth), (int) Math.ceil(paintHeight), disp.getDensityDpi(), false);
         DrawingCacheHolder holder = cache.get();
         if (holder != null) {
             AndroidDisplayer.drawDanmaku(danmaku, holder.canvas, 0, 0, false);
+            holder.contentWidth = paintWidth;
+            holder.contentHeight = paintHeight;
         }
         return cache;
     }
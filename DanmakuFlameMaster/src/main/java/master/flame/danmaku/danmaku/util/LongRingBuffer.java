@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.util;
+
+/**
+ * 定长的long环形队列,用来记录帧时间,满了之后覆盖最早的一项,不装箱也不分配节点
+ */
+public class LongRingBuffer {
+
+    private final long[] mData;
+
+    private int mHead;
+
+    private int mSize;
+
+    public LongRingBuffer(int capacity) {
+        mData = new long[capacity];
+    }
+
+    public void addLast(long value) {
+        int capacity = mData.length;
+        if (mSize < capacity) {
+            mData[(mHead + mSize) % capacity] = value;
+            mSize++;
+        } else {
+            mData[mHead] = value;
+            mHead = (mHead + 1) % capacity;
+        }
+    }
+
+    public long getFirst() {
+        return mSize > 0 ? mData[mHead] : 0;
+    }
+
+    public long getLast() {
+        return mSize > 0 ? mData[(mHead + mSize - 1) % mData.length] : 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mData.length;
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+}
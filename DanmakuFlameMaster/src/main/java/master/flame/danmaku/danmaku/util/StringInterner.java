@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.util;
+
+/**
+ * 有上限的字符串驻留表,弹幕文字和用户hash重复率很高,解析时相同内容共用一个String实例.
+ * 直接映射,冲突时新串覆盖旧串,表大小固定.
+ * 不加锁:槽位的读写是原子的,String本身不可变,多个解析线程并发使用最多少命中几次
+ */
+public class StringInterner {
+
+    public static final StringInterner DEFAULT = new StringInterner(8192);
+
+    /**
+     * 过长的文字几乎不会重复,不驻留
+     */
+    private static final int MAX_LENGTH = 64;
+
+    private final String[] mTable;
+
+    private final int mMask;
+
+    public StringInterner(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mTable = new String[size];
+        mMask = size - 1;
+    }
+
+    public String intern(String string) {
+        if (string == null || string.length() > MAX_LENGTH) {
+            return string;
+        }
+        int hash = string.hashCode();
+        int slot = indexFor(hash);
+        String cached = mTable[slot];
+        if (cached == string) {
+            return cached;
+        }
+        if (cached != null && cached.hashCode() == hash && cached.equals(string)) {
+            return cached;
+        }
+        mTable[slot] = string;
+        return string;
+    }
+
+    /**
+     * 命中时不创建新的String
+     */
+    public String intern(CharSequence chars) {
+        int length = chars.length();
+        if (length > MAX_LENGTH) {
+            return chars.toString();
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        int slot = indexFor(hash);
+        String cached = mTable[slot];
+        if (cached != null && cached.hashCode() == hash && contentEquals(cached, chars)) {
+            return cached;
+        }
+        String string = chars.toString();
+        mTable[slot] = string;
+        return string;
+    }
+
+    /**
+     * 命中时不创建新的String
+     */
+    public String intern(char[] chars, int start, int length) {
+        if (length > MAX_LENGTH) {
+            return new String(chars, start, length);
+        }
+        int hash = 0;
+        int end = start + length;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int slot = indexFor(hash);
+        String cached = mTable[slot];
+        if (cached != null && cached.hashCode() == hash && cached.length() == length) {
+            boolean equals = true;
+            for (int i = 0; i < length; i++) {
+                if (cached.charAt(i) != chars[start + i]) {
+                    equals = false;
+                    break;
+                }
+            }
+            if (equals) {
+                return cached;
+            }
+        }
+        String string = new String(chars, start, length);
+        mTable[slot] = string;
+        return string;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = null;
+        }
+    }
+
+    private int indexFor(int hash) {
+        return (hash ^ (hash >>> 16)) & mMask;
+    }
+
+    private static boolean contentEquals(String string, CharSequence chars) {
+        int length = string.length();
+        if (length != chars.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != chars.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package master.flame.danmaku.ui.widget;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.opengl.GLSurfaceView;
+import android.os.Build;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.view.SurfaceHolder;
+import android.view.View;
+
+import master.flame.danmaku.controller.DrawHandler;
+import master.flame.danmaku.controller.DrawHandler.Callback;
+import master.flame.danmaku.controller.IDanmakuView;
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
+import master.flame.danmaku.danmaku.renderer.gl.GLDanmakuRenderer;
+import master.flame.danmaku.danmaku.renderer.gl.GLDisplayer;
+
+/**
+ * 用OpenGL ES 2.0绘制弹幕:绘制线程只负责排版和光栅化新出现的弹幕,
+ * 合成由GL线程把图集里的纹理批量画出
+ * 不支持显示fps和局部刷新
+ */
+@TargetApi(Build.VERSION_CODES.FROYO)
+public class DanmakuGLSurfaceView extends GLSurfaceView implements IDanmakuView,
+        View.OnClickListener {
+
+    public static final String TAG = "DanmakuGLSurfaceView";
+
+    private Callback mCallback;
+
+    private HandlerThread mDrawThread;
+
+    private DrawHandler handler;
+
+    private boolean isSurfaceCreated;
+
+    private boolean mEnableDanmakuDrwaingCache = true;
+
+    private OnClickListener mOnClickListener;
+
+    private boolean mDanmakuVisibile = true;
+
+    protected int mDrawingThreadType = THREAD_TYPE_NORMAL_PRIORITY;
+
+    private GLDisplayer mDisplayer;
+
+    public DanmakuGLSurfaceView(Context context) {
+        super(context);
+        init();
+    }
+
+    public DanmakuGLSurfaceView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        mDisplayer = new GLDisplayer();
+        setEGLContextClientVersion(2);
+        setEGLConfigChooser(8, 8, 8, 8, 0, 0);
+        getHolder().setFormat(PixelFormat.TRANSLUCENT);
+        setZOrderMediaOverlay(true);
+        setRenderer(new GLDanmakuRenderer(mDisplayer));
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+        setWillNotCacheDrawing(true);
+        setDrawingCacheEnabled(false);
+        setOnClickListener(this);
+    }
+
+    @Override
+    public void setOnClickListener(OnClickListener l) {
+        if (l != this) {
+            mOnClickListener = l;
+        } else
+            super.setOnClickListener(l);
+    }
+
+    public void addDanmaku(BaseDanmaku item) {
+        if (handler != null) {
+            handler.addDanmaku(item);
+        }
+    }
+
+    @Override
+    public void removeAllDanmakus() {
+        if (handler != null) {
+            handler.removeAllDanmakus();
+        }
+    }
+
+    @Override
+    public void removeAllLiveDanmakus() {
+        if (handler != null) {
+            handler.removeAllLiveDanmakus();
+        }
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+        if (handler != null) {
+            handler.setCallback(callback);
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        super.surfaceCreated(holder);
+        isSurfaceCreated = true;
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        super.surfaceChanged(holder, format, width, height);
+        if (handler != null) {
+            handler.notifyDispSizeChanged(width, height);
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        isSurfaceCreated = false;
+        super.surfaceDestroyed(holder);
+    }
+
+    @Override
+    public void release() {
+        stop();
+        mDisplayer.release();
+    }
+
+    @Override
+    public void stop() {
+        stopDraw();
+    }
+
+    private void stopDraw() {
+        if (handler != null) {
+            handler.quit();
+            handler = null;
+        }
+        if (mDrawThread != null) {
+            try {
+                mDrawThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mDrawThread.quit();
+            mDrawThread = null;
+        }
+    }
+
+    protected Looper getLooper(int type){
+        if (mDrawThread != null) {
+            mDrawThread.quit();
+            mDrawThread = null;
+        }
+
+        int priority;
+        switch (type) {
+            case THREAD_TYPE_MAIN_THREAD:
+                return Looper.getMainLooper();
+            case THREAD_TYPE_HIGH_PRIORITY:
+                priority = android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY;
+                break;
+            case THREAD_TYPE_LOW_PRIORITY:
+                priority = android.os.Process.THREAD_PRIORITY_LOWEST;
+                break;
+            case THREAD_TYPE_NORMAL_PRIORITY:
+            default:
+                priority = android.os.Process.THREAD_PRIORITY_DEFAULT;
+                break;
+        }
+        String threadName = "DFM Drawing thread #"+priority;
+        mDrawThread = new HandlerThread(threadName, priority);
+        mDrawThread.start();
+        return mDrawThread.getLooper();
+    }
+
+    private void prepare() {
+        if (handler == null) {
+            handler = new DrawHandler(getLooper(mDrawingThreadType), this, mDanmakuVisibile);
+            handler.setDisplayer(mDisplayer);
+        }
+    }
+
+    @Override
+    public void prepare(BaseDanmakuParser parser) {
+        prepare();
+        handler.setParser(parser);
+        handler.setCallback(mCallback);
+        handler.prepare();
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return handler != null && handler.isPrepared();
+    }
+
+    /**
+     * GL模式下不绘制fps
+     */
+    @Override
+    public void showFPS(boolean show) {
+    }
+
+    @Override
+    public long drawDanmakus() {
+        if (!isSurfaceCreated)
+            return 0;
+        long stime = System.currentTimeMillis();
+        if (!isShown())
+            return -1;
+        if (handler != null) {
+            mDisplayer.beginFrame();
+            handler.draw(mDisplayer.getExtraData());
+            mDisplayer.endFrame();
+            requestRender();
+        }
+        return System.currentTimeMillis() - stime;
+    }
+
+    public void toggle() {
+        if (isSurfaceCreated) {
+            if (handler == null)
+                start();
+            else if (handler.isStop()) {
+                resume();
+            } else
+                pause();
+        }
+    }
+
+    @Override
+    public void pause() {
+        if (handler != null)
+            handler.pause();
+    }
+
+    @Override
+    public void resume() {
+        if (handler != null && mDrawThread != null && handler.isPrepared())
+            handler.resume();
+        else {
+            restart();
+        }
+    }
+
+    public void restart() {
+        stop();
+        start();
+    }
+
+    @Override
+    public void start() {
+        start(0);
+    }
+
+    @Override
+    public void start(long postion) {
+        if (handler == null) {
+            prepare();
+        } else {
+            handler.removeCallbacksAndMessages(null);
+        }
+        handler.obtainMessage(DrawHandler.START, postion).sendToTarget();
+    }
+
+    @Override
+    public void onClick(View view) {
+        if (mOnClickListener != null) {
+            mOnClickListener.onClick(view);
+        }
+    }
+
+    public void seekTo(Long ms) {
+        if (handler != null) {
+            handler.seekTo(ms);
+        }
+    }
+
+    @Override
+    public void syncPlayerPosition(long ms) {
+        if (handler != null) {
+            handler.syncPlayerPosition(ms);
+        }
+    }
+
+    public void enableDanmakuDrawingCache(boolean enable) {
+        mEnableDanmakuDrwaingCache = enable;
+    }
+
+    /**
+     * GL模式每帧都重新合成整个画面,不支持局部刷新
+     */
+    @Override
+    public void enableDirtyRegionRendering(boolean enable) {
+    }
+
+    @Override
+    public boolean isDanmakuDrawingCacheEnabled() {
+        return mEnableDanmakuDrwaingCache;
+    }
+
+    @Override
+    public boolean isViewReady() {
+        return isSurfaceCreated;
+    }
+
+    @Override
+    public View getView() {
+        return this;
+    }
+
+    @Override
+    public void show() {
+        showAndResumeDrawTask(null);
+    }
+
+    @Override
+    public void showAndResumeDrawTask(Long position) {
+        mDanmakuVisibile = true;
+        if (handler == null) {
+            return;
+        }
+        handler.showDanmakus(position);
+    }
+
+    @Override
+    public void hide() {
+        mDanmakuVisibile = false;
+        if (handler == null) {
+            return;
+        }
+        handler.hideDanmakus(false);
+    }
+
+    @Override
+    public long hideAndPauseDrawTask() {
+        mDanmakuVisibile = false;
+        if (handler == null) {
+            return 0;
+        }
+        return handler.hideDanmakus(true);
+    }
+
+    @Override
+    public void clear() {
+        if (!isViewReady()) {
+            return;
+        }
+        // 提交一个空帧
+        mDisplayer.beginFrame();
+        mDisplayer.endFrame();
+        requestRender();
+    }
+
+    @Override
+    public boolean isShown() {
+        if (handler == null || !isViewReady()) {
+            return false;
+        }
+        return handler.getVisibility();
+    }
+
+    @Override
+    public void setDrawingThreadType(int type) {
+        mDrawingThreadType = type;
+    }
+
+    @Override
+    public long getCurrentTime() {
+        if (handler != null) {
+            return handler.getCurrentTime();
+        }
+        return 0;
+    }
+
+}
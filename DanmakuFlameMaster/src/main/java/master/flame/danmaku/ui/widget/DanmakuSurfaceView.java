@@ -19,6 +19,7 @@ package master.flame.danmaku.ui.widget;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.AttributeSet;
@@ -30,14 +31,12 @@ import master.flame.danmaku.controller.DanmakuFilters;
 import master.flame.danmaku.controller.DrawHandler;
 import master.flame.danmaku.controller.DrawHandler.Callback;
 import master.flame.danmaku.controller.DrawHelper;
+import master.flame.danmaku.controller.FpsCounter;
 import master.flame.danmaku.controller.IDanmakuView;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
 import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
 
-import java.util.LinkedList;
-import java.util.Locale;
-
 public class DanmakuSurfaceView extends SurfaceView implements IDanmakuView, SurfaceHolder.Callback,
         View.OnClickListener {
 
@@ -59,6 +58,10 @@ public class DanmakuSurfaceView extends SurfaceView implements IDanmakuView, Sur
     
     private boolean mShowFps;
 
+    private boolean mEnableDirtyRegionRendering;
+
+    private final Rect mDirtyRect = new Rect();
+
     private boolean mDanmakuVisibile = true;
 
     protected int mDrawingThreadType = THREAD_TYPE_NORMAL_PRIORITY;
@@ -149,7 +152,7 @@ public class DanmakuSurfaceView extends SurfaceView implements IDanmakuView, Sur
     @Override
     public void release() {
         stop();
-        if(mDrawTimes!= null) mDrawTimes.clear();
+        mFpsCounter.clear();
     }
 
     @Override
@@ -222,19 +225,8 @@ public class DanmakuSurfaceView extends SurfaceView implements IDanmakuView, Sur
     public void showFPS(boolean show){
         mShowFps = show;
     }
-    private static final int MAX_RECORD_SIZE = 50;
-    private static final int ONE_SECOND = 1000;
-    private LinkedList<Long> mDrawTimes;
-    private float fps() {
-        long lastTime = System.currentTimeMillis();
-        mDrawTimes.addLast(lastTime);
-        float dtime = lastTime - mDrawTimes.getFirst();
-        int frames = mDrawTimes.size();
-        if (frames > MAX_RECORD_SIZE) {
-            mDrawTimes.removeFirst();
-        }
-        return dtime > 0 ? mDrawTimes.size() * ONE_SECOND / dtime : 0.0f;
-    }
+    private final FpsCounter mFpsCounter = new FpsCounter();
+
     @Override
     public long drawDanmakus() {
         if (!isSurfaceCreated)
@@ -243,18 +235,15 @@ public class DanmakuSurfaceView extends SurfaceView implements IDanmakuView, Sur
             return -1;
         long stime = System.currentTimeMillis();
         long dtime = 0;
+        if (mEnableDirtyRegionRendering && !mShowFps) {
+            return drawDirtyRegion(stime);
+        }
         Canvas canvas = mSurfaceHolder.lockCanvas();
         if (canvas != null){
             if (handler != null) {
                 RenderingState rs = handler.draw(canvas);
                 if (mShowFps) {
-                    if (mDrawTimes == null)
-                        mDrawTimes = new LinkedList<Long>();
-                    dtime = System.currentTimeMillis() - stime;
-                    String fps = String.format(Locale.getDefault(),
-                            "fps %.2f,time:%d s,cache:%d,miss:%d", fps(),
-                            handler.getCurrentTime() / 1000, rs.cacheHitCount, rs.cacheMissCount);
-                    DrawHelper.drawFPS(canvas, fps);
+                    mFpsCounter.draw(canvas, handler.getCurrentTime(), rs);
                 }
             }
             if (isSurfaceCreated)
@@ -264,6 +253,20 @@ public class DanmakuSurfaceView extends SurfaceView implements IDanmakuView, Sur
         return dtime;
     }
 
+    private long drawDirtyRegion(long stime) {
+        if (handler == null || !handler.layout(mDirtyRect)) {
+            // 画面没有变化,不提交缓冲区
+            return System.currentTimeMillis() - stime;
+        }
+        Canvas canvas = mSurfaceHolder.lockCanvas(mDirtyRect);
+        if (canvas != null) {
+            handler.drawDirty(canvas);
+            if (isSurfaceCreated)
+                mSurfaceHolder.unlockCanvasAndPost(canvas);
+        }
+        return System.currentTimeMillis() - stime;
+    }
+
     public void toggle() {
         if (isSurfaceCreated) {
             if (handler == null)
@@ -323,11 +326,23 @@ public class DanmakuSurfaceView extends SurfaceView implements IDanmakuView, Sur
         }
     }
 
+    @Override
+    public void syncPlayerPosition(long ms) {
+        if (handler != null) {
+            handler.syncPlayerPosition(ms);
+        }
+    }
+
 
     public void enableDanmakuDrawingCache(boolean enable) {
         mEnableDanmakuDrwaingCache = enable;
     }
 
+    @Override
+    public void enableDirtyRegionRendering(boolean enable) {
+        mEnableDirtyRegionRendering = enable;
+    }
+
     @Override
     public boolean isDanmakuDrawingCacheEnabled() {
         return mEnableDanmakuDrwaingCache;
@@ -20,6 +20,7 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
 import android.os.HandlerThread;
@@ -32,14 +33,12 @@ import master.flame.danmaku.controller.DanmakuFilters;
 import master.flame.danmaku.controller.DrawHandler;
 import master.flame.danmaku.controller.DrawHandler.Callback;
 import master.flame.danmaku.controller.DrawHelper;
+import master.flame.danmaku.controller.FpsCounter;
 import master.flame.danmaku.controller.IDanmakuView;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
 import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
 
-import java.util.LinkedList;
-import java.util.Locale;
-
 /**
  * DanmakuTextureView需要开启GPU加速才能显示弹幕
  * 很遗憾...经过测试TextureView没有提升绘制速度,也许哪里用的不对
@@ -66,6 +65,10 @@ public class DanmakuTextureView extends TextureView implements IDanmakuView,
 
     private boolean mShowFps;
 
+    private boolean mEnableDirtyRegionRendering;
+
+    private final Rect mDirtyRect = new Rect();
+
     private boolean mDanmakuVisibile = true;
     
     protected int mDrawingThreadType = THREAD_TYPE_NORMAL_PRIORITY;
@@ -157,7 +160,7 @@ public class DanmakuTextureView extends TextureView implements IDanmakuView,
     @Override
     public void release() {
         stop();
-        if(mDrawTimes!= null) mDrawTimes.clear();
+        mFpsCounter.clear();
     }
 
     @Override
@@ -230,20 +233,8 @@ public class DanmakuTextureView extends TextureView implements IDanmakuView,
     public void showFPS(boolean show) {
         mShowFps = show;
     }
-    private static final int MAX_RECORD_SIZE = 50;
-    private static final int ONE_SECOND = 1000;
-    private LinkedList<Long> mDrawTimes;
-    private float fps() {
-        long lastTime = System.currentTimeMillis();
-        mDrawTimes.addLast(lastTime);
-        float dtime = lastTime - mDrawTimes.getFirst();
-        int frames = mDrawTimes.size();
-        if (frames > MAX_RECORD_SIZE) {
-            mDrawTimes.removeFirst();
-        }
-        return dtime > 0 ? mDrawTimes.size() * ONE_SECOND / dtime : 0.0f;
-    }
-    
+    private final FpsCounter mFpsCounter = new FpsCounter();
+
     @Override
     public synchronized long drawDanmakus() {
         if (!isSurfaceCreated)
@@ -252,18 +243,15 @@ public class DanmakuTextureView extends TextureView implements IDanmakuView,
         if (!isShown())
             return -1;
         long dtime = 0;
+        if (mEnableDirtyRegionRendering && !mShowFps) {
+            return drawDirtyRegion(stime);
+        }
         Canvas canvas = lockCanvas();
         if (canvas != null) {
             if (handler != null) {
                 RenderingState rs = handler.draw(canvas);
                 if (mShowFps) {
-                    if (mDrawTimes == null)
-                        mDrawTimes = new LinkedList<Long>();
-                    dtime = System.currentTimeMillis() - stime;
-                    String fps = String.format(Locale.getDefault(),
-                            "fps %.2f,time:%d s,cache:%d,miss:%d", fps(),
-                            handler.getCurrentTime() / 1000, rs.cacheHitCount, rs.cacheMissCount);
-                    DrawHelper.drawFPS(canvas, fps);
+                    mFpsCounter.draw(canvas, handler.getCurrentTime(), rs);
                 }
             }
             if (isSurfaceCreated)
@@ -273,6 +261,20 @@ public class DanmakuTextureView extends TextureView implements IDanmakuView,
         return dtime;
     }
 
+    private long drawDirtyRegion(long stime) {
+        if (handler == null || !handler.layout(mDirtyRect)) {
+            // 画面没有变化,不提交缓冲区
+            return System.currentTimeMillis() - stime;
+        }
+        Canvas canvas = lockCanvas(mDirtyRect);
+        if (canvas != null) {
+            handler.drawDirty(canvas);
+            if (isSurfaceCreated)
+                unlockCanvasAndPost(canvas);
+        }
+        return System.currentTimeMillis() - stime;
+    }
+
     public void toggle() {
         if (isSurfaceCreated) {
             if (handler == null)
@@ -332,10 +334,22 @@ public class DanmakuTextureView extends TextureView implements IDanmakuView,
         }
     }
 
+    @Override
+    public void syncPlayerPosition(long ms) {
+        if (handler != null) {
+            handler.syncPlayerPosition(ms);
+        }
+    }
+
     public void enableDanmakuDrawingCache(boolean enable) {
         mEnableDanmakuDrwaingCache = enable;
     }
 
+    @Override
+    public void enableDirtyRegionRendering(boolean enable) {
+        mEnableDirtyRegionRendering = enable;
+    }
+
     @Override
     public boolean isDanmakuDrawingCacheEnabled() {
         return mEnableDanmakuDrwaingCache;
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */package master.flame.danmaku.controller;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.model.InitializationError;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.internal.bytecode.InstrumentationConfiguration;
+
+import master.flame.danmaku.danmaku.model.DanmakuTimer;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在Canvas上完整地走一遍draw(): DrawTask,DanmakuRenderer,AndroidDisplayer的文字绘制和fps显示,
+ * 稳定播放时每帧不应分配对象.Canvas和Paint由robolectric实现,框架内部的分配不统计.
+ * 需要java-allocation-instrumenter作为-javaagent,用gradle jvmTest运行
+ */
+@RunWith(DrawFrameAllocationTest.TestRunner.class)
+@Config(manifest = Config.NONE, sdk = 19)
+public class DrawFrameAllocationTest {
+
+    private static final int WIDTH = 1280;
+
+    private static final int HEIGHT = 720;
+
+    private static final int TEXT_SIZE = 25;
+
+    private static final long FRAME_INTERVAL = 16;
+
+    private static final int WARM_UP_FRAMES = 600;
+
+    private static final int MEASURED_FRAMES = 600;
+
+    private final FrameSampler mSampler = new FrameSampler(true);
+
+    @Before
+    public void setUp() {
+        AllocationRecorder.addSampler(mSampler);
+        // 没有挂上agent时统计不到任何分配,测试会误通过
+        mSampler.begin();
+        Object probe = new Object();
+        mSampler.end();
+        assertTrue("run with -javaagent:java-allocation-instrumenter.jar",
+                probe != null && mSampler.getCount() == 1);
+    }
+
+    @After
+    public void tearDown() {
+        AllocationRecorder.removeSampler(mSampler);
+    }
+
+    @Test
+    public void drawFrameDoesNotAllocate() {
+        Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        AndroidDisplayer disp = new AndroidDisplayer();
+        disp.setSize(WIDTH, HEIGHT);
+        disp.setDensities(1, 160, 1);
+        disp.setExtraData(canvas);
+        DanmakuTimer timer = new DanmakuTimer();
+        DrawTask task = new DrawTask(timer, null, disp, null);
+        task.setParser(new GeneratedParser(2000, 50, TEXT_SIZE));
+        task.prepare();
+        task.start();
+        FpsCounter fpsCounter = new FpsCounter();
+
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            timer.add(FRAME_INTERVAL);
+            RenderingState state = task.draw(disp);
+            fpsCounter.draw(canvas, timer.currMillisecond, state);
+        }
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            timer.add(FRAME_INTERVAL);
+            mSampler.begin();
+            RenderingState state = task.draw(disp);
+            fpsCounter.draw(canvas, timer.currMillisecond, state);
+            mSampler.end();
+            assertTrue(state.totalDanmakuCount > 0);
+            mSampler.assertNoAllocation("frame at " + timer.currMillisecond + "ms");
+        }
+        task.quit();
+    }
+
+    /**
+     * AllocationRecorder由agent在系统类加载器里初始化,不能被robolectric的类加载器再加载一份
+     */
+    public static class TestRunner extends RobolectricTestRunner {
+
+        public TestRunner(Class<?> testClass) throws InitializationError {
+            super(testClass);
+        }
+
+        @Override
+        public InstrumentationConfiguration createClassLoaderConfig() {
+            return InstrumentationConfiguration.newBuilder()
+                    .doNotAquirePackage("com.google.monitoring")
+                    .build();
+        }
+
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.controller;
+
+import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import master.flame.danmaku.danmaku.model.AbsDisplayer;
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.DanmakuTimer;
+import master.flame.danmaku.danmaku.renderer.IRenderer;
+import master.flame.danmaku.danmaku.renderer.IRenderer.Area;
+import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
+import master.flame.danmaku.danmaku.util.LongRingBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 稳定播放时每帧不应分配对象.需要java-allocation-instrumenter作为-javaagent,
+ * 用gradle jvmTest运行
+ */
+public class FrameAllocationTest {
+
+    private static final int WIDTH = 1280;
+
+    private static final int HEIGHT = 720;
+
+    private static final int TEXT_SIZE = 25;
+
+    private static final long FRAME_INTERVAL = 16;
+
+    private static final int WARM_UP_FRAMES = 600;
+
+    private static final int MEASURED_FRAMES = 600;
+
+    private final FrameSampler mSampler = new FrameSampler();
+
+    @Before
+    public void setUp() {
+        AllocationRecorder.addSampler(mSampler);
+        // 没有挂上agent时统计不到任何分配,测试会误通过
+        mSampler.begin();
+        Object probe = new Object();
+        mSampler.end();
+        assertTrue("run with -javaagent:java-allocation-instrumenter.jar",
+                probe != null && mSampler.getCount() == 1);
+    }
+
+    @After
+    public void tearDown() {
+        AllocationRecorder.removeSampler(mSampler);
+    }
+
+    @Test
+    public void layoutFrameDoesNotAllocate() {
+        HeadlessDisplayer disp = new HeadlessDisplayer();
+        DanmakuTimer timer = new DanmakuTimer();
+        DrawTask task = new DrawTask(timer, null, disp, null);
+        task.setParser(new GeneratedParser(2000, 50, TEXT_SIZE));
+        task.prepare();
+        task.start();
+        Area dirtyArea = new Area();
+
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            timer.add(FRAME_INTERVAL);
+            task.layout(disp, dirtyArea);
+        }
+        // 约10秒,覆盖新弹幕进场、超时离场和多次窗口移动
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            timer.add(FRAME_INTERVAL);
+            mSampler.begin();
+            RenderingState state = task.layout(disp, dirtyArea);
+            mSampler.end();
+            assertTrue(state.totalDanmakuCount > 0);
+            mSampler.assertNoAllocation("frame at " + timer.currMillisecond + "ms");
+        }
+        task.quit();
+    }
+
+    @Test
+    public void fpsTextDoesNotAllocate() {
+        FpsCounter counter = new FpsCounter();
+        RenderingState state = new RenderingState();
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            counter.format(i * FRAME_INTERVAL, state);
+        }
+        mSampler.begin();
+        int length = counter.format(123456, state);
+        mSampler.end();
+        mSampler.assertNoAllocation("fps text");
+        assertTrue(length > 0);
+    }
+
+    @Test
+    public void ringBufferDoesNotAllocate() {
+        LongRingBuffer buffer = new LongRingBuffer(8);
+        mSampler.begin();
+        for (int i = 0; i < 100; i++) {
+            buffer.addLast(i);
+        }
+        long first = buffer.getFirst();
+        mSampler.end();
+        mSampler.assertNoAllocation("ring buffer");
+        assertEquals(92, first);
+        assertEquals(8, buffer.size());
+    }
+
+    /**
+     * 不依赖Canvas的显示器,按字数估算尺寸
+     */
+    private static class HeadlessDisplayer extends AbsDisplayer<Object> {
+
+        private Object mExtraData;
+
+        @Override
+        public Object getExtraData() {
+            return mExtraData;
+        }
+
+        @Override
+        public void setExtraData(Object data) {
+            mExtraData = data;
+        }
+
+        @Override
+        public int getWidth() {
+            return WIDTH;
+        }
+
+        @Override
+        public int getHeight() {
+            return HEIGHT;
+        }
+
+        @Override
+        public float getDensity() {
+            return 1;
+        }
+
+        @Override
+        public int getDensityDpi() {
+            return 160;
+        }
+
+        @Override
+        public int draw(BaseDanmaku danmaku) {
+            return IRenderer.TEXT_RENDERING;
+        }
+
+        @Override
+        public float getScaledDensity() {
+            return 1;
+        }
+
+        @Override
+        public int getSlopPixel() {
+            return 0;
+        }
+
+        @Override
+        public void measure(BaseDanmaku danmaku) {
+            danmaku.paintWidth = danmaku.text.length() * danmaku.textSize;
+            danmaku.paintHeight = danmaku.textSize;
+        }
+
+        @Override
+        public float getStrokeWidth() {
+            return 0;
+        }
+
+        @Override
+        public void resetSlopPixel(float factor) {
+        }
+
+        @Override
+        public void setDensities(float density, int densityDpi, float scaledDensity) {
+        }
+
+        @Override
+        public void setSize(int width, int height) {
+        }
+
+    }
+
+}
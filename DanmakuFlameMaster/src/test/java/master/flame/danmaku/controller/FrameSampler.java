@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */package master.flame.danmaku.controller;
+
+import com.google.monitoring.runtime.instrumentation.Sampler;
+
+/**
+ * 只统计测试线程在begin/end之间的分配,记下前几个分配的类型用于失败信息.
+ * ignoreFramework时不统计android框架和robolectric内部的分配,只检查本库代码
+ */
+class FrameSampler implements Sampler {
+
+    private final Thread mThread = Thread.currentThread();
+
+    private final boolean mIgnoreFramework;
+
+    private final String[] mDescs = new String[8];
+
+    private volatile boolean mRecording;
+
+    private int mCount;
+
+    FrameSampler() {
+        this(false);
+    }
+
+    FrameSampler(boolean ignoreFramework) {
+        mIgnoreFramework = ignoreFramework;
+    }
+
+    void begin() {
+        mCount = 0;
+        mRecording = true;
+    }
+
+    void end() {
+        mRecording = false;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+        if (!mRecording || Thread.currentThread() != mThread) {
+            return;
+        }
+        if (mIgnoreFramework && isFrameworkAllocation()) {
+            return;
+        }
+        if (mCount < mDescs.length) {
+            mDescs[mCount] = desc;
+        }
+        mCount++;
+    }
+
+    /**
+     * 从分配点往外找,先遇到框架的栈帧还是先遇到本库的栈帧,JDK的栈帧跳过
+     */
+    private static boolean isFrameworkAllocation() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        for (StackTraceElement element : stack) {
+            String name = element.getClassName();
+            if (name.startsWith("android.") || name.startsWith("com.android.")
+                    || name.startsWith("org.robolectric.")) {
+                return true;
+            }
+            if (name.startsWith("master.flame.danmaku.")
+                    && !name.equals(FrameSampler.class.getName())) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    void assertNoAllocation(String what) {
+        if (mCount == 0) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(what).append(" allocated ").append(mCount).append(" objects:");
+        for (int i = 0; i < Math.min(mCount, mDescs.length); i++) {
+            sb.append(' ').append(mDescs[i]);
+        }
+        throw new AssertionError(sb.toString());
+    }
+
+}
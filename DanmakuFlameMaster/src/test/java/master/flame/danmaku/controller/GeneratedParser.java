@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */package master.flame.danmaku.controller;
+
+import android.graphics.Color;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.model.android.Danmakus;
+import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
+import master.flame.danmaku.danmaku.parser.DanmakuFactory;
+
+/**
+ * 按固定间隔生成滚动弹幕
+ */
+class GeneratedParser extends BaseDanmakuParser {
+
+    private static final String[] TEXTS = {
+            "233333", "前方高能", "弹幕护体", "hello", "这是一条比较长的弹幕文字"
+    };
+
+    private final int mCount;
+
+    private final long mInterval;
+
+    private final float mTextSize;
+
+    GeneratedParser(int count, long interval, float textSize) {
+        mCount = count;
+        mInterval = interval;
+        mTextSize = textSize;
+    }
+
+    @Override
+    protected IDanmakus parse() {
+        Danmakus result = new Danmakus();
+        for (int i = 0; i < mCount; i++) {
+            BaseDanmaku item = DanmakuFactory.createDanmaku(BaseDanmaku.TYPE_SCROLL_RL, mDisp);
+            item.time = i * mInterval;
+            DanmakuFactory.fillText(item, TEXTS[i % TEXTS.length]);
+            item.textSize = mTextSize;
+            item.textColor = Color.WHITE;
+            item.textShadowColor = Color.BLACK;
+            item.index = i;
+            item.setTimer(mTimer);
+            result.addItem(item);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.renderer.gl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuadBatchTest {
+
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void writesFourVerticesPerQuad() {
+        QuadBatch batch = new QuadBatch(4);
+        assertTrue(batch.add(10, 20, 110, 40, 0f, 0.5f, 0.25f, 0.75f, 0.5f, 0));
+        assertEquals(1, batch.getQuadCount());
+        float[] expected = {
+                10, 20, 0f, 0.5f, 0.5f,
+                110, 20, 0.25f, 0.5f, 0.5f,
+                110, 40, 0.25f, 0.75f, 0.5f,
+                10, 40, 0f, 0.75f, 0.5f
+        };
+        float[] vertices = batch.getVertices();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("float " + i, expected[i], vertices[i], DELTA);
+        }
+    }
+
+    @Test
+    public void appendsAfterPreviousQuad() {
+        QuadBatch batch = new QuadBatch(4);
+        batch.add(0, 0, 1, 1, 0, 0, 1, 1, 1, 0);
+        batch.add(5, 6, 7, 8, 0, 0, 1, 1, 1, 0);
+        int offset = QuadBatch.VERTICES_PER_QUAD * QuadBatch.FLOATS_PER_VERTEX;
+        assertEquals(5, batch.getVertices()[offset], DELTA);
+        assertEquals(6, batch.getVertices()[offset + 1], DELTA);
+    }
+
+    @Test
+    public void rotatesAroundTopLeft() {
+        QuadBatch batch = new QuadBatch(1);
+        batch.add(10, 10, 110, 30, 0, 0, 1, 1, 1, 90);
+        float[] v = batch.getVertices();
+        int stride = QuadBatch.FLOATS_PER_VERTEX;
+        // 左上角不动,右上角转到正下方
+        assertEquals(10, v[0], DELTA);
+        assertEquals(10, v[1], DELTA);
+        assertEquals(10, v[stride], DELTA);
+        assertEquals(110, v[stride + 1], DELTA);
+        assertEquals(-10, v[stride * 2], DELTA);
+        assertEquals(110, v[stride * 2 + 1], DELTA);
+        assertEquals(-10, v[stride * 3], DELTA);
+        assertEquals(10, v[stride * 3 + 1], DELTA);
+    }
+
+    @Test
+    public void rejectsQuadsWhenFull() {
+        QuadBatch batch = new QuadBatch(2);
+        assertTrue(batch.add(0, 0, 1, 1, 0, 0, 1, 1, 1, 0));
+        assertTrue(batch.add(0, 0, 1, 1, 0, 0, 1, 1, 1, 0));
+        assertTrue(batch.isFull());
+        assertFalse(batch.add(0, 0, 1, 1, 0, 0, 1, 1, 1, 0));
+        assertEquals(2, batch.getQuadCount());
+        batch.clear();
+        assertEquals(0, batch.getQuadCount());
+        assertFalse(batch.isFull());
+    }
+
+    @Test
+    public void capacityFitsUnsignedShortIndices() {
+        QuadBatch batch = new QuadBatch(QuadBatch.MAX_CAPACITY + 1);
+        assertEquals(QuadBatch.MAX_CAPACITY, batch.getCapacity());
+        short[] indices = QuadBatch.buildIndices(QuadBatch.MAX_CAPACITY);
+        assertEquals(65535, indices[indices.length - 1] & 0xffff);
+    }
+
+    @Test
+    public void buildsTwoTrianglesPerQuad() {
+        short[] expected = {
+                0, 1, 2, 0, 2, 3,
+                4, 5, 6, 4, 6, 7
+        };
+        assertArrayEquals(expected, QuadBatch.buildIndices(2));
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 Chen Hui <calmer91@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package master.flame.danmaku.danmaku.renderer.gl;
+
+import org.junit.Test;
+
+import master.flame.danmaku.danmaku.renderer.gl.TextureAtlas.Region;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TextureAtlasTest {
+
+    private static final float DELTA = 1e-6f;
+
+    @Test
+    public void packsSameHeightIntoOneShelf() {
+        TextureAtlas<String> atlas = new TextureAtlas<String>(256, 128);
+        Region a = atlas.allocate("a", 100, 20);
+        Region b = atlas.allocate("b", 50, 20);
+        assertEquals(0, a.x);
+        assertEquals(0, a.y);
+        // 区域之间留1像素间隔
+        assertEquals(101, b.x);
+        assertEquals(0, b.y);
+        assertEquals(101 / 256f, b.u0, DELTA);
+        assertEquals(151 / 256f, b.u1, DELTA);
+        assertEquals(20 / 128f, b.v1, DELTA);
+        assertEquals(2, atlas.size());
+    }
+
+    @Test
+    public void opensNewShelfForTallerRegion() {
+        TextureAtlas<String> atlas = new TextureAtlas<String>(256, 256);
+        atlas.allocate("a", 100, 20);
+        Region b = atlas.allocate("b", 100, 40);
+        assertEquals(0, b.x);
+        assertEquals(21, b.y);
+        // 比行矮得不多时复用已有的行
+        Region c = atlas.allocate("c", 100, 30);
+        assertEquals(21, c.y);
+        assertEquals(101, c.x);
+    }
+
+    @Test
+    public void returnsNullWhenFull() {
+        TextureAtlas<String> atlas = new TextureAtlas<String>(64, 64);
+        assertNull(atlas.allocate("too wide", 65, 10));
+        assertNotNull(atlas.allocate("a", 60, 30));
+        assertNotNull(atlas.allocate("b", 60, 30));
+        assertNull(atlas.allocate("c", 60, 30));
+        assertNull(atlas.get("c"));
+    }
+
+    @Test
+    public void reallocatingKeyReplacesRegion() {
+        TextureAtlas<String> atlas = new TextureAtlas<String>(256, 256);
+        atlas.allocate("a", 100, 20);
+        Region region = atlas.allocate("a", 120, 20);
+        assertEquals(1, atlas.size());
+        assertSame(region, atlas.get("a"));
+        // 原区域释放后该行已空,从行首重新分配
+        assertEquals(0, region.x);
+    }
+
+    @Test
+    public void evictUnusedFreesIdleRegions() {
+        TextureAtlas<String> atlas = new TextureAtlas<String>(256, 256);
+        atlas.allocate("a", 10, 10);
+        atlas.allocate("b", 10, 10);
+        atlas.nextFrame();
+        atlas.get("a");
+        assertEquals(1, atlas.evictUnused(1));
+        assertNotNull(atlas.get("a"));
+        assertNull(atlas.get("b"));
+        assertEquals(0, atlas.evictUnused(1));
+    }
+
+    @Test
+    public void reclaimsEmptyShelves() {
+        TextureAtlas<String> atlas = new TextureAtlas<String>(100, 100);
+        atlas.allocate("a", 90, 40);
+        atlas.allocate("b", 90, 40);
+        assertNull(atlas.allocate("c", 90, 40));
+
+        // 末尾的空行回收高度
+        atlas.free("b");
+        Region c = atlas.allocate("c", 90, 40);
+        assertNotNull(c);
+        assertEquals(41, c.y);
+
+        // 中间的空行保留位置,从行首重新使用
+        atlas.free("a");
+        Region d = atlas.allocate("d", 90, 40);
+        assertNotNull(d);
+        assertEquals(0, d.y);
+        assertEquals(0, d.x);
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        TextureAtlas<String> atlas = new TextureAtlas<String>(64, 64);
+        atlas.allocate("a", 60, 60);
+        atlas.clear();
+        assertEquals(0, atlas.size());
+        assertEquals(0, atlas.allocate("b", 60, 60).y);
+    }
+
+}